@@ -0,0 +1,148 @@
+#!perl
+#
+# Persistent CGI worker for perl scripts (see com.mathhead200.web_server.CgiWorkerPool, and '.cgi-workers'.)
+# Runs one CGI script per request, without starting a new perl each time; each script is compiled once,
+# and again only when its file changes. Speaks the pool's framed protocol on STDIN and STDOUT:
+# a type byte, a 4 byte (big-endian) length, then that many bytes.
+#
+use strict;
+use warnings;
+
+# a script calling exit() ends its request, not the worker
+BEGIN {
+	*CORE::GLOBAL::exit = sub { die bless { status => (@_ ? $_[0] : 0) }, 'CGIWorker::Exit' };
+}
+
+open( my $FROM_SERVER, '<&', \*STDIN ) or die "can't dup STDIN: $!";
+open( my $TO_SERVER, '>&', \*STDOUT ) or die "can't dup STDOUT: $!";
+binmode $FROM_SERVER;
+binmode $TO_SERVER;
+$TO_SERVER->autoflush(1);
+
+sub send_frame {
+	my ($type, $data) = @_;
+	print $TO_SERVER $type, pack('N', length $data), $data;
+}
+
+sub read_exactly {
+	my ($n) = @_;
+	my $buf = '';
+	while( length($buf) < $n ) {
+		my $r = read( $FROM_SERVER, $buf, $n - length($buf), length($buf) );
+		return undef unless $r;
+	}
+	return $buf;
+}
+
+sub next_frame {
+	my $head = read_exactly(5);
+	return () unless defined $head;
+	my ($type, $length) = unpack('a N', $head);
+	my $data = $length ? read_exactly($length) : '';
+	return () unless defined $data;
+	return ($type, $data);
+}
+
+
+# STDOUT and STDERR, while a script runs: everything printed is sent to the server as it's written
+package CGIWorker::Handle;
+
+sub TIEHANDLE { my ($class, $type) = @_; return bless { type => $type }, $class; }
+sub WRITE {
+	my ($self, $buf, $len, $off) = @_;
+	main::send_frame( $self->{type}, substr($buf, $off || 0, $len) ) if $len;
+	return $len;
+}
+sub PRINT {
+	my $self = shift;
+	my $data = join( defined $, ? $, : '', @_ ) . ( defined $\ ? $\ : '' );
+	main::send_frame( $self->{type}, $data ) if length $data;
+	return 1;
+}
+sub PRINTF {
+	my $self = shift;
+	my $format = shift;
+	return $self->PRINT( sprintf($format, @_) );
+}
+sub BINMODE { return 1; }
+sub FILENO { return undef; }
+sub CLOSE { return 1; }
+
+package main;
+
+
+my %compiled; # script path => [ modified time, compiled script ]
+my $count = 0;
+
+sub compile {
+	my ($script) = @_;
+	my $mtime = (stat $script)[9];
+	die "can't stat $script: $!\n" unless defined $mtime;
+	my $cached = $compiled{$script};
+	return $cached->[1] if $cached && $cached->[0] == $mtime;
+
+	open( my $fh, '<', $script ) or die "can't read $script: $!\n";
+	my $source = do { local $/; <$fh> };
+	close $fh;
+	$source =~ s/\A#!.*//; # (the line itself is kept, so line numbers still match)
+	my $package = 'CGIWorker::Script' . ++$count;
+	my $sub = eval "package $package; sub {\n#line 1 \"$script\"\n$source\n}";
+	die $@ unless $sub;
+	$compiled{$script} = [ $mtime, $sub ];
+	return $sub;
+}
+
+sub run {
+	my ($script, $dir, $env, $input) = @_;
+	local %ENV = %$env;
+	local *STDIN;
+	local *STDOUT;
+	local *STDERR;
+	open( STDIN, '<', \$input ) or die "can't open STDIN: $!";
+	tie *STDOUT, 'CGIWorker::Handle', 'O';
+	tie *STDERR, 'CGIWorker::Handle', 'E';
+	my $status = 0;
+	eval {
+		chdir $dir or die "can't chdir to $dir: $!\n";
+		compile($script)->();
+		1;
+	} or do {
+		my $error = $@;
+		if( ref $error eq 'CGIWorker::Exit' ) {
+			$status = $error->{status};
+		} else {
+			print STDERR $error;
+			$status = 255;
+		}
+	};
+	untie *STDOUT;
+	untie *STDERR;
+	return $status;
+}
+
+
+while( my ($type, $data) = next_frame() ) {
+	if( $type eq 'K' ) {
+		send_frame('K', '');
+		next;
+	}
+	die "unexpected frame: $type" unless $type eq 'S';
+	my ($script, $dir) = split /\0/, $data, 2;
+	my %env;
+	my $input = '';
+	while( 1 ) {
+		my ($t, $d) = next_frame();
+		CORE::exit(0) unless defined $t;
+		if( $t eq 'V' ) {
+			for( split /\0/, $d ) {
+				my ($name, $value) = split /=/, $_, 2;
+				$env{$name} = defined $value ? $value : '';
+			}
+		} elsif( $t eq 'I' ) {
+			last if $d eq '';
+			$input .= $d;
+		}
+	}
+	send_frame( 'X', pack('N', run($script, $dir, \%env, $input)) );
+}
+CORE::exit(0);
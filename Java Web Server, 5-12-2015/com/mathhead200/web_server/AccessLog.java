@@ -0,0 +1,329 @@
+package com.mathhead200.web_server;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Writes a line to a file for every request (see {@link RequestRecord}), in Common or Combined Log Format, or as JSON.
+ * A line is formatted on the request's thread, then handed to an {@link AsyncLog}, whose writer thread batches lines into the file;
+ * if the writer falls behind, lines are dropped (and counted) rather than making requests wait.
+ * The file is rotated (renamed with the time, e.g. "access.log.20150512-140327", and started again)
+ * once it reaches {@link #maxBytes}, and every {@link #rotateMillis}.
+ * <p>
+ * Common and Combined lines are followed by the fields those formats don't have, e.g.
+ * <pre>
+ * 127.0.0.1 - - [12/May/2015:14:03:27 -0400] "GET / HTTP/1.1" 200 1024 "-" "curl/7.40.0" in=78 out=1240 reuse=0 handler=FILE
+ *     parse_us=52 wait_us=0 resolve_us=14 handle_us=130 send_us=95 total_us=291
+ * </pre>
+ * (all on one line.) Safe to share between connection threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class AccessLog implements Closeable
+{
+	/** How each line is written. */
+	public enum Format
+	{
+		/** Common Log Format, then the extra fields. */
+		COMMON,
+		/** Combined Log Format (Common, with the "Referer" and "User-Agent"), then the extra fields. */
+		COMBINED,
+		/** One JSON object per line. */
+		JSON
+	}
+
+	private static final DateTimeFormatter CLF_TIME = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone( ZoneId.systemDefault() );
+	private static final DateTimeFormatter ISO_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss", Locale.US).withZone( ZoneId.systemDefault() );
+	private static final DateTimeFormatter ISO_OFFSET = DateTimeFormatter.ofPattern("xxx", Locale.US).withZone( ZoneId.systemDefault() );
+	private static final DateTimeFormatter ROTATED_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss", Locale.US).withZone( ZoneId.systemDefault() );
+
+	/** How long (in milliseconds) after a failed rotation the file is written to as it is, before rotating is tried again. */
+	private static final long ROTATE_RETRY_MILLIS = 60000;
+
+	/** A formatted second (like {@link HttpDate}'s), since most lines are written in the same second as the last. Immutable. */
+	private static final class Second
+	{
+		final long epochSecond;
+		final String clf, iso, offset;
+
+		Second(long epochSecond) {
+			Instant instant = Instant.ofEpochSecond(epochSecond);
+			this.epochSecond = epochSecond;
+			this.clf = CLF_TIME.format(instant);
+			this.iso = ISO_TIME.format(instant);
+			this.offset = ISO_OFFSET.format(instant);
+		}
+	}
+
+	private static volatile Second current = new Second( System.currentTimeMillis() / 1000 );
+
+
+	/** The log file. */
+	public final Path file;
+
+	/** How each line is written. */
+	public final Format format;
+
+	/** The file is rotated once it's this long (in bytes.) 0 means never. */
+	public final long maxBytes;
+
+	/** The file is rotated this often (in milliseconds, counted from midnight UTC, e.g. on the hour.) 0 means never. */
+	public final long rotateMillis;
+
+	private final AsyncLog log;
+	private final AtomicLong rotations = new AtomicLong();
+	private final AtomicLong failedRotations = new AtomicLong();
+
+	/** Why the last rotation failed, or null. */
+	private volatile IOException rotationError = null;
+
+
+	/**
+	 * Opens (or creates) the log file, and starts its writer thread.
+	 *
+	 * @param file - The log file. Appended to if it already exists.
+	 * @param format - How each line is written.
+	 * @param bufferLines - The most lines waiting to be written, before more are dropped.
+	 * @param maxBytes - Rotate the file once it's this long, or 0 for never.
+	 * @param rotateMillis - Rotate the file this often, or 0 for never.
+	 * @throws IOException - If the file can't be opened.
+	 */
+	public AccessLog(Path file, Format format, int bufferLines, long maxBytes, long rotateMillis) throws IOException {
+		this.file = file;
+		this.format = format;
+		this.maxBytes = Math.max(maxBytes, 0);
+		this.rotateMillis = Math.max(rotateMillis, 0);
+		this.log = new AsyncLog( bufferLines, AsyncLog.Policy.DROP, new RotatingFile() );
+	}
+
+
+	/**
+	 * Logs a request. Never waits on the file.
+	 *
+	 * @param record - The request, once its response has been sent.
+	 */
+	public void log(RequestRecord record) {
+		StringBuilder line = new StringBuilder(256);
+		Second second = current;
+		long epochSecond = Math.floorDiv(record.time, 1000);
+		if( second.epochSecond != epochSecond ) {
+			second = new Second(epochSecond);
+			if( epochSecond > current.epochSecond )
+				current = second; //racing threads would format the same second; harmless
+		}
+		HttpRequest request = record.request;
+		int status = record.getStatusCode();
+		if( format == Format.JSON ) {
+			line.append("{\"time\":\"").append(second.iso).append('.');
+			long millis = Math.floorMod(record.time, 1000L);
+			line.append( (char) ('0' + millis / 100) ).append( (char) ('0' + millis / 10 % 10) ).append( (char) ('0' + millis % 10) );
+			line.append(second.offset).append('"');
+			line.append(",\"client\":"); appendJson(line, record.client);
+			line.append(",\"method\":"); appendJson(line, request.method);
+			line.append(",\"uri\":"); appendJson(line, request.uri);
+			line.append(",\"version\":"); appendJson(line, request.version);
+			line.append(",\"status\":").append(status);
+			line.append(",\"bytes\":").append( record.getBodyBytes() );
+			line.append(",\"request_bytes\":").append(record.requestBytes);
+			line.append(",\"response_bytes\":").append(record.responseBytes);
+			line.append(",\"reuse\":").append(record.reuse);
+			line.append(",\"handler\":"); appendJson( line, record.kind != null ? record.kind.name() : null );
+			line.append(",\"referer\":"); appendJson( line, request.fields.get("referer") );
+			line.append(",\"user_agent\":"); appendJson( line, request.fields.get("user-agent") );
+			line.append(",\"parse_us\":").append( record.getParseNanos() / 1000 );
+			line.append(",\"wait_us\":").append( record.getWaitNanos() / 1000 );
+			line.append(",\"resolve_us\":").append( record.getResolveNanos() / 1000 );
+			line.append(",\"handle_us\":").append( record.getHandleNanos() / 1000 );
+			line.append(",\"send_us\":").append( record.getSendNanos() / 1000 );
+			line.append(",\"total_us\":").append( record.getTotalNanos() / 1000 );
+			line.append('}');
+		} else {
+			line.append(record.client).append(" - - [").append(second.clf).append("] ");
+			if( request.method == null )
+				line.append("\"-\"");
+			else
+				appendQuoted( line, request.toString() );
+			line.append(' ').append(status).append(' ');
+			long bytes = record.getBodyBytes();
+			if( bytes == 0 )
+				line.append('-');
+			else
+				line.append(bytes);
+			if( format == Format.COMBINED ) {
+				line.append(' ');
+				appendQuoted( line, request.fields.get("referer") );
+				line.append(' ');
+				appendQuoted( line, request.fields.get("user-agent") );
+			}
+			line.append(" in=").append(record.requestBytes);
+			line.append(" out=").append(record.responseBytes);
+			line.append(" reuse=").append(record.reuse);
+			line.append(" handler=").append( record.kind != null ? record.kind.name() : "-" );
+			line.append(" parse_us=").append( record.getParseNanos() / 1000 );
+			line.append(" wait_us=").append( record.getWaitNanos() / 1000 );
+			line.append(" resolve_us=").append( record.getResolveNanos() / 1000 );
+			line.append(" handle_us=").append( record.getHandleNanos() / 1000 );
+			line.append(" send_us=").append( record.getSendNanos() / 1000 );
+			line.append(" total_us=").append( record.getTotalNanos() / 1000 );
+		}
+		log.log( "access", false, line.toString() );
+	}
+
+	/** Appends a quoted string the way Apache's access log does ("-" for none; quotes, backslashes, and control characters escaped.) */
+	private static void appendQuoted(StringBuilder line, String value) {
+		if( value == null ) {
+			line.append("\"-\"");
+			return;
+		}
+		line.append('"');
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt(i);
+			if( c == '"' || c == '\\' )
+				line.append('\\').append(c);
+			else if( c < 0x20 || c == 0x7F )
+				line.append("\\x").append( Character.forDigit(c >> 4, 16) ).append( Character.forDigit(c & 0xF, 16) );
+			else
+				line.append(c);
+		}
+		line.append('"');
+	}
+
+	/** Appends a JSON string (or null.) */
+	private static void appendJson(StringBuilder line, String value) {
+		if( value == null ) {
+			line.append("null");
+			return;
+		}
+		line.append('"');
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt(i);
+			if( c == '"' || c == '\\' )
+				line.append('\\').append(c);
+			else if( c < 0x20 )
+				line.append( String.format("\\u%04x", (int) c) );
+			else
+				line.append(c);
+		}
+		line.append('"');
+	}
+
+
+	/** Writes each batch of lines to the file, rotating it when it's due. Only used by the log's writer thread. */
+	private final class RotatingFile implements AsyncLog.Sink
+	{
+		/** The open file, or null if it couldn't be opened again (it's tried again with the next batch.) */
+		private Writer writer;
+		private long size;
+		private long nextRotation;
+
+		/** No rotation is tried before this (in milliseconds since the epoch), after one has failed. */
+		private long retryRotation = 0;
+
+		RotatingFile() throws IOException {
+			open();
+		}
+
+		private void open() throws IOException {
+			size = Files.exists(file) ? Files.size(file) : 0;
+			writer = new BufferedWriter( new OutputStreamWriter( Files.newOutputStream(file,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE), StandardCharsets.UTF_8 ), 1 << 16 );
+			nextRotation = rotateMillis > 0 ? (System.currentTimeMillis() / rotateMillis + 1) * rotateMillis : Long.MAX_VALUE;
+		}
+
+		public void write(List<AsyncLog.Event> batch) throws IOException {
+			if( writer == null )
+				open();
+			for( AsyncLog.Event event : batch ) {
+				if( size > 0 && ((maxBytes > 0 && size >= maxBytes) || event.time >= nextRotation) && event.time >= retryRotation ) {
+					try {
+						rotate();
+					} catch(IOException e) {
+						retryRotation = event.time + ROTATE_RETRY_MILLIS;
+						failedRotations.incrementAndGet();
+						rotationError = e;
+						if( writer == null )
+							throw e; //no file could be opened at all; that's tried again with the next batch
+						//otherwise, carry on in the old file
+					}
+				}
+				writer.write(event.message);
+				writer.write('\n');
+				size += event.message.length() + 1; //(close enough, since almost every character is ASCII)
+			}
+			writer.flush();
+		}
+
+		/** Renames the file with the current time, and starts a new one; if it can't be renamed, the same one is reopened. */
+		private void rotate() throws IOException {
+			writer.close();
+			writer = null;
+			try {
+				String name = file.getFileName() + "." + ROTATED_TIME.format( Instant.now() );
+				Path rotated = file.resolveSibling(name);
+				for( int i = 1; Files.exists(rotated); i++ )
+					rotated = file.resolveSibling(name + "-" + i);
+				Files.move(file, rotated);
+				rotations.incrementAndGet();
+			} finally {
+				open();
+			}
+		}
+
+		public void close() throws IOException {
+			if( writer != null )
+				writer.close();
+		}
+	}
+
+
+	/** @return The number of lines written so far. */
+	public long getWritten() {
+		return log.getWritten();
+	}
+
+	/** @return The number of lines dropped so far, because the writer had fallen behind. */
+	public long getDropped() {
+		return log.getDropped();
+	}
+
+	/** @return The number of times the file has been rotated. */
+	public long getRotations() {
+		return rotations.get();
+	}
+
+	/** @return The number of times rotating the file failed (and it was kept, or reopened.) */
+	public long getFailedRotations() {
+		return failedRotations.get();
+	}
+
+	/** @return The number of lines lost so far, because they couldn't be written to the file. */
+	public long getFailed() {
+		return log.getFailed();
+	}
+
+	/** Writes whatever lines are still waiting, then closes the file. */
+	public void close() throws IOException {
+		log.close();
+	}
+
+	public String toString() {
+		IOException rotationError = this.rotationError;
+		return String.format( "%s (%s): %d lines written, %d pending (dropped: %d, failed: %d), rotated %d times (failed: %d)%s",
+				file, format.name().toLowerCase(), getWritten(), log.getPending(), getDropped(), getFailed(),
+				getRotations(), getFailedRotations(), rotationError != null ? ", last rotation error: " + rotationError : "" );
+	}
+}
@@ -0,0 +1,150 @@
+package com.mathhead200.web_server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Limits how much work the server takes on at once, so that under overload it sheds work
+ * (with a quick "503 Service Unavailable") instead of starting threads and buffering requests until it runs out of memory.
+ * <ul>
+ * <li>At most {@link #acceptBacklog} connections wait to be accepted. Any more are refused by the OS.</li>
+ * <li>At most {@link #maxConnections} connections are open at once. Any more are answered with 503 as soon as they're accepted.</li>
+ * <li>At most {@link #maxRequests} requests are handled at once. Any more wait (in a bounded queue, for a bounded time)
+ *     for one to finish, and are answered with 503 if none does.</li>
+ * </ul>
+ * Safe to share between connection threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class AdmissionControl
+{
+	/** The listen backlog: how many connections the OS queues up until they're accepted. */
+	public final int acceptBacklog;
+
+	/** The most connections open at once. */
+	public final int maxConnections;
+
+	/** The most requests being handled at once. */
+	public final int maxRequests;
+
+	/** The most requests that may wait for one of the {@link #maxRequests} slots. */
+	public final int maxQueuedRequests;
+
+	/** How long (in milliseconds) a queued request waits before it's rejected. */
+	public final long queueTimeout;
+
+	/** Sent as the "Retry-After" header (in seconds) with each 503. */
+	public final int retryAfter;
+
+	private final AtomicInteger connections = new AtomicInteger();
+	private final Semaphore requests;
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final AtomicLong rejectedConnections = new AtomicLong();
+	private final AtomicLong rejectedRequests = new AtomicLong();
+
+
+	/**
+	 * @param acceptBacklog - The listen backlog, or 0 for the OS's default.
+	 * @param maxConnections - The most connections open at once, or 0 for no limit.
+	 * @param maxRequests - The most requests being handled at once, or 0 for no limit.
+	 * @param maxQueuedRequests - The most requests that may wait for a slot.
+	 * @param queueTimeout - How long (in milliseconds) a request may wait for a slot.
+	 * @param retryAfter - How many seconds clients are told to wait before trying again.
+	 */
+	public AdmissionControl(int acceptBacklog, int maxConnections, int maxRequests, int maxQueuedRequests,
+			long queueTimeout, int retryAfter) {
+		this.acceptBacklog = acceptBacklog;
+		this.maxConnections = maxConnections > 0 ? maxConnections : Integer.MAX_VALUE;
+		this.maxRequests = maxRequests > 0 ? maxRequests : Integer.MAX_VALUE;
+		this.maxQueuedRequests = maxQueuedRequests;
+		this.queueTimeout = queueTimeout;
+		this.retryAfter = retryAfter;
+		this.requests = new Semaphore(this.maxRequests);
+	}
+
+
+	/**
+	 * Counts a newly accepted connection, unless there are already too many.
+	 * Every successful call must be followed by a call to {@link #connectionClosed()}.
+	 *
+	 * @return true if the connection may be handled, false if it should be shed.
+	 */
+	public boolean tryOpenConnection() {
+		for( int n = connections.get(); n < maxConnections; n = connections.get() )
+			if( connections.compareAndSet(n, n + 1) )
+				return true;
+		rejectedConnections.incrementAndGet();
+		return false;
+	}
+
+	/** @see #tryOpenConnection() */
+	public void connectionClosed() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Takes a request slot, waiting for one if necessary (and if the queue isn't full.)
+	 * Every successful call must be followed by a call to {@link #requestFinished()}.
+	 *
+	 * @return true if the request may be handled, false if it should be shed.
+	 * @throws InterruptedException - If interrupted while waiting.
+	 */
+	public boolean tryStartRequest() throws InterruptedException {
+		if( requests.tryAcquire() )
+			return true;
+		try {
+			if( queued.incrementAndGet() <= maxQueuedRequests
+					&& requests.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS) )
+				return true;
+		} finally {
+			queued.decrementAndGet();
+		}
+		rejectedRequests.incrementAndGet();
+		return false;
+	}
+
+	/** @see #tryStartRequest() */
+	public void requestFinished() {
+		requests.release();
+	}
+
+
+	/** @return The number of connections currently open. */
+	public int getConnections() {
+		return connections.get();
+	}
+
+	/** @return The number of requests currently being handled. */
+	public int getActiveRequests() {
+		return maxRequests - requests.availablePermits();
+	}
+
+	/** @return The number of requests currently waiting for a slot. */
+	public int getQueuedRequests() {
+		return queued.get();
+	}
+
+	/** @return The number of connections shed so far. */
+	public long getRejectedConnections() {
+		return rejectedConnections.get();
+	}
+
+	/** @return The number of requests shed so far. */
+	public long getRejectedRequests() {
+		return rejectedRequests.get();
+	}
+
+	public String toString() {
+		return String.format( "%d/%s connections, %d/%s requests, %d/%d queued (rejected: %d connections, %d requests)",
+				getConnections(), limit(maxConnections), getActiveRequests(), limit(maxRequests),
+				getQueuedRequests(), maxQueuedRequests, getRejectedConnections(), getRejectedRequests() );
+	}
+
+	private static String limit(int max) {
+		return max == Integer.MAX_VALUE ? "-" : Integer.toString(max);
+	}
+}
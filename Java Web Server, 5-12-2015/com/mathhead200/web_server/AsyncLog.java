@@ -0,0 +1,327 @@
+package com.mathhead200.web_server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The server's log. Connection threads put each log line, as an {@link Event}, into a bounded, lock-free ring buffer,
+ * and a single background thread takes them out in batches and hands them to a {@link Sink}
+ * (e.g. a file, standard output, or the {@link LogConsole} window), so a connection never waits on the log's I/O. When the buffer is full, a line is either dropped (and counted),
+ * or its writer waits for room, depending on the {@link Policy}.
+ * Safe to share between threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class AsyncLog implements Closeable
+{
+	/** What to do with a line when the buffer is full. */
+	public enum Policy
+	{
+		/** Throw it away (see {@link AsyncLog#getDropped()}), so the connection isn't slowed down. */
+		DROP,
+		/** Wait for room, so nothing is lost. */
+		BLOCK
+	}
+
+	/** One log line. */
+	public static final class Event
+	{
+		/** When it was logged (as from {@link System#currentTimeMillis()}.) */
+		public final long time;
+
+		/** Where it came from, e.g. "Server", or a connection's address. */
+		public final String source;
+
+		/** Whether it's from an error log. */
+		public final boolean error;
+
+		/** The line, without its line terminator, or null if the event marks the end of the source's log (see {@link AsyncLog#end}.) */
+		public final String message;
+
+		Event(long time, String source, boolean error, String message) {
+			this.time = time;
+			this.source = source;
+			this.error = error;
+			this.message = message;
+		}
+	}
+
+	/** Where the log's events end up. Only called by the log's writer thread. */
+	public interface Sink extends Closeable
+	{
+		/**
+		 * @param batch - The next events, in the order they were logged. Only valid during the call.
+		 * @throws IOException - If they couldn't be written. (The log carries on with the next batch.)
+		 */
+		void write(List<Event> batch) throws IOException;
+	}
+
+	/** The source of the server's own log lines. */
+	public static final String SERVER = "Server";
+
+	/** Most events written (and flushed) as one batch. */
+	private static final int BATCH_SIZE = 256;
+
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone( ZoneId.systemDefault() );
+
+
+	/** What to do when the buffer is full. */
+	public final Policy policy;
+
+	/** The ring buffer: each slot's sequence number says whether it's free for the producer at that position,
+	    or holds an event for the consumer at that position (D. Vyukov's bounded queue, with a single consumer.) */
+	private final AtomicReferenceArray<Event> events;
+	private final AtomicLongArray sequences;
+	private final int mask;
+
+	/** The next position to put an event in. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** The next position to take an event from. Only used by {@link #writer}. */
+	private long head = 0;
+
+	private final Sink sink;
+	private final Thread writer;
+
+	/** Whether {@link #writer} is (about to be) parked, waiting for events. */
+	private volatile boolean sleeping = false;
+	private volatile boolean closed = false;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private volatile IOException error = null;
+
+
+	/**
+	 * Starts the log's writer thread, writing each event as a line of text,
+	 * e.g. "2015-05-12 14:03:27.120 [127.0.0.1 (2)] -- Sending Message...", or with "ERR" before the message for error logs.
+	 *
+	 * @param capacity - The most events held at once; rounded up to a power of 2.
+	 * @param policy - What to do when the buffer is full.
+	 * @param output - Where the log is written. Flushed after each batch, and closed by {@link #close()}.
+	 */
+	public AsyncLog(int capacity, Policy policy, Writer output) {
+		this(capacity, policy, new Sink() {
+			private final StringBuilder builder = new StringBuilder(256);
+
+			public void write(List<Event> batch) throws IOException {
+				for( Event event : batch ) {
+					if( event.message == null )
+						continue;
+					builder.setLength(0);
+					TIMESTAMP.formatTo( Instant.ofEpochMilli(event.time), builder );
+					builder.append(" [").append(event.source).append(event.error ? "] ERR " : "] ").append(event.message).append('\n');
+					output.append(builder);
+				}
+				output.flush();
+			}
+
+			public void close() throws IOException {
+				output.close();
+			}
+		});
+	}
+
+	/**
+	 * Starts the log's writer thread.
+	 *
+	 * @param capacity - The most events held at once; rounded up to a power of 2.
+	 * @param policy - What to do when the buffer is full.
+	 * @param sink - Where the events go. Closed by {@link #close()}.
+	 */
+	public AsyncLog(int capacity, Policy policy, Sink sink) {
+		int size = Integer.highestOneBit( Math.max(capacity, 2) - 1 ) << 1;
+		this.policy = policy;
+		this.events = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for( int i = 0; i < size; i++ )
+			sequences.set(i, i);
+		this.mask = size - 1;
+		this.sink = sink;
+		this.writer = new Thread(this::drain, "Log Writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+
+	/**
+	 * Logs one line.
+	 *
+	 * @param source - Where it came from, e.g. "Server", or a connection's address.
+	 * @param error - Whether it's from an error log.
+	 * @param message - The line, without its line terminator. (Null only from {@link #end}.)
+	 * @return false if it was dropped, because the buffer was full (or the log is closed.)
+	 */
+	public boolean log(String source, boolean error, String message) {
+		if( closed ) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		Event event = new Event(System.currentTimeMillis(), source, error, message);
+		for( boolean waited = false; ; ) {
+			long pos = tail.get();
+			int i = (int) pos & mask;
+			long diff = sequences.get(i) - pos;
+			if( diff == 0 ) {
+				if( tail.compareAndSet(pos, pos + 1) ) {
+					events.lazySet(i, event);
+					sequences.lazySet(i, pos + 1); //now the writer may take it
+					if( sleeping ) {
+						sleeping = false;
+						LockSupport.unpark(writer);
+					}
+					return true;
+				}
+			} else if( diff < 0 ) { //full
+				if( policy == Policy.DROP || closed ) {
+					dropped.incrementAndGet();
+					return false;
+				}
+				if( !waited ) {
+					waited = true;
+					blocked.incrementAndGet();
+				}
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(50_000);
+			} //else: another thread just took this position; try the next one
+		}
+	}
+
+	/**
+	 * Marks the end of a source's log, e.g. once its connection has closed, with an event whose message is null.
+	 *
+	 * @param source - Where the lines came from.
+	 */
+	public void end(String source) {
+		log(source, false, null);
+	}
+
+	/**
+	 * @param source - Where the lines come from, e.g. a connection's address.
+	 * @param error - Whether it's an error log.
+	 * @return A stream that logs each line written to it (e.g. for {@link HttpConnectionHandler#redirectLogs}.)
+	 *         A line is logged once its '\n' is written.
+	 */
+	public OutputStream stream(String source, boolean error) {
+		return new OutputStream() {
+			private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+
+			public synchronized void write(int b) {
+				if( b == '\n' ) {
+					int n = line.size();
+					byte[] bytes = line.toByteArray();
+					log( source, error, new String(bytes, 0, n > 0 && bytes[n - 1] == '\r' ? n - 1 : n) );
+					line.reset();
+				} else {
+					line.write(b);
+				}
+			}
+
+			public synchronized void write(byte[] b, int off, int len) {
+				for( int end = off + len; off < end; off++ )
+					write( b[off] );
+			}
+		};
+	}
+
+
+	/** The writer thread: takes events out in batches, and hands them to the sink. */
+	private void drain() {
+		List<Event> batch = new ArrayList<>(BATCH_SIZE);
+		while( true ) {
+			for( Event event; batch.size() < BATCH_SIZE && (event = poll()) != null; )
+				batch.add(event);
+			int n = batch.size();
+			if( n > 0 ) {
+				try {
+					sink.write(batch);
+					written.addAndGet(n);
+				} catch(IOException | RuntimeException e) {
+					error = e instanceof IOException ? (IOException) e : new IOException(e); //keep draining, so producers waiting for room don't wait forever
+					failed.addAndGet(n);
+				}
+				batch.clear();
+			} else {
+				if( closed && tail.get() == head )
+					return;
+				sleeping = true;
+				if( tail.get() == head ) //nothing came in while sleeping was being set
+					LockSupport.parkNanos(100_000_000);
+				sleeping = false;
+			}
+		}
+	}
+
+	/** @return The next event, or null if there isn't one ready. */
+	private Event poll() {
+		int i = (int) head & mask;
+		if( sequences.get(i) != head + 1 )
+			return null;
+		Event event = events.get(i);
+		events.lazySet(i, null);
+		sequences.lazySet(i, head + mask + 1); //free for the producer one lap later
+		head++;
+		return event;
+	}
+
+
+	/** @return The number of lines written so far. */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/** @return The number of lines dropped so far, because the buffer was full. */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/** @return The number of lines so far in batches the sink failed to write (see {@link Sink#write}.) */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/** @return The number of lines that had to wait for room so far. */
+	public long getBlocked() {
+		return blocked.get();
+	}
+
+	/** @return The number of lines waiting to be written. */
+	public int getPending() {
+		return (int) Math.max(tail.get() - head, 0);
+	}
+
+	/** Writes whatever is still in the buffer, then closes the sink. Lines logged afterwards are dropped. */
+	public void close() throws IOException {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sink.close();
+		if( error != null )
+			throw error;
+	}
+
+	public String toString() {
+		return String.format( "%d lines written, %d pending (of %d), %s when full (dropped: %d, blocked: %d, failed: %d)%s",
+				getWritten(), getPending(), mask + 1, policy.name().toLowerCase(), getDropped(), getBlocked(), getFailed(),
+				error != null ? ", last error: " + error.getMessage() : "" );
+	}
+}
@@ -0,0 +1,108 @@
+package com.mathhead200.web_server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A range of bytes requested with the "Range" header (RFC 7233), e.g. "bytes=0-499" or "bytes=-500".
+ *
+ * @author Christopher D'Angelo
+ */
+public final class ByteRange
+{
+	/** More ranges than this in one request are ignored (the whole file is sent), as a guard against abuse. */
+	public static final int MAX_RANGES = 32;
+
+	/** The position of the first byte in the range. */
+	public final long first;
+
+	/** The position of the last byte in the range (inclusive.) */
+	public final long last;
+
+
+	private ByteRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+
+	/** @return The number of bytes in this range. */
+	public long length() {
+		return last - first + 1;
+	}
+
+	/**
+	 * @param total - The length of the whole representation.
+	 * @return The value of the "Content-Range" header for this range, e.g. "bytes 0-499/1234".
+	 */
+	public String toContentRange(long total) {
+		return "bytes " + first + "-" + last + "/" + total;
+	}
+
+
+	/**
+	 * Parses the value of a "Range" header.
+	 *
+	 * @param header - The header's value, e.g. "bytes=0-99,200-".
+	 * @param total - The length of the whole representation.
+	 * @return The satisfiable ranges, in the order requested;
+	 * 	an empty list if none of them are satisfiable ("416 Range Not Satisfiable");
+	 * 	or null if the header is invalid, or should otherwise be ignored (so the whole representation is sent.)
+	 */
+	public static List<ByteRange> parse(String header, long total) {
+		header = header.trim();
+		if( !header.regionMatches(true, 0, "bytes=", 0, 6) )
+			return null; //unknown unit
+		String[] specs = header.substring(6).split(",");
+		if( specs.length > MAX_RANGES )
+			return null;
+		List<ByteRange> ranges = new ArrayList<>(specs.length);
+		try {
+			for( String spec : specs ) {
+				spec = spec.trim();
+				int dash = spec.indexOf('-');
+				if( dash < 0 )
+					return null;
+				String a = spec.substring(0, dash).trim(), b = spec.substring(dash + 1).trim();
+				long first, last;
+				if( a.isEmpty() ) {
+					//suffix range: the last b bytes
+					long suffix = parseDigits(b);
+					if( suffix == 0 )
+						continue;
+					first = Math.max(0, total - suffix);
+					last = total - 1;
+				} else {
+					first = parseDigits(a);
+					last = b.isEmpty() ? Long.MAX_VALUE : parseDigits(b);
+					if( last < first )
+						return null;
+					if( first >= total )
+						continue; //unsatisfiable, but others may not be
+					last = Math.min(last, total - 1);
+				}
+				if( total > 0 )
+					ranges.add( new ByteRange(first, last) );
+			}
+		} catch(NumberFormatException e) {
+			return null;
+		}
+		//overlapping ranges would let a small request ask for many copies of a file; just send it once
+		for( int i = 0; i < ranges.size(); i++ )
+			for( int j = i + 1; j < ranges.size(); j++ )
+				if( ranges.get(i).first <= ranges.get(j).last && ranges.get(j).first <= ranges.get(i).last )
+					return null;
+		return ranges;
+	}
+
+	/** Like {@link Long#parseLong(String)}, but only accepts (one or more) digits. */
+	private static long parseDigits(String s) {
+		if( s.isEmpty() )
+			throw new NumberFormatException("empty");
+		for( int i = 0; i < s.length(); i++ )
+			if( s.charAt(i) < '0' || s.charAt(i) > '9' )
+				throw new NumberFormatException(s);
+		return Long.parseLong(s);
+	}
+}
@@ -0,0 +1,76 @@
+package com.mathhead200.web_server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Decides the "Cache-Control" header sent with static files and directory indexes,
+ * from the rules in the '.cache-control' file. Each line is a path prefix or file extension, then the header's value:
+ * <pre>
+ * /images/   max-age=604800, public
+ * *.css      max-age=86400
+ * *.html     no-cache
+ * </pre>
+ * The longest matching path prefix wins; failing that, the extension's rule; failing that, the default (if any.)
+ *
+ * @author Christopher D'Angelo
+ */
+public final class CacheControlRules
+{
+	/** Path prefix rules, longest prefix first. */
+	private final List<String[]> prefixes;
+
+	/** Extension rules, by lower case extension. */
+	private final Map<String, String> extensions;
+
+	/** The value used when no rule matches. May be null (no header.) */
+	public final String defaultValue;
+
+
+	/**
+	 * @param rules - Lines in the '.cache-control' format. Blank lines and lines starting with '#' are skipped.
+	 * @param defaultValue - The value used when no rule matches, or null for no header.
+	 */
+	public CacheControlRules(List<String> rules, String defaultValue) {
+		List<String[]> prefixes = new ArrayList<>();
+		Map<String, String> extensions = new HashMap<>();
+		for( String line : rules ) {
+			line = line.trim();
+			if( line.isEmpty() || line.startsWith("#") )
+				continue;
+			String[] arr = line.split("\\s+", 2);
+			if( arr.length < 2 )
+				continue;
+			if( arr[0].startsWith("*.") )
+				extensions.put( arr[0].substring(2).toLowerCase(), arr[1] );
+			else
+				prefixes.add(arr);
+		}
+		Collections.sort( prefixes, (a, b) -> b[0].length() - a[0].length() );
+		this.prefixes = prefixes;
+		this.extensions = extensions;
+		this.defaultValue = (defaultValue == null || defaultValue.trim().isEmpty() ? null : defaultValue.trim());
+	}
+
+
+	/**
+	 * @param relPath - The requested path, relative to ROOT_DIR (e.g. "/images/cat.png".)
+	 * @param ext - The file's extension, or null (e.g. for directories.)
+	 * @return The "Cache-Control" value, or null if none should be sent.
+	 */
+	public String get(String relPath, String ext) {
+		for( String[] rule : prefixes )
+			if( relPath.startsWith(rule[0]) )
+				return rule[1];
+		if( ext != null ) {
+			String value = extensions.get( ext.toLowerCase() );
+			if( value != null )
+				return value;
+		}
+		return defaultValue;
+	}
+}
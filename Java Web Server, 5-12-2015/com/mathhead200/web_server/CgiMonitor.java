@@ -0,0 +1,332 @@
+package com.mathhead200.web_server;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+
+/**
+ * Keeps CGI scripts from holding on to a connection forever. A script is killed (along with any processes it started) when:
+ * <ul>
+ * <li>it's been running for longer than {@link #timeout} (including the time taken to send its output),</li>
+ * <li>it hasn't written any output, or read any input, for {@link #idleTimeout}, or</li>
+ * <li>it's written more than {@link #maxOutputBytes} of output.</li>
+ * </ul>
+ * If that happens before its response has begun, the client gets "504 Gateway Timeout" (or "502 Bad Gateway" for too much output);
+ * otherwise the response is cut short. Also counts, for each script, how long its requests took and how often it was killed.
+ * Safe to share between connection threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class CgiMonitor
+{
+	/** Why a script was killed. */
+	public enum Violation
+	{
+		TIMEOUT("504 Gateway Timeout"),
+		IDLE("504 Gateway Timeout"),
+		OUTPUT("502 Bad Gateway");
+
+		/** The status to respond with, if the response hasn't begun yet. */
+		public final String status;
+
+		Violation(String status) {
+			this.status = status;
+		}
+	}
+
+	/** Counters for one script. */
+	public static final class Stats
+	{
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLong[] kills = new AtomicLong[Violation.values().length];
+
+		Stats() {
+			for( int i = 0; i < kills.length; i++ )
+				kills[i] = new AtomicLong();
+		}
+
+		void record(long nanos, Violation violation) {
+			requests.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			for( long max = maxNanos.get(); nanos > max && !maxNanos.compareAndSet(max, nanos); max = maxNanos.get() )
+				;
+			if( violation != null )
+				kills[violation.ordinal()].incrementAndGet();
+		}
+
+		/** @return How many requests the script has finished (or been killed during.) */
+		public long getRequests() {
+			return requests.get();
+		}
+
+		/** @return The average time (in milliseconds) from starting the script to its response being sent. */
+		public double getMeanMillis() {
+			long n = requests.get();
+			return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+		}
+
+		/** @return The longest time (in milliseconds) from starting the script to its response being sent. */
+		public double getMaxMillis() {
+			return maxNanos.get() / 1e6;
+		}
+
+		/** @return How many times the script has been killed for the given reason. */
+		public long getKills(Violation violation) {
+			return kills[violation.ordinal()].get();
+		}
+
+		public String toString() {
+			return String.format( "%d requests, %.1f ms mean, %.1f ms max (killed: %d timeouts, %d idle, %d output)",
+					getRequests(), getMeanMillis(), getMaxMillis(),
+					getKills(Violation.TIMEOUT), getKills(Violation.IDLE), getKills(Violation.OUTPUT) );
+		}
+	}
+
+
+	/** How long (in milliseconds) a script may run. 0 means no limit. */
+	public final long timeout;
+
+	/** How long (in milliseconds) a script may go without writing output or reading input. 0 means no limit. */
+	public final long idleTimeout;
+
+	/** Most bytes of output (header included) a script may write. 0 means no limit. */
+	public final long maxOutputBytes;
+
+	/** How often (in milliseconds) running scripts are checked against the time limits. */
+	private final long checkInterval;
+
+	/** Checks the time limits. Null if there are none. */
+	private final ScheduledExecutorService watchdog;
+
+	/** Counters, by script path. */
+	private final Map<String, Stats> scripts = new ConcurrentHashMap<>();
+
+	private final Stats total = new Stats();
+
+
+	/**
+	 * @param timeout - How long (in milliseconds) a script may run, or 0 for no limit.
+	 * @param idleTimeout - How long (in milliseconds) a script may go without any output or input, or 0 for no limit.
+	 * @param maxOutputBytes - The most output a script may write, or 0 for no limit.
+	 */
+	public CgiMonitor(long timeout, long idleTimeout, long maxOutputBytes) {
+		this.timeout = Math.max(timeout, 0);
+		this.idleTimeout = Math.max(idleTimeout, 0);
+		this.maxOutputBytes = maxOutputBytes > 0 ? maxOutputBytes : Long.MAX_VALUE;
+		long shortest = Math.min( this.timeout > 0 ? this.timeout : Long.MAX_VALUE, this.idleTimeout > 0 ? this.idleTimeout : Long.MAX_VALUE );
+		this.checkInterval = Math.max( 10, Math.min(shortest / 10, 1000) );
+		if( shortest == Long.MAX_VALUE ) {
+			this.watchdog = null;
+		} else {
+			this.watchdog = Executors.newSingleThreadScheduledExecutor( (task) -> {
+				Thread thread = new Thread(task, "CGI Watchdog");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+
+	/**
+	 * Starts watching a script that has just been started.
+	 * Its output (and input) must be read through {@link Watch#output(InputStream)} (and {@link Watch#input(InputStream)}),
+	 * and the watch closed once its response has been sent.
+	 *
+	 * @param script - The script's path, which its counters are kept under.
+	 * @param process - The script.
+	 * @return The watch.
+	 */
+	public Watch watch(String script, Process process) {
+		return new Watch(script, process);
+	}
+
+	/**
+	 * One running script.
+	 */
+	public final class Watch implements Closeable
+	{
+		private final String script;
+		private final Process process;
+		private final long started = System.nanoTime();
+		private final ScheduledFuture<?> check;
+
+		/** When the current read of the script's output began, or 0 if it isn't being waited on. */
+		private volatile long waitingSince = 0;
+
+		/** When the script last read some input. */
+		private volatile long lastInput = started;
+
+		private volatile Violation violation = null;
+		private boolean closed = false;
+
+		Watch(String script, Process process) {
+			this.script = script;
+			this.process = process;
+			this.check = watchdog == null ? null : watchdog.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * @param output - The script's standard output.
+		 * @return The output, counted and timed. Reading past {@link #maxOutputBytes} kills the script and throws an IOException.
+		 */
+		public InputStream output(InputStream output) {
+			return new FilterInputStream(output) {
+				private long count = 0;
+
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					if( violation != null )
+						throw new IOException("CGI script killed: " + violation);
+					waitingSince = System.nanoTime();
+					int n;
+					try {
+						n = in.read(b, off, len);
+					} finally {
+						waitingSince = 0;
+					}
+					if( n > 0 && (count += n) > maxOutputBytes ) {
+						kill(Violation.OUTPUT);
+						throw new IOException("CGI script wrote more than " + maxOutputBytes + " bytes");
+					}
+					return n;
+				}
+
+				public long skip(long n) throws IOException {
+					int skipped = read( new byte[(int) Math.min(Math.max(n, 0), 4096)] );
+					return Math.max(skipped, 0);
+				}
+			};
+		}
+
+		/**
+		 * @param input - What's fed to the script's standard input.
+		 * @return The input, which keeps the script from counting as idle while it's being read.
+		 */
+		public InputStream input(InputStream input) {
+			return new FilterInputStream(input) {
+				public int read() throws IOException {
+					int b = in.read();
+					lastInput = System.nanoTime();
+					return b;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = in.read(b, off, len);
+					lastInput = System.nanoTime();
+					return n;
+				}
+			};
+		}
+
+		/** @return Why the script was killed, or null if it hasn't been. */
+		public Violation getViolation() {
+			return violation;
+		}
+
+		/** Runs on the watchdog's thread. */
+		private void check() {
+			long now = System.nanoTime();
+			if( timeout > 0 && now - started > TimeUnit.MILLISECONDS.toNanos(timeout) ) {
+				kill(Violation.TIMEOUT);
+			} else if( idleTimeout > 0 ) {
+				long since = waitingSince;
+				if( since != 0 && now - Math.max(since, lastInput) > TimeUnit.MILLISECONDS.toNanos(idleTimeout) )
+					kill(Violation.IDLE);
+			}
+		}
+
+		private synchronized void kill(Violation violation) {
+			if( this.violation != null || closed )
+				return;
+			this.violation = violation;
+			if( check != null )
+				check.cancel(false);
+			destroyTree(process);
+		}
+
+		/** Stops watching the script, and counts its request. */
+		public synchronized void close() {
+			if( closed )
+				return;
+			closed = true;
+			if( check != null )
+				check.cancel(false);
+			long nanos = System.nanoTime() - started;
+			scripts.computeIfAbsent( script, (key) -> new Stats() ).record(nanos, violation);
+			total.record(nanos, violation);
+		}
+	}
+
+
+	/**
+	 * Kills a process, and every process it started (when the JVM can find them, i.e. Java 9 and later.)
+	 *
+	 * @param process - The process.
+	 */
+	public static void destroyTree(Process process) {
+		//Process.descendants() (and ProcessHandle) are looked up reflectively, since the server still runs on Java 8
+		List<Object> descendants = new ArrayList<>();
+		Method destroyForcibly = null;
+		try {
+			destroyForcibly = Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly");
+			Stream<?> stream = (Stream<?>) Process.class.getMethod("descendants").invoke(process);
+			stream.forEach(descendants::add);
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			//Java 8, or a Process that isn't an OS process (e.g. a CgiWorkerPool request)
+		}
+		//the parent first, so it can't start any more children; they're remembered from before it was killed
+		process.destroyForcibly();
+		for( Object descendant : descendants ) {
+			try {
+				destroyForcibly.invoke(descendant);
+			} catch(ReflectiveOperationException e) {
+				//already gone
+			}
+		}
+	}
+
+
+	/** @return Counters for each script that's been run, by path. */
+	public Map<String, Stats> getScripts() {
+		return new TreeMap<>(scripts);
+	}
+
+	/** @return Counters for one script, or null if it hasn't been run. */
+	public Stats getStats(String script) {
+		return scripts.get(script);
+	}
+
+	/** @return Counters for all scripts together. */
+	public Stats getTotal() {
+		return total;
+	}
+
+	public String toString() {
+		return String.format( "%s (limits: %s ms, %s ms idle, %s bytes)", total,
+				limit(timeout), limit(idleTimeout), maxOutputBytes == Long.MAX_VALUE ? "-" : Long.toString(maxOutputBytes) );
+	}
+
+	private static String limit(long max) {
+		return max == 0 ? "-" : Long.toString(max);
+	}
+}
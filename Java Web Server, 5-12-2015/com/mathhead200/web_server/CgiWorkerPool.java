@@ -0,0 +1,484 @@
+package com.mathhead200.web_server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A pool of long-lived interpreter processes (e.g. perl) that run CGI scripts one request at a time,
+ * so a request doesn't pay for starting a new interpreter. Configured per interpreter in the '.cgi-workers' file.
+ * <p>
+ * Each worker talks a framed protocol (like FastCGI, but simpler) over its standard input and output.
+ * A frame is a type byte, a 4 byte (big-endian) length, then that many bytes:
+ * <ul>
+ * <li>To the worker: 'S' starts a request (the script's path, a NUL, then the working directory),
+ *     'V' its environment (NAME=value pairs, each ending with a NUL), then 'I' its standard input,
+ *     ending with an empty 'I'. 'K' asks whether the worker is still healthy.</li>
+ * <li>From the worker: 'O' standard output, 'E' standard error, and finally 'X' the exit status (4 bytes.)
+ *     'K' answers a health check.</li>
+ * </ul>
+ * A worker is replaced after a number of requests, when it fails a health check, or whenever a request on it doesn't finish cleanly.
+ * Safe to share between connection threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class CgiWorkerPool implements Closeable
+{
+	private static final byte START = 'S', ENV = 'V', INPUT = 'I', PING = 'K', OUTPUT = 'O', ERROR = 'E', EXIT = 'X';
+
+	/** How long a worker has to answer a health check. */
+	private static final long PING_TIMEOUT = 2000;
+
+
+	/** The interpreter (as named by a script's "#!" line) whose scripts this pool runs. */
+	public final String interpreter;
+
+	/** The command that starts a worker. */
+	public final List<String> command;
+
+	/** Fewest workers kept running, even when idle. */
+	public final int minWorkers;
+
+	/** Most workers running at once; further requests wait for one to be free. */
+	public final int maxWorkers;
+
+	/** Requests a worker handles before it's replaced (e.g. in case a script leaks memory.) 0 means no limit. */
+	public final int maxRequests;
+
+	/** How long (in milliseconds) a request waits for a free worker. */
+	public final long acquireTimeout;
+
+	/** Working directory for the workers themselves, or null for the server's. */
+	private final File directory;
+
+	/** One permit per worker that may still be taken out of the pool (to run a request, or be checked.) */
+	private final Semaphore permits;
+
+	/** Workers waiting for a request, most recently used first. Guarded by <code>this</code>. */
+	private final Deque<Worker> idle = new ArrayDeque<>();
+
+	/** Every running worker. Guarded by <code>this</code>. */
+	private int live = 0;
+
+	/** Whether {@link #close()} has been called; workers are no longer kept once it has. Set while holding <code>this</code>. */
+	private volatile boolean closed = false;
+
+	private final ScheduledExecutorService healthChecks;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong recycled = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+
+	/**
+	 * Starts the pool, and a thread that checks idle workers' health (and keeps {@link #minWorkers} running.)
+	 *
+	 * @param interpreter - The interpreter this pool stands in for, e.g. "perl".
+	 * @param command - The command that starts a worker, e.g. "perl cgi-worker.pl".
+	 * @param directory - The workers' working directory, or null for the server's.
+	 * @param minWorkers - Fewest workers kept running.
+	 * @param maxWorkers - Most workers running at once.
+	 * @param maxRequests - Requests a worker handles before it's replaced, or 0 for no limit.
+	 * @param acquireTimeout - How long (in milliseconds) a request waits for a free worker.
+	 * @param healthCheckInterval - How often (in milliseconds) idle workers are checked.
+	 */
+	public CgiWorkerPool(String interpreter, List<String> command, File directory, int minWorkers, int maxWorkers,
+			int maxRequests, long acquireTimeout, long healthCheckInterval) {
+		if( maxWorkers < 1 || minWorkers > maxWorkers )
+			throw new IllegalArgumentException("need 1 <= maxWorkers and minWorkers <= maxWorkers");
+		this.interpreter = interpreter;
+		this.command = Collections.unmodifiableList( new ArrayList<>(command) );
+		this.directory = directory;
+		this.minWorkers = minWorkers;
+		this.maxWorkers = maxWorkers;
+		this.maxRequests = maxRequests;
+		this.acquireTimeout = acquireTimeout;
+		this.permits = new Semaphore(maxWorkers, true);
+		this.healthChecks = Executors.newSingleThreadScheduledExecutor( (task) -> {
+			Thread thread = new Thread(task, "cgi-workers-" + interpreter);
+			thread.setDaemon(true);
+			return thread;
+		});
+		healthChecks.scheduleWithFixedDelay(this::checkHealth, 0, healthCheckInterval, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Runs a script on a worker.
+	 * The returned process is used like one from a {@link ProcessBuilder}: write the script's input to
+	 * {@link Process#getOutputStream()} (and close it), and read its output until end-of-stream.
+	 * {@link Process#destroy()} must be called once it's done with; that returns the worker to the pool,
+	 * or replaces it if the request didn't finish cleanly.
+	 *
+	 * @param script - The script to run.
+	 * @param workingDirectory - The script's working directory.
+	 * @param env - The script's environment.
+	 * @return The running script, or null if no worker became free in time.
+	 * @throws IOException - If a worker can't be started, or stops responding.
+	 * @throws InterruptedException - If interrupted while waiting for a free worker.
+	 */
+	public Process start(Path script, File workingDirectory, Map<String, String> env) throws IOException, InterruptedException {
+		if( !permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS) ) {
+			timeouts.incrementAndGet();
+			return null;
+		}
+		byte[] start = (script + "\0" + workingDirectory).getBytes(StandardCharsets.UTF_8);
+		StringBuilder vars = new StringBuilder();
+		for( Map.Entry<String, String> var : env.entrySet() )
+			vars.append( var.getKey() ).append('=').append( var.getValue() ).append('\0');
+		byte[] environment = vars.toString().getBytes(StandardCharsets.UTF_8);
+
+		for( int attempt = 0; ; attempt++ ) {
+			Worker worker;
+			synchronized(this) {
+				worker = idle.pollFirst();
+			}
+			try {
+				if( worker == null )
+					worker = spawn();
+			} catch(IOException e) {
+				permits.release();
+				throw e;
+			}
+			try {
+				worker.send(START, start, 0, start.length);
+				worker.send(ENV, environment, 0, environment.length);
+				worker.toWorker.flush();
+			} catch(IOException e) {
+				//an idle worker may have died since it was last checked; a new one gets one more try
+				discard(worker);
+				if( attempt > 0 )
+					throw e;
+				if( !permits.tryAcquire() )
+					throw e;
+				continue;
+			}
+			worker.requests++;
+			requests.incrementAndGet();
+			return new Request(worker);
+		}
+	}
+
+	/** Starts a new worker. The caller must hold a permit for it. */
+	private Worker spawn() throws IOException {
+		Worker worker = new Worker();
+		synchronized(this) {
+			live++;
+		}
+		started.incrementAndGet();
+		return worker;
+	}
+
+	/** Returns a worker to the pool (or replaces it, if it's handled enough requests, or stops it, if the pool's been closed), and its permit. */
+	private void release(Worker worker) {
+		if( maxRequests > 0 && worker.requests >= maxRequests ) {
+			recycled.incrementAndGet();
+			discard(worker);
+		} else if( makeIdle(worker) )
+			permits.release();
+		else
+			discard(worker);
+	}
+
+	/** @return Whether the worker was added to {@link #idle}, which it isn't once the pool's been closed. */
+	private synchronized boolean makeIdle(Worker worker) {
+		if( closed )
+			return false;
+		idle.addFirst(worker);
+		return true;
+	}
+
+	/** Stops a worker, and releases its permit. */
+	private void discard(Worker worker) {
+		kill(worker);
+		permits.release();
+	}
+
+	/** Stops a worker. */
+	private void kill(Worker worker) {
+		worker.process.destroyForcibly();
+		synchronized(this) {
+			live--;
+		}
+	}
+
+	/** Pings each idle worker, replacing any that don't answer, then starts workers until there are {@link #minWorkers}. */
+	private void checkHealth() {
+		int count;
+		synchronized(this) {
+			count = idle.size();
+		}
+		for( int i = 0; i < count && permits.tryAcquire(); i++ ) {
+			Worker worker;
+			synchronized(this) {
+				worker = idle.pollLast(); //least recently used first
+			}
+			if( worker == null ) {
+				permits.release();
+				break;
+			}
+			if( !worker.ping() ) {
+				failed.incrementAndGet();
+				discard(worker);
+			} else if( makeIdle(worker) )
+				permits.release();
+			else
+				discard(worker);
+		}
+		while( !closed && getLive() < minWorkers && permits.tryAcquire() ) {
+			try {
+				release( spawn() );
+			} catch(IOException e) {
+				failed.incrementAndGet();
+				permits.release();
+				break;
+			}
+		}
+	}
+
+
+	/** @return The number of running workers. */
+	public synchronized int getLive() {
+		return live;
+	}
+
+	/** @return The number of workers waiting for a request. */
+	public synchronized int getIdle() {
+		return idle.size();
+	}
+
+	/** Stops the health checks, and every idle worker. (Busy ones are stopped as their requests finish.) */
+	public void close() {
+		healthChecks.shutdownNow();
+		List<Worker> workers;
+		synchronized(this) {
+			closed = true;
+			workers = new ArrayList<>(idle);
+			idle.clear();
+		}
+		for( Worker worker : workers )
+			kill(worker);
+	}
+
+	public String toString() {
+		return String.format( "%s: %d workers (%d idle, max %d), %d requests (started: %d, recycled: %d, failed: %d, timeouts: %d)",
+				interpreter, getLive(), getIdle(), maxWorkers, requests.get(), started.get(), recycled.get(), failed.get(), timeouts.get() );
+	}
+
+
+	/** One interpreter process. */
+	private final class Worker
+	{
+		final Process process;
+		final DataOutputStream toWorker;
+		final DataInputStream fromWorker;
+
+		/** Requests handled so far. Only touched by whoever has this worker out of the pool. */
+		int requests = 0;
+
+		Worker() throws IOException {
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.directory(directory);
+			builder.redirectError(ProcessBuilder.Redirect.INHERIT); //only the worker's own complaints; scripts' go in 'E' frames
+			process = builder.start();
+			toWorker = new DataOutputStream( new BufferedOutputStream(process.getOutputStream()) );
+			fromWorker = new DataInputStream( new BufferedInputStream(process.getInputStream()) );
+		}
+
+		void send(byte type, byte[] data, int off, int len) throws IOException {
+			toWorker.writeByte(type);
+			toWorker.writeInt(len);
+			toWorker.write(data, off, len);
+		}
+
+		/** @return true if the worker answered a health check in time. */
+		boolean ping() {
+			try {
+				send(PING, new byte[0], 0, 0);
+				toWorker.flush();
+				long deadline = System.currentTimeMillis() + PING_TIMEOUT;
+				while( fromWorker.available() < 5 ) { //(a pipe can't be read with a timeout, so it's polled)
+					if( !process.isAlive() || System.currentTimeMillis() > deadline )
+						return false;
+					Thread.sleep(10);
+				}
+				return fromWorker.readByte() == PING && fromWorker.readInt() == 0;
+			} catch(IOException e) {
+				return false;
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+
+	/**
+	 * One request, running on a worker, made to look like a {@link Process} so it can be handled like any other CGI script.
+	 * Its standard error is separated out of the worker's output as the standard output is read.
+	 */
+	private final class Request extends Process
+	{
+		private final Worker worker;
+		private final LogPipe err = new LogPipe();
+		private volatile boolean exited = false, inputClosed = false;
+
+		/** Set by the first {@link #destroy()}; the watchdog and the connection's thread may both call it. */
+		private final AtomicBoolean done = new AtomicBoolean();
+		private volatile int exitStatus;
+
+		/** The script's standard input, sent as 'I' frames. */
+		private final OutputStream input = new OutputStream() {
+			public void write(int b) throws IOException {
+				write( new byte[] { (byte) b }, 0, 1 );
+			}
+			public void write(byte[] b, int off, int len) throws IOException {
+				if( inputClosed )
+					throw new IOException("input closed");
+				if( len > 0 ) //an empty frame would end the input
+					worker.send(INPUT, b, off, len);
+			}
+			public void flush() throws IOException {
+				worker.toWorker.flush();
+			}
+			public void close() throws IOException {
+				if( inputClosed )
+					return;
+				worker.send(INPUT, new byte[0], 0, 0);
+				worker.toWorker.flush();
+				inputClosed = true;
+			}
+		};
+
+		/** The script's standard output: the contents of 'O' frames, until the 'X' frame. */
+		private final InputStream output = new InputStream() {
+			/** Bytes left in the current 'O' frame. */
+			private int remaining = 0;
+
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				if( len == 0 )
+					return 0;
+				try {
+					while( remaining == 0 ) {
+						if( exited )
+							return -1;
+						nextFrame();
+					}
+					int n = worker.fromWorker.read( b, off, Math.min(len, remaining) );
+					if( n < 0 )
+						throw new EOFException("CGI worker ended mid-request");
+					remaining -= n;
+					return n;
+				} catch(IOException e) {
+					closeErr();
+					throw e;
+				}
+			}
+
+			public int available() throws IOException {
+				return exited ? 0 : Math.min( remaining, worker.fromWorker.available() );
+			}
+
+			private void nextFrame() throws IOException {
+				byte type = worker.fromWorker.readByte();
+				int length = worker.fromWorker.readInt();
+				if( type == OUTPUT ) {
+					remaining = length;
+				} else if( type == ERROR ) {
+					byte[] message = new byte[length];
+					worker.fromWorker.readFully(message);
+					err.output.write(message);
+				} else if( type == EXIT && length == 4 ) {
+					exitStatus = worker.fromWorker.readInt();
+					exited = true;
+					closeErr();
+				} else {
+					throw new IOException("unexpected frame from CGI worker: " + (char) type);
+				}
+			}
+		};
+
+		Request(Worker worker) {
+			this.worker = worker;
+		}
+
+		private void closeErr() {
+			try {
+				err.output.close();
+			} catch(IOException e) {
+				//the pipe's close() doesn't throw
+			}
+		}
+
+		public OutputStream getOutputStream() {
+			return input;
+		}
+
+		public InputStream getInputStream() {
+			return output;
+		}
+
+		public InputStream getErrorStream() {
+			return err.input;
+		}
+
+		/** Only ends once the script's output has been read to the end. */
+		public int waitFor() throws InterruptedException {
+			while( isAlive() )
+				Thread.sleep(10);
+			return exitValue();
+		}
+
+		public int exitValue() {
+			if( !exited )
+				throw new IllegalThreadStateException("CGI script hasn't ended");
+			return exitStatus;
+		}
+
+		public boolean isAlive() {
+			return !exited && !done.get();
+		}
+
+		/** Returns the worker to the pool, if the request finished cleanly; otherwise it's replaced. */
+		public void destroy() {
+			if( !done.compareAndSet(false, true) )
+				return;
+			closeErr();
+			if( exited && inputClosed ) {
+				release(worker);
+			} else {
+				failed.incrementAndGet();
+				discard(worker);
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.mathhead200.web_server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Reads a message body sent with "Transfer-Encoding: chunked" (RFC 7230 4.1), without the chunk framing.
+ * Ends after the last (empty) chunk and its trailer, which is skipped, so the next request on the connection isn't touched.
+ * Closing this stream does not close the connection.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class ChunkedInputStream extends InputStream
+{
+	/** Longest chunk size line (or trailer field) allowed. */
+	private static final int MAX_LINE_LENGTH = 4096;
+
+	private final InputStream input;
+
+	/** Bytes of the current chunk not read yet. */
+	private long chunkRemaining = 0;
+
+	/** Whether a chunk has been read, so its CRLF has to be, before the next chunk's size. */
+	private boolean afterChunk = false;
+
+	private boolean ended = false;
+
+
+	/** @param input - The connection's input stream, positioned at the start of the body. */
+	public ChunkedInputStream(InputStream input) {
+		this.input = input;
+	}
+
+
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if( len == 0 )
+			return 0;
+		if( ended || (chunkRemaining == 0 && !nextChunk()) )
+			return -1;
+		int n = input.read( b, off, (int) Math.min(len, chunkRemaining) );
+		if( n < 0 )
+			throw new EOFException("chunked request body ended " + chunkRemaining + " bytes early");
+		chunkRemaining -= n;
+		return n;
+	}
+
+	public int available() throws IOException {
+		return ended ? 0 : (int) Math.min( chunkRemaining, input.available() );
+	}
+
+	/** Does nothing; the connection is left open. */
+	public void close() {
+	}
+
+
+	/**
+	 * Reads the next chunk's size line.
+	 *
+	 * @return true if there's another chunk; false if that was the last one (and the trailer has been skipped.)
+	 * @throws IOException - If a read error occurs, or the framing is invalid.
+	 */
+	private boolean nextChunk() throws IOException {
+		if( afterChunk && !readLine().isEmpty() )
+			throw bad("missing CRLF after chunk");
+		String line = readLine();
+		int semi = line.indexOf(';'); //chunk extensions are ignored
+		String hex = (semi < 0 ? line : line.substring(0, semi)).trim();
+		if( hex.isEmpty() || hex.length() > 15 )
+			throw bad("invalid chunk size: " + line);
+		for( int i = 0; i < hex.length(); i++ )
+			if( Character.digit(hex.charAt(i), 16) < 0 )
+				throw bad("invalid chunk size: " + line);
+		long size = Long.parseLong(hex, 16);
+		if( size == 0 ) {
+			while( !readLine().isEmpty() ) //trailer fields
+				;
+			ended = true;
+			return false;
+		}
+		chunkRemaining = size;
+		afterChunk = true;
+		return true;
+	}
+
+	/** @return The next line, without its line ending. */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		for( int b; (b = input.read()) != '\n'; ) {
+			if( b < 0 )
+				throw new EOFException("chunked request body ended early");
+			if( line.length() == MAX_LINE_LENGTH )
+				throw bad("chunk size line too long");
+			line.append((char) b);
+		}
+		int n = line.length();
+		if( n > 0 && line.charAt(n - 1) == '\r' )
+			line.setLength(n - 1);
+		return line.toString();
+	}
+
+	private static IOException bad(String message) {
+		return new HttpRequestParser.RejectedException("400 Bad Request", message);
+	}
+}
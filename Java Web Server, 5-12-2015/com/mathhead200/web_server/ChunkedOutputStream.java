@@ -0,0 +1,64 @@
+package com.mathhead200.web_server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Writes a message body with "Transfer-Encoding: chunked" (RFC 7230 4.1),
+ * so a response can be sent before its length is known.
+ * Each write becomes one chunk, and {@link #finish()} ends the body.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class ChunkedOutputStream extends FilterOutputStream
+{
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private boolean finished = false;
+
+
+	/** @param output - The connection's output stream; the response header must already be written to it. */
+	public ChunkedOutputStream(OutputStream output) {
+		super(output);
+	}
+
+
+	public void write(int b) throws IOException {
+		write( new byte[] { (byte) b }, 0, 1 );
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if( finished )
+			throw new IOException("chunked body already finished");
+		if( len == 0 )
+			return; //a zero length chunk would end the body
+		out.write( Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII) );
+		out.write(CRLF);
+		out.write(b, off, len);
+		out.write(CRLF);
+	}
+
+	/**
+	 * Writes the last (empty) chunk, ending the body, and flushes.
+	 * Only call this once the whole body has been written successfully;
+	 * a body that's cut short should be left unfinished, so the client can tell it's incomplete.
+	 *
+	 * @throws IOException - If a write error occurs.
+	 */
+	public void finish() throws IOException {
+		if( finished )
+			return;
+		finished = true;
+		out.write(LAST_CHUNK);
+		out.flush();
+	}
+
+	/** Only flushes; the body isn't finished (see {@link #finish()}), and the connection is left open. */
+	public void close() throws IOException {
+		flush();
+	}
+}
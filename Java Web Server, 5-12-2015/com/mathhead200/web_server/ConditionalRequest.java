@@ -0,0 +1,104 @@
+package com.mathhead200.web_server;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+
+
+/**
+ * Entity tags, and the conditional request headers that use them (RFC 7232):
+ * "If-None-Match" and "If-Modified-Since" (answered with "304 Not Modified"), and "If-Range".
+ *
+ * @author Christopher D'Angelo
+ */
+public final class ConditionalRequest
+{
+	private ConditionalRequest() {
+	}
+
+
+	/**
+	 * Makes an entity tag from a file's size, last modified time, and identity (e.g. its inode),
+	 * so it changes whenever the file is modified or replaced, without the file ever being read.
+	 *
+	 * @param attrs - The file's attributes.
+	 * @param weak - Whether to make a weak tag (W/"...") instead of a strong one.
+	 * 	Weak tags only promise an equivalent file, not an identical one; they can't be used with "If-Range".
+	 * @return The entity tag, quotes included.
+	 */
+	public static String etag(BasicFileAttributes attrs, boolean weak) {
+		Object key = attrs.fileKey(); //e.g. "(dev=803,ino=1234)", or null if the file system has no such thing
+		String tag = Long.toHexString( attrs.size() ) + "-" + Long.toHexString( attrs.lastModifiedTime().toMillis() );
+		if( key != null )
+			tag += "-" + Integer.toHexString( key.hashCode() );
+		return (weak ? "W/\"" : "\"") + tag + "\"";
+	}
+
+	/**
+	 * Decides whether the client's cached copy is still current, so "304 Not Modified" can be sent instead.
+	 * "If-None-Match" is used if present; otherwise "If-Modified-Since" is.
+	 *
+	 * @param method - The request method. Only GET and HEAD requests can be answered with 304.
+	 * @param fields - The request's header fields.
+	 * @param etag - The current entity tag, or null if there isn't one.
+	 * @param lastModified - When the resource was last modified (in milliseconds), or 0 if unknown.
+	 * @return true if the client's copy is current.
+	 */
+	public static boolean isNotModified(String method, Map<String, String> fields, String etag, long lastModified) {
+		if( !method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("HEAD") )
+			return false;
+		String ifNoneMatch = fields.get("if-none-match");
+		if( ifNoneMatch != null )
+			return etag != null && matchesAny(ifNoneMatch, etag, false);
+		String ifModifiedSince = fields.get("if-modified-since");
+		if( ifModifiedSince != null && lastModified > 0 ) {
+			long since = HttpDate.parse(ifModifiedSince);
+			return since >= 0 && lastModified / 1000 <= since / 1000; //dates only have whole seconds
+		}
+		return false;
+	}
+
+	/**
+	 * Decides whether a "Range" request should be honored, given its "If-Range" header.
+	 *
+	 * @param ifRange - The "If-Range" header, or null if there wasn't one.
+	 * @param etag - The current entity tag, or null if there isn't one.
+	 * @param date - The "Last-Modified" date, in RFC 1123 format, or null.
+	 * @return true if the representation is unchanged (or there was no condition), so only the requested range(s) should be sent;
+	 * 	false if the whole representation should be sent.
+	 */
+	public static boolean ifRangeMatches(String ifRange, String etag, String date) {
+		if( ifRange == null )
+			return true;
+		ifRange = ifRange.trim();
+		if( ifRange.startsWith("\"") || ifRange.startsWith("W/") )
+			return etag != null && matchesAny(ifRange, etag, true);
+		return ifRange.equals(date); //an exact match is required (RFC 7233 3.2)
+	}
+
+	/**
+	 * @param header - A list of entity tags, e.g. <code>"abc", W/"def"</code>, or "*".
+	 * @param etag - The entity tag to look for.
+	 * @param strong - Whether to use the strong comparison (weak tags never match) instead of the weak one.
+	 * @return true if the tag is in the list.
+	 */
+	private static boolean matchesAny(String header, String etag, boolean strong) {
+		if( header.trim().equals("*") )
+			return true;
+		if( strong && etag.startsWith("W/") )
+			return false;
+		String opaque = opaque(etag);
+		for( String candidate : header.split(",") ) {
+			candidate = candidate.trim();
+			if( strong && candidate.startsWith("W/") )
+				continue;
+			if( opaque(candidate).equals(opaque) )
+				return true;
+		}
+		return false;
+	}
+
+	/** @return The entity tag without its weakness indicator (W/), if any. */
+	private static String opaque(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+}
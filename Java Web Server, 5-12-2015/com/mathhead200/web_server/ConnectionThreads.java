@@ -0,0 +1,133 @@
+package com.mathhead200.web_server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Creates the threads connections are handled on (and the helper threads they start, e.g. to pump a CGI's output),
+ * either as ordinary platform threads, or as virtual threads on JDKs that have them (21+).
+ * Virtual threads let the blocking handler code scale to many more concurrent connections,
+ * since a virtual thread blocked on I/O releases its carrier (platform) thread.
+ * Found through reflection, since this server is still built for Java 8.
+ * <p>
+ * Pinning audit (code that would hold on to a carrier thread while blocked):
+ * <ul>
+ * <li>Connection logs go into an {@link AsyncLog}'s lock-free ring buffer, instead of a {@link java.io.PipedOutputStream},
+ *     which blocks in a synchronized method when the log reader falls behind.
+ *     (A CGI worker's error log goes through a {@link LogPipe}, for the same reason.)</li>
+ * <li>{@link Process#waitFor()} waits on the process's monitor, so {@link HttpConnectionHandler} polls for exit instead.</li>
+ * <li>{@link StaticContentCache} and {@link ServerProcess#start} only synchronize around memory operations, never I/O.</li>
+ * <li>Reads of a CGI process's pipes are file I/O, which the JDK compensates for by temporarily adding a carrier.</li>
+ * </ul>
+ *
+ * @author Christopher D'Angelo
+ */
+public final class ConnectionThreads
+{
+	/** Creates each thread. */
+	public final ThreadFactory factory;
+
+	/** Whether {@link #factory} creates virtual threads. */
+	public final boolean virtual;
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong total = new AtomicLong();
+
+
+	/**
+	 * @param virtual - Whether to use virtual threads. Ignored (platform threads are used) if this JDK doesn't have them;
+	 *                  check {@link #virtual} to find out.
+	 */
+	public ConnectionThreads(boolean virtual) {
+		ThreadFactory factory = virtual ? virtualThreadFactory("connection-") : null;
+		this.virtual = factory != null;
+		this.factory = factory != null ? factory : Executors.defaultThreadFactory();
+	}
+
+
+	/**
+	 * @param prefix - Each thread's name, before its number.
+	 * @return A factory for virtual threads, or null if this JDK doesn't support them.
+	 */
+	private static ThreadFactory virtualThreadFactory(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			return (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+		} catch(ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/** @return An executor that runs each task on a new thread from {@link #factory}.
+	    (Platform threads are cached and reused; virtual threads are cheap enough not to be.) */
+	public ExecutorService newExecutor() {
+		if( virtual ) {
+			try {
+				Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+				return (ExecutorService) method.invoke(null, factory);
+			} catch(InvocationTargetException e) {
+				throw new IllegalStateException(e.getCause());
+			} catch(ReflectiveOperationException e) {
+				//virtual threads without a thread-per-task executor? fall through
+			}
+		}
+		return Executors.newCachedThreadPool(factory);
+	}
+
+	/** @return A new (unstarted) thread from {@link #factory}. */
+	public Thread newThread(Runnable task) {
+		return factory.newThread(task);
+	}
+
+	/** @return The given connection handler, wrapped so that it's counted in {@link #getActive()}. */
+	public Runnable counted(Runnable handler) {
+		return () -> {
+			active.incrementAndGet();
+			total.incrementAndGet();
+			try {
+				handler.run();
+			} finally {
+				active.decrementAndGet();
+			}
+		};
+	}
+
+
+	/** @return The number of connections currently being handled. */
+	public int getActive() {
+		return active.get();
+	}
+
+	/** @return The number of connections handled so far. */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * @return The scheduler's configured parallelism for virtual threads (by default, one per processor),
+	 *         not how many carrier threads are running; the JDK adds carriers while some are blocked.
+	 */
+	public static int getCarrierParallelism() {
+		return Integer.getInteger( "jdk.virtualThreadScheduler.parallelism", Runtime.getRuntime().availableProcessors() );
+	}
+
+	/** With virtual threads, the platform thread count (which includes the carriers) should stay flat as connections grow. */
+	public String toString() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		String s = String.format( "%s threads, %d active connections (%d total), %d platform threads (peak: %d)",
+				virtual ? "virtual" : "platform", getActive(), getTotal(), threads.getThreadCount(), threads.getPeakThreadCount() );
+		if( virtual )
+			s += ", carrier parallelism " + getCarrierParallelism() + " (configured)";
+		return s;
+	}
+}
@@ -0,0 +1,404 @@
+package com.mathhead200.web_server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Compresses responses ("Content-Encoding: gzip" or "deflate") for clients that accept it.
+ * A static file is sent from a precompressed sibling (e.g. "style.css.gz") when one exists and is up to date;
+ * otherwise it's compressed once and kept in a bounded cache until the file changes.
+ * Generated output (CGI, Java CGI, directory indexes) is compressed as it's sent; streamed output is flushed through
+ * the compressor whenever the script pauses, so compression doesn't hold back bytes the client could already have.
+ * Safe to share between connection threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class ContentCompressor
+{
+	/** "gzip" */
+	public static final String GZIP = "gzip";
+
+	/** "deflate" */
+	public static final String DEFLATE = "deflate";
+
+	/** A compressed copy of a file. */
+	private static final class Variant
+	{
+		/** The entity tag of the uncompressed file it was made from. */
+		final String etag;
+		final byte[] bytes;
+
+		Variant(String etag, byte[] bytes) {
+			this.etag = etag;
+			this.bytes = bytes;
+		}
+	}
+
+
+	/** Responses shorter than this many bytes aren't worth compressing. */
+	public final long minLength;
+
+	/** Files longer than this many bytes are only sent compressed if they have a precompressed sibling. */
+	public final long maxFileLength;
+
+	/** The most bytes (of compressed files) kept at once. */
+	public final long maxCacheBytes;
+
+	/** The zlib compression level, 1 (fastest) to 9 (smallest.) */
+	public final int level;
+
+	/** MIME types (without parameters, lower case) that are worth compressing. */
+	private final Set<String> types;
+
+	/** Compressed files by encoding and path, in least to most recently used order. */
+	private final LinkedHashMap<String, Variant> cache = new LinkedHashMap<>(64, 0.75f, true);
+
+	/** Total size of all of the compressed files. Guarded by <code>this</code>. */
+	private long cacheBytes = 0;
+
+	private final AtomicLong precompressed = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong streamed = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+
+
+	/**
+	 * @param types - The MIME types to compress, e.g. "text/html".
+	 * @param minLength - The shortest response that will be compressed.
+	 * @param maxFileLength - The longest file that will be compressed on the fly.
+	 * @param maxCacheBytes - The byte budget for compressed files.
+	 * @param level - The zlib compression level, 1 to 9.
+	 */
+	public ContentCompressor(Collection<String> types, long minLength, long maxFileLength, long maxCacheBytes, int level) {
+		this.types = new HashSet<>();
+		for( String type : types )
+			if( !type.trim().isEmpty() )
+				this.types.add( type.trim().toLowerCase() );
+		this.minLength = minLength;
+		this.maxFileLength = maxFileLength;
+		this.maxCacheBytes = maxCacheBytes;
+		this.level = level;
+	}
+
+
+	/**
+	 * @param type - A MIME type, possibly with parameters (e.g. "text/html; charset=UTF-8".) May be null.
+	 * @return true if responses of this type are worth compressing. (So they should be sent with "Vary: Accept-Encoding".)
+	 */
+	public boolean isCompressible(String type) {
+		if( type == null )
+			return false;
+		int i = type.indexOf(';');
+		return types.contains( (i < 0 ? type : type.substring(0, i)).trim().toLowerCase() );
+	}
+
+	/**
+	 * Picks the encoding to send a response with.
+	 *
+	 * @param acceptEncoding - The request's "Accept-Encoding" header, or null.
+	 * @param type - The response's MIME type.
+	 * @param length - The response's (uncompressed) length, or {@link ResponseBody#UNKNOWN_LENGTH} if it's streamed.
+	 * @return {@link #GZIP}, {@link #DEFLATE}, or null to send the response as is.
+	 */
+	public String choose(String acceptEncoding, String type, long length) {
+		if( acceptEncoding == null || (length != ResponseBody.UNKNOWN_LENGTH && length < minLength) || !isCompressible(type) )
+			return null;
+		double gzip = -1, deflate = -1, any = 0; //-1: not mentioned
+		for( String coding : acceptEncoding.split(",") ) {
+			String[] params = coding.split(";");
+			String name = params[0].trim().toLowerCase();
+			double q = 1;
+			for( int i = 1; i < params.length; i++ ) {
+				String param = params[i].trim();
+				if( param.startsWith("q=") ) {
+					try {
+						q = Double.parseDouble( param.substring(2) );
+					} catch(NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			if( name.equals(GZIP) || name.equals("x-gzip") )
+				gzip = q;
+			else if( name.equals(DEFLATE) )
+				deflate = q;
+			else if( name.equals("*") )
+				any = q;
+		}
+		if( gzip < 0 )
+			gzip = any;
+		if( deflate < 0 )
+			deflate = any;
+		if( gzip > 0 && gzip >= deflate )
+			return GZIP;
+		return deflate > 0 ? DEFLATE : null;
+	}
+
+	/**
+	 * The entity tag of a compressed variant has to differ from the uncompressed one's.
+	 *
+	 * @param etag - The uncompressed representation's entity tag, e.g. <code>"abc"</code>. May be null.
+	 * @param encoding - The encoding, or null.
+	 * @return The variant's entity tag, e.g. <code>"abc-gzip"</code>.
+	 */
+	public static String variantETag(String etag, String encoding) {
+		if( etag == null || encoding == null )
+			return etag;
+		return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+	}
+
+	/**
+	 * Decides, before the file is read, whether a static file can be sent in the given encoding, and with what entity tag;
+	 * so a conditional request is compared against the representation that would actually be sent.
+	 * A precompressed sibling has its own tag (from its own attributes), since its bytes differ from those compressed here.
+	 *
+	 * @param file - The file's absolute, normalized path.
+	 * @param length - The file's length.
+	 * @param lastModified - When the file was last modified (in milliseconds.)
+	 * @param etag - The (uncompressed) file's current entity tag.
+	 * @param encoding - {@link #GZIP} or {@link #DEFLATE}.
+	 * @param weak - Whether a sibling's tag is made weak (see {@link ConditionalRequest#etag}.)
+	 * @return The compressed file's entity tag, or null if it can't be sent that way
+	 *         (it's too large to compress on the fly, and has neither an up to date sibling nor a cached copy.)
+	 */
+	public String getVariantETag(Path file, long length, long lastModified, String etag, String encoding, boolean weak) {
+		BasicFileAttributes gzAttrs = getSibling(file, lastModified, encoding);
+		if( gzAttrs != null )
+			return variantETag( ConditionalRequest.etag(gzAttrs, weak), encoding );
+		if( length > maxFileLength ) {
+			Variant variant;
+			synchronized(this) {
+				variant = cache.get(encoding + ":" + file);
+			}
+			if( variant == null || etag == null || !variant.etag.equals(etag) )
+				return null;
+		}
+		return variantETag(etag, encoding);
+	}
+
+	/** @return The attributes of the file's precompressed sibling (e.g. "style.css.gz"), or null if it has none that's up to date. */
+	private static BasicFileAttributes getSibling(Path file, long lastModified, String encoding) {
+		if( !encoding.equals(GZIP) )
+			return null;
+		try {
+			BasicFileAttributes gzAttrs = Files.readAttributes( Paths.get(file + ".gz"), BasicFileAttributes.class );
+			return gzAttrs.isRegularFile() && gzAttrs.lastModifiedTime().toMillis() >= lastModified ? gzAttrs : null;
+		} catch(IOException e) {
+			return null; //no sibling
+		}
+	}
+
+
+	/**
+	 * Gets a static file in the given encoding. Its entity tag is the one {@link #getVariantETag} gives.
+	 *
+	 * @param file - The file's absolute, normalized path.
+	 * @param lastModified - When the file was last modified (in milliseconds.)
+	 * @param length - The file's length.
+	 * @param etag - The (uncompressed) file's current entity tag; used to tell if a cached copy is out of date.
+	 * @param body - The file's contents.
+	 * @param encoding - {@link #GZIP} or {@link #DEFLATE}.
+	 * @return The compressed file, or null if it's too large to be compressed on the fly.
+	 * @throws IOException - If the file can't be read.
+	 */
+	public ResponseBody getFile(Path file, long lastModified, long length, String etag, ResponseBody body, String encoding)
+			throws IOException {
+		//a precompressed sibling (e.g. made by "gzip -k -9") is sent straight from the file system
+		BasicFileAttributes gzAttrs = getSibling(file, lastModified, encoding);
+		if( gzAttrs != null ) {
+			precompressed.incrementAndGet();
+			return ResponseBody.of( Paths.get(file + ".gz"), 0, gzAttrs.size() );
+		}
+
+		String key = encoding + ":" + file;
+		Variant variant;
+		synchronized(this) {
+			variant = cache.get(key);
+		}
+		if( variant != null && etag != null && variant.etag.equals(etag) ) {
+			hits.incrementAndGet();
+			return ResponseBody.of(variant.bytes);
+		}
+		if( length > maxFileLength )
+			return null;
+
+		misses.incrementAndGet();
+		byte[] bytes = compress(body, encoding);
+		if( etag != null && bytes.length <= maxCacheBytes ) { //without an entity tag, there's no telling when it's out of date
+			synchronized(this) {
+				Variant old = cache.put( key, new Variant(etag, bytes) );
+				if( old != null )
+					cacheBytes -= old.bytes.length;
+				cacheBytes += bytes.length;
+				for( Iterator<Variant> iter = cache.values().iterator(); cacheBytes > maxCacheBytes && iter.hasNext(); ) {
+					Variant eldest = iter.next();
+					if( eldest.bytes == bytes )
+						continue;
+					iter.remove();
+					cacheBytes -= eldest.bytes.length;
+				}
+			}
+		}
+		return ResponseBody.of(bytes);
+	}
+
+	/**
+	 * Compresses generated output (e.g. from a CGI script) without caching it.
+	 * Output of a known length is compressed right away; streamed output is compressed as it's written.
+	 *
+	 * @param body - The output.
+	 * @param encoding - {@link #GZIP} or {@link #DEFLATE}.
+	 * @return The compressed output.
+	 * @throws IOException - If the body can't be read.
+	 */
+	public ResponseBody getStream(ResponseBody body, String encoding) throws IOException {
+		if( body.length() != ResponseBody.UNKNOWN_LENGTH ) {
+			streamed.incrementAndGet();
+			return ResponseBody.of( compress(body, encoding) );
+		}
+		return new ResponseBody() {
+			public long length() {
+				return UNKNOWN_LENGTH;
+			}
+			public void writeTo(OutputStream output) throws IOException {
+				OutputStream compressed = getOutputStream(output, encoding);
+				body.writeTo(compressed);
+				compressed.close();
+			}
+		};
+	}
+
+	/**
+	 * Compresses what's written to the returned stream as it's written, without caching it.
+	 * Flushing the stream flushes what's been compressed so far. Closing it finishes the compressed data,
+	 * but doesn't close <code>output</code> (e.g. the connection.)
+	 *
+	 * @param output - Where the compressed bytes go.
+	 * @param encoding - {@link #GZIP} or {@link #DEFLATE}.
+	 * @return The stream to write uncompressed bytes to.
+	 * @throws IOException - If a write error occurs.
+	 */
+	public OutputStream getOutputStream(OutputStream output, String encoding) throws IOException {
+		streamed.incrementAndGet();
+		Counter compressed = new Counter(output);
+		final GzipStream gzip;
+		final Deflater deflater;
+		final DeflaterOutputStream stream;
+		if( encoding.equals(GZIP) ) {
+			deflater = null;
+			stream = gzip = new GzipStream(compressed, level, true);
+		} else {
+			gzip = null;
+			deflater = new Deflater(level);
+			stream = new DeflaterOutputStream(compressed, deflater, 8192, true);
+		}
+		return new Counter(stream) {
+			private boolean closed = false;
+
+			public void close() throws IOException {
+				if( closed )
+					return;
+				closed = true;
+				try {
+					stream.finish(); //not close(), which would close the connection
+					stream.flush();
+				} finally {
+					if( gzip != null )
+						gzip.end();
+					else
+						deflater.end();
+					bytesIn.addAndGet(count);
+					bytesOut.addAndGet(compressed.count);
+				}
+			}
+		};
+	}
+
+	/** Compresses the body into memory, as it's written. */
+	private byte[] compress(ResponseBody body, String encoding) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream( (int) Math.min(body.length() / 3 + 64, ResponseBody.BUFFER_SIZE) );
+		if( encoding.equals(GZIP) ) {
+			try( OutputStream output = new GzipStream(buffer, level, false) ) {
+				body.writeTo(output);
+			}
+		} else {
+			Deflater deflater = new Deflater(level);
+			try( OutputStream output = new DeflaterOutputStream(buffer, deflater, 8192) ) {
+				body.writeTo(output);
+			} finally {
+				deflater.end();
+			}
+		}
+		bytesIn.addAndGet( body.length() );
+		bytesOut.addAndGet( buffer.size() );
+		return buffer.toByteArray();
+	}
+
+	/** A GZIPOutputStream with a chosen compression level. */
+	private static final class GzipStream extends GZIPOutputStream
+	{
+		GzipStream(OutputStream output, int level, boolean syncFlush) throws IOException {
+			super(output, 8192, syncFlush);
+			def.setLevel(level);
+		}
+		
+		/** Frees the compressor, for when the stream is finished but can't be closed. */
+		void end() {
+			def.end();
+		}
+	}
+
+	/** Counts the bytes written through it. */
+	private static class Counter extends FilterOutputStream
+	{
+		long count = 0;
+
+		Counter(OutputStream output) {
+			super(output);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+
+	/** Empties the cache of compressed files. The counters are not reset. */
+	public synchronized void clear() {
+		cache.clear();
+		cacheBytes = 0;
+	}
+
+	public String toString() {
+		long in = bytesIn.get(), out = bytesOut.get();
+		synchronized(this) {
+			return String.format( "%d files, %d/%d bytes (precompressed: %d, hits: %d, misses: %d, streamed: %d, ratio: %.2f)",
+					cache.size(), cacheBytes, maxCacheBytes, precompressed.get(), hits.get(), misses.get(), streamed.get(),
+					in == 0 ? 1.0 : (double) out / in );
+		}
+	}
+}
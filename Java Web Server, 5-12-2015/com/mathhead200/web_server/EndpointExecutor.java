@@ -0,0 +1,216 @@
+package com.mathhead200.web_server;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs one Java CGI endpoint's calls on threads of its own, instead of on the connections' threads.
+ * Each endpoint gets its own (bounded) threads and queue, a bulkhead, so an endpoint that stalls (e.g. on the network)
+ * only uses up its own threads, and further calls to it are refused with a quick "503 Service Unavailable",
+ * while requests for everything else carry on. A call still running at its {@link #deadline} is interrupted,
+ * and its client gets "504 Gateway Timeout" (or, if its response had already begun, has it cut short.)
+ * Configured per path in the '.java-cgi-limits' file.
+ * Safe to share between connection threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class EndpointExecutor implements Closeable
+{
+	/** The path the endpoint is at. */
+	public final String path;
+
+	/** The most calls running at once. */
+	public final int maxThreads;
+
+	/** The most calls waiting for a thread. Any more are refused. */
+	public final int maxQueued;
+
+	/** How long (in milliseconds) a call may take, from when it's submitted. 0 means no limit. */
+	public final long deadline;
+
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong queueNanos = new AtomicLong();
+	private final AtomicLong maxQueueNanos = new AtomicLong();
+	private final AtomicLong runNanos = new AtomicLong();
+	private final AtomicLong maxRunNanos = new AtomicLong();
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong finished = new AtomicLong();
+
+
+	/**
+	 * @param path - The path the endpoint is at (for logging.)
+	 * @param maxThreads - The most calls running at once.
+	 * @param maxQueued - The most calls waiting for a thread, or 0 to refuse calls as soon as every thread is busy.
+	 * @param deadline - How long (in milliseconds) a call may take, or 0 for no limit.
+	 * @param threads - Creates the threads. (Idle ones end after a minute.)
+	 */
+	public EndpointExecutor(String path, int maxThreads, int maxQueued, long deadline, ThreadFactory threads) {
+		if( maxThreads < 1 || maxQueued < 0 )
+			throw new IllegalArgumentException("need maxThreads >= 1, maxQueued >= 0");
+		this.path = path;
+		this.maxThreads = maxThreads;
+		this.maxQueued = maxQueued;
+		this.deadline = Math.max(deadline, 0);
+		BlockingQueue<Runnable> queue = maxQueued > 0 ? new ArrayBlockingQueue<>(maxQueued) : new SynchronousQueue<>();
+		this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, queue, threads);
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+
+	/**
+	 * Starts a call, or queues it until a thread is free.
+	 * Cancelling the returned future (with <code>mayInterruptIfRunning</code>) interrupts the call if it's running,
+	 * or keeps it from starting if it isn't yet.
+	 *
+	 * @param task - The call.
+	 * @return Completes when the call does, or exceptionally with whatever it threw.
+	 * @throws RejectedExecutionException - If every thread is busy and the queue is full.
+	 */
+	public CompletableFuture<Void> submit(Callable<?> task) {
+		Call call = new Call(task);
+		try {
+			executor.execute(call);
+		} catch(RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+		calls.incrementAndGet();
+		return call;
+	}
+
+	/**
+	 * Counts a call whose deadline passed. (The caller decides what a late call means, so it does the counting.)
+	 *
+	 * @param call - The late call, which is cancelled.
+	 */
+	public void timedOut(CompletableFuture<Void> call) {
+		timedOut.incrementAndGet();
+		call.cancel(true);
+	}
+
+	/** One call, which can be interrupted through {@link #cancel(boolean)}. */
+	private final class Call extends CompletableFuture<Void> implements Runnable
+	{
+		private final Callable<?> task;
+		private final long submitted = System.nanoTime();
+
+		/** The thread running the call, while it's running. Guarded by <code>this</code>. */
+		private Thread thread = null;
+
+		Call(Callable<?> task) {
+			this.task = task;
+		}
+
+		public void run() {
+			synchronized(this) {
+				if( isDone() ) //cancelled while it was queued
+					return;
+				thread = Thread.currentThread();
+			}
+			long start = System.nanoTime();
+			record(queueNanos, maxQueueNanos, start - submitted);
+			started.incrementAndGet();
+			try {
+				task.call();
+				complete(null);
+			} catch(Throwable e) {
+				failed.incrementAndGet();
+				completeExceptionally(e);
+			} finally {
+				synchronized(this) {
+					thread = null;
+				}
+				Thread.interrupted(); //so a late interrupt doesn't reach the thread's next call
+				record(runNanos, maxRunNanos, System.nanoTime() - start);
+				finished.incrementAndGet();
+			}
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if( mayInterruptIfRunning ) {
+				synchronized(this) {
+					if( thread != null )
+						thread.interrupt();
+				}
+			}
+			return cancelled;
+		}
+	}
+
+	private static void record(AtomicLong total, AtomicLong max, long nanos) {
+		total.addAndGet(nanos);
+		for( long m = max.get(); nanos > m && !max.compareAndSet(m, nanos); m = max.get() )
+			;
+	}
+
+
+	/** @return The number of calls running now. */
+	public int getActive() {
+		return executor.getActiveCount();
+	}
+
+	/** @return The number of calls waiting for a thread now. */
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+
+	/** @return The number of calls accepted so far. */
+	public long getCalls() {
+		return calls.get();
+	}
+
+	/** @return The number of calls refused so far (because every thread was busy and the queue was full.) */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/** @return The number of calls that ran past their deadline so far. */
+	public long getTimedOut() {
+		return timedOut.get();
+	}
+
+	/** @return The number of calls that threw so far (including those interrupted at their deadline.) */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/** @return The average time (in milliseconds) a call waited for a thread. */
+	public double getMeanQueueMillis() {
+		long n = started.get();
+		return n == 0 ? 0 : queueNanos.get() / 1e6 / n;
+	}
+
+	/** @return The average time (in milliseconds) a call ran for. */
+	public double getMeanRunMillis() {
+		long n = finished.get();
+		return n == 0 ? 0 : runNanos.get() / 1e6 / n;
+	}
+
+	/** Stops the endpoint's threads, interrupting any calls still running. */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	public String toString() {
+		return String.format( "%s: %d/%d running, %d/%d queued, %d calls (rejected: %d, timed out: %d, failed: %d), "
+				+ "queued %.1f ms mean, %.1f ms max, ran %.1f ms mean, %.1f ms max",
+				path, getActive(), maxThreads, getQueued(), maxQueued, getCalls(), getRejected(), getTimedOut(), getFailed(),
+				getMeanQueueMillis(), maxQueueNanos.get() / 1e6, getMeanRunMillis(), maxRunNanos.get() / 1e6 );
+	}
+}
@@ -0,0 +1,266 @@
+package com.mathhead200.web_server;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Java Flight Recorder events for each phase of a connection and its requests (see {@link Type}),
+ * so a recording shows them next to the JVM's own (e.g. garbage collections, socket and file I/O.)
+ * Turned on by {@link #enable()} (the "jfr_events" property); until then, {@link #begin(Type)} just returns null.
+ * Once on, each event is recorded whenever a recording has it enabled, which is by default,
+ * or as set in the recording's settings (a .jfc file), e.g. <code>com.mathhead200.web_server.FileOpened#enabled=false</code>.
+ * <p>
+ * The events are defined at run time through jdk.jfr.EventFactory, found through reflection,
+ * since this server is still built for Java 8 (which has no jdk.jfr); they need Java 11 or later.
+ * None of them take stack traces. Usage:
+ * <pre>
+ * FlightEvents.Event event = FlightEvents.begin(FlightEvents.Type.RESOURCE_RESOLVED);
+ * ... //the phase being timed
+ * if( event != null )
+ *     event.commit(path, handler); //the type's fields, in order
+ * </pre>
+ * Safe to use from any thread.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class FlightEvents
+{
+	/** Each event's name is this, then its {@link Type#name}. */
+	public static final String PREFIX = "com.mathhead200.web_server.";
+
+	/** One field of an event type. */
+	private static final class Field
+	{
+		final Class<?> type;
+		final String name, label, description;
+		/** The value's unit, for jdk.jfr.DataAmount ("BYTES") or jdk.jfr.Timespan ("NANOSECONDS"), or null. */
+		final String unit;
+
+		Field(Class<?> type, String name, String label, String description, String unit) {
+			this.type = type;
+			this.name = name;
+			this.label = label;
+			this.description = description;
+			this.unit = unit;
+		}
+	}
+
+	private static Field field(Class<?> type, String name, String label, String description) {
+		return new Field(type, name, label, description, null);
+	}
+
+	private static Field bytes(String name, String label, String description) {
+		return new Field(long.class, name, label, description, "BYTES");
+	}
+
+	private static Field nanos(String name, String label, String description) {
+		return new Field(long.class, name, label, description, "NANOSECONDS");
+	}
+
+	/** The kinds of events, and the values committed with each (in order.) */
+	public enum Type
+	{
+		/** An instant, once a connection has been accepted. Fields: client (String.) */
+		CONNECTION_ACCEPTED( "ConnectionAccepted", "Connection Accepted", "Connection", "A connection was accepted",
+				field(String.class, "client", "Client", "The client's address") ),
+
+		/** An instant, once a request's header has been parsed (or rejected.)
+		    Fields: method, uri, version, rejected (String), bytes (long), reuse (int), parseTime (long.) */
+		REQUEST_PARSED( "RequestParsed", "Request Parsed", "Request", "A request's header was read and parsed",
+				field(String.class, "method", "Method", null),
+				field(String.class, "uri", "URI", null),
+				field(String.class, "version", "Version", null),
+				field(String.class, "rejected", "Rejected", "The status the request was rejected with, if it was"),
+				bytes("bytes", "Header Size", "Bytes of the request's header"),
+				field(int.class, "reuse", "Reuse", "Requests handled on the connection before this one"),
+				nanos("parseTime", "Parse Time", "From the request's first bytes arriving to its header being parsed") ),
+
+		/** From looking a request's path up, to knowing what it refers to. Fields: path, handler (String.) */
+		RESOURCE_RESOLVED( "ResourceResolved", "Resource Resolved", "Request", "A request's path was resolved",
+				field(String.class, "path", "Path", "The requested path"),
+				field(String.class, "handler", "Handler", "How the path is handled (e.g. FILE, CGI, JAVA_CGI)") ),
+
+		/** From looking a static file up (in the cache, or the file system), to having its body ready to send.
+		    Fields: file (String), bytes (long), cached (boolean.) */
+		FILE_OPENED( "FileOpened", "File Opened", "Request", "A static file was opened to be sent",
+				field(String.class, "file", "File", "The file's path on the server"),
+				bytes("bytes", "Size", "The file's length"),
+				field(boolean.class, "cached", "Cached", "Whether it was sent from the in-memory cache") ),
+
+		/** From starting a CGI script, to it running. Fields: path, command (String), pooled (boolean.) */
+		CGI_SPAWN( "CgiSpawn", "CGI Spawn", "CGI", "A CGI script was started",
+				field(String.class, "path", "Path", "The script's path"),
+				field(String.class, "command", "Command", null),
+				field(boolean.class, "pooled", "Pooled", "Whether it was handed to a persistent worker, instead of getting a new process") ),
+
+		/** From a CGI script running, to its response having been sent and it being stopped.
+		    Fields: path (String), exitStatus (int), killed (String.) */
+		CGI_EXIT( "CgiExit", "CGI Exit", "CGI", "A CGI script finished, or was killed",
+				field(String.class, "path", "Path", "The script's path"),
+				field(int.class, "exitStatus", "Exit Status", "Its exit status, or -1 if it was killed or still running"),
+				field(String.class, "killed", "Killed", "Why it was killed (TIMEOUT, IDLE, OUTPUT, or ABANDONED), if it was") ),
+
+		/** A Java CGI handling a request, from being called to returning (on whichever thread runs it.)
+		    Fields: path, endpoint, status, thrown (String.) */
+		JAVA_CGI_INVOKE( "JavaCgiInvoke", "Java CGI Invoke", "CGI", "A Java CGI (ServerEndpoint or ServerProcess) was run",
+				field(String.class, "path", "Path", "The Java CGI's path"),
+				field(String.class, "endpoint", "Endpoint", "The Java CGI itself"),
+				field(String.class, "status", "Status", "The response's status, or a ServerProcess's exit status if it was run by ServerProcess.start"),
+				field(String.class, "thrown", "Thrown", "The exception it threw, if it did") ),
+
+		/** From a response's header being written, to all of it having been sent.
+		    Fields: uri, status, handler (String), requestBytes, responseBytes (long.) */
+		RESPONSE_FLUSHED( "ResponseFlushed", "Response Flushed", "Request", "A response was sent",
+				field(String.class, "uri", "URI", null),
+				field(String.class, "status", "Status", null),
+				field(String.class, "handler", "Handler", "How the path was handled, if it was resolved"),
+				bytes("requestBytes", "Request Size", "Bytes of the request read"),
+				bytes("responseBytes", "Response Size", "Bytes of the response sent, header included") );
+
+		/** The event's name, after {@link FlightEvents#PREFIX}. */
+		public final String name;
+
+		private final String label, category, description;
+		private final Field[] fields;
+
+		/** Makes new events of this type (a jdk.jfr.EventFactory), once {@link FlightEvents#enable()} has been called. */
+		private Object factory;
+
+		Type(String name, String label, String category, String description, Field... fields) {
+			this.name = name;
+			this.label = label;
+			this.category = category;
+			this.description = description;
+			this.fields = fields;
+		}
+	}
+
+
+	/** Whether {@link #enable()} has succeeded. */
+	private static volatile boolean enabled = false;
+
+	/** jdk.jfr.EventFactory and jdk.jfr.Event's methods. */
+	private static Method newEventMethod, beginMethod, endMethod, isEnabledMethod, shouldCommitMethod, setMethod, commitMethod;
+
+
+	private FlightEvents() {
+	}
+
+
+	/**
+	 * Defines the events with the Flight Recorder, so they're recorded from now on.
+	 *
+	 * @return false if this JVM doesn't have the Flight Recorder (e.g. Java 8.)
+	 */
+	public static synchronized boolean enable() {
+		if( enabled )
+			return true;
+		try {
+			Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+			Constructor<?> value = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+			Method create = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class);
+			for( Type type : Type.values() ) {
+				List<Object> annotations = new ArrayList<>( Arrays.asList(
+						annotation.newInstance( jfr("Name"), PREFIX + type.name ),
+						annotation.newInstance( jfr("Label"), type.label ),
+						annotation.newInstance( jfr("Description"), type.description ),
+						annotation.newInstance( jfr("Category"), new String[] { "Java Web Server", type.category } ),
+						annotation.newInstance( jfr("StackTrace"), false ) ) );
+				List<Object> values = new ArrayList<>();
+				for( Field field : type.fields ) {
+					List<Object> fieldAnnotations = new ArrayList<>();
+					fieldAnnotations.add( annotation.newInstance( jfr("Label"), field.label ) );
+					if( field.description != null )
+						fieldAnnotations.add( annotation.newInstance( jfr("Description"), field.description ) );
+					if( "BYTES".equals(field.unit) )
+						fieldAnnotations.add( annotation.newInstance( jfr("DataAmount"), field.unit ) );
+					else if( field.unit != null )
+						fieldAnnotations.add( annotation.newInstance( jfr("Timespan"), field.unit ) );
+					values.add( value.newInstance(field.type, field.name, fieldAnnotations) );
+				}
+				type.factory = create.invoke(null, annotations, values);
+			}
+			newEventMethod = Class.forName("jdk.jfr.EventFactory").getMethod("newEvent");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			beginMethod = event.getMethod("begin");
+			endMethod = event.getMethod("end");
+			isEnabledMethod = event.getMethod("isEnabled");
+			shouldCommitMethod = event.getMethod("shouldCommit");
+			setMethod = event.getMethod("set", int.class, Object.class);
+			commitMethod = event.getMethod("commit");
+			enabled = true;
+			return true;
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	/** @return One of the jdk.jfr annotations, by its simple name. */
+	private static Class<? extends Annotation> jfr(String annotation) throws ClassNotFoundException {
+		return Class.forName("jdk.jfr." + annotation).asSubclass(Annotation.class);
+	}
+
+	/** @return Whether {@link #enable()} has been called (successfully.) */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Starts timing an event.
+	 *
+	 * @param type - The kind of event.
+	 * @return The event, to be committed at the end of what's being timed,
+	 *         or null if events aren't enabled, or no recording wants this type of event.
+	 */
+	public static Event begin(Type type) {
+		if( !enabled )
+			return null;
+		try {
+			Object event = newEventMethod.invoke(type.factory);
+			if( !(Boolean) isEnabledMethod.invoke(event) )
+				return null;
+			beginMethod.invoke(event);
+			return new Event(type, event);
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+
+	/** An event being timed (see {@link FlightEvents#begin(Type)}.) Used by one thread. */
+	public static final class Event
+	{
+		/** What kind of event it is. */
+		public final Type type;
+
+		private final Object event;
+
+		private Event(Type type, Object event) {
+			this.type = type;
+			this.event = event;
+		}
+
+		/**
+		 * Ends the event, and records it (unless the recording's threshold for it is longer than it took.)
+		 *
+		 * @param values - The values of its {@link Type}'s fields, in order, boxed (e.g. a Long for a long field.)
+		 */
+		public void commit(Object... values) {
+			try {
+				endMethod.invoke(event);
+				if( !(Boolean) shouldCommitMethod.invoke(event) )
+					return;
+				for( int i = 0; i < values.length; i++ )
+					setMethod.invoke(event, i, values[i]);
+				commitMethod.invoke(event);
+			} catch(ReflectiveOperationException | RuntimeException e) {
+				//(a value of the wrong type) the event is dropped
+			}
+		}
+	}
+}
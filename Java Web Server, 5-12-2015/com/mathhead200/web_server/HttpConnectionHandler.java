@@ -4,30 +4,34 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PipedOutputStream;
 import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
@@ -37,6 +41,17 @@ import java.util.TimeZone;
  */
 public class HttpConnectionHandler implements Runnable
 {
+	/** Most bytes of an unused request body read (and thrown away) to keep the connection open; past this, it's closed instead. */
+	private static final long MAX_DISCARDED_BODY = 1 << 20;
+	
+	/** Discards everything written to it. */
+	private static final OutputStream NULL_STREAM = new OutputStream() {
+		public void write(int b) {
+		}
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+	
 	/** The socket this instance communicates on. */
 	private final Socket socket;
 	
@@ -46,9 +61,49 @@ public class HttpConnectionHandler implements Runnable
 	/** Where this instance sends it's error output. For logging and debugging. */
 	private PipedOutputStream errPipe = new PipedOutputStream();
 	
+	/** {@link #logPipe} and {@link #errPipe}, wrapped in PrintStreams. */
+	private PrintStream log, errLog;
+	
 	/** Where various behavior-modifying settings are stored. */
 	private HttpSettings settings;
 	
+	/** Reads requests off of the socket. Opened by {@link #open()}. */
+	private HttpRequestParser input;
+	
+	/** Where responses are written. Opened by {@link #open()}. */
+	private PrintStream output;
+	
+	/** What {@link #output} writes to. Unlike {@link #output}, it reports write errors,
+	    so a streamed response stops as soon as the client goes away. */
+	private BufferedOutputStream outputBuffer;
+	
+	/** The current request's message body, if any. Closed (deleting its temporary file, if it has one) once the request has been handled. */
+	private RequestBody requestBody = null;
+	
+	/** A CGI script still producing the current response, if any; stopped once it's been sent. */
+	private Closeable runningScript = null;
+	
+	/** Reused for every request on this connection. */
+	private final HttpRequest request = new HttpRequest();
+	
+	/** Whether this connection has been counted by {@link HttpSettings#admission}. (See {@link #admit()}.) */
+	private boolean admitted = false;
+	
+	/** Whether this connection has been counted by {@link HttpSettings#metrics}. (See {@link #open()}.) */
+	private boolean counted = false;
+	
+	/** What happened to the current request (e.g. for {@link HttpSettings#accessLog}.) Reused for every request on this connection. */
+	private final RequestRecord record = new RequestRecord();
+	
+	/** The number of requests handled on this connection so far. */
+	private int requests = 0;
+	
+	/** The current response's Flight Recorder event, from its header being written until it's been sent (see {@link FlightEvents}.) */
+	private FlightEvents.Event flushing = null;
+	
+	/** Bytes sent on this connection so far, including those sent straight from a file to the socket (see {@link HttpSettings#zeroCopyStaticFiles}.) */
+	private long bytesSent = 0;
+	
 	
 	/**
 	 * Creates an instance to handle a connection with the given socket.
@@ -59,9 +114,16 @@ public class HttpConnectionHandler implements Runnable
 	public HttpConnectionHandler(Socket socket, HttpSettings settings) {
 		this.socket = socket;
 		this.settings = settings;
+		this.log = new PrintStream(logPipe, true); // wrapping logPipe in a PrintStream
+		this.errLog = new PrintStream(errPipe, true); // wrapping errPipe in a PrintStream
 	}
 	
 	
+	/** @see #socket */
+	public Socket getSocket() {
+		return socket;
+	}
+
 	/** @see #logPipe */
 	public PipedOutputStream getLogPipe() {
 		return logPipe;
@@ -72,32 +134,44 @@ public class HttpConnectionHandler implements Runnable
 		return errPipe;
 	}
 	
+	/**
+	 * Sends this connection's logs somewhere other than {@link #getLogPipe()} and {@link #getErrPipe()}.
+	 * Must be called before this connection is handled.
+	 * 
+	 * @param log - Where to send the output log, or null to discard it.
+	 * @param err - Where to send the error log, or null to discard it.
+	 */
+	public void redirectLogs(OutputStream log, OutputStream err) {
+		this.log = new PrintStream( log != null ? log : NULL_STREAM, true );
+		this.errLog = new PrintStream( err != null ? err : NULL_STREAM, true );
+	}
+	
 	
 	/**
 	 * Converts the date to RFC 1123 date format, used in HTTP response headers.
 	 * 
 	 * @param date - A date object.
 	 * @return a string in RFC 1123 date format.
+	 * @see HttpDate#format(long)
 	 */
 	public static String toHttpDate(Date date) {
-		DateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-		df.setTimeZone( TimeZone.getTimeZone("GMT") );
-		return df.format(date);
+		return HttpDate.format( date.getTime() );
 	}
 	
 	/** @see #toHttpDate(Date) */
 	public static String toHttpDate(long timestamp) {
-		return toHttpDate( new Date(timestamp) );
+		return HttpDate.format(timestamp);
 	}
 	
 	/**
 	 * Gets the current server time in RFC 1123 date format, used in HTTP response headers.
+	 * Only formatted once per second (see {@link HttpDate#now()}.)
 	 * 
 	 * @return a string in RFC 1123 date format.
 	 * @see #toHttpDate(Date)
 	 */
 	public static String getHttpDtae() {
-		return toHttpDate( Calendar.getInstance().getTime() );
+		return HttpDate.now();
 	}
 	
 	/**
@@ -127,455 +201,1316 @@ public class HttpConnectionHandler implements Runnable
 	}
 	
 	/**
-	 * Converts a string into a sequence of bytes. Uses UTF-8 encoding.
+	 * Converts a string into a response body. Uses UTF-8 encoding.
 	 * 
 	 * @param message - The string to be converted.
-	 * @return A list of UTF-8 encoded bytes (stored as integers for convenience.)
+	 * @return A response body containing the UTF-8 encoded bytes.
 	 */
-	public static List<Integer> toUTF8(String message) {
-		try {
-			ArrayList<Integer> utf8 = new ArrayList<Integer>( message.length() );
-			for( byte b : message.getBytes("UTF-8") )
-				utf8.add((int) b);
-			return utf8;
-		} catch(UnsupportedEncodingException e) {
-			throw new Error(e); //UTF-8 needs to be a supported encoding.
+	public static ResponseBody toUTF8(String message) {
+		return ResponseBody.of(message);
+	}
+	
+	/**
+	 * Copies everything left in one stream to another, in bulk.
+	 * Neither stream is closed.
+	 * 
+	 * @param input - The stream to read until end-of-stream.
+	 * @param output - The stream to write to.
+	 * @throws IOException - If a read or write error occurs.
+	 */
+	public static void pump(InputStream input, OutputStream output) throws IOException {
+		byte[] chunk = new byte[4096];
+		for( int n; (n = input.read(chunk)) >= 0; )
+			output.write(chunk, 0, n);
+	}
+	
+	/**
+	 * Finds a header field in a CGI script's header.
+	 * 
+	 * @param header - The script's header lines, e.g. "Content-Type: text/html".
+	 * @param name - The field's name. Not case sensitive.
+	 * @return The field's (trimmed) value, or null if the script didn't send it.
+	 */
+	private static String findField(List<String> header, String name) {
+		for( String line : header ) {
+			int i = line.indexOf(':');
+			if( i == name.length() && line.regionMatches(true, 0, name, 0, i) )
+				return line.substring(i + 1).trim();
 		}
+		return null;
+	}
+	
+	/**
+	 * Sends "100 Continue", telling a client that sent "Expect: 100-continue" to go ahead and send the request's body.
+	 * 
+	 * @throws IOException - If a write error occurs.
+	 */
+	private void sendContinue() throws IOException {
+		log.println("-- Sending 100 Continue...");
+		output.print(JavaWebServer.PROTOCOL + " 100 Continue\r\n");
+		output.print("Date: " + getHttpDtae() + "\r\n");
+		output.print("Server: " + JavaWebServer.NAME + "\r\n");
+		output.print("\r\n");
+		output.flush();
+	}
+	
+	/**
+	 * The rest of a CGI script's output, sent as it's produced.
+	 * Once it's all been sent, waits for the script to end. If it failed, the response can't be changed into a 500 anymore,
+	 * so an IOException is thrown instead, aborting the connection before the (chunked) message is finished,
+	 * and the client can tell the response is incomplete.
+	 * 
+	 * @param out - The script's standard output, just after its header.
+	 * @param exit - Waits for the script to end, and returns its exit code.
+	 * @return The message body.
+	 */
+	private ResponseBody streamOutput(InputStream out, Callable<Integer> exit) {
+		final ResponseBody body = ResponseBody.of(out);
+		return new ResponseBody() {
+			public long length() {
+				return UNKNOWN_LENGTH;
+			}
+			public void writeTo(OutputStream output) throws IOException {
+				body.writeTo(output);
+				int exitStatus;
+				try {
+					exitStatus = exit.call();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while waiting on a CGI process");
+				} catch(IOException e) {
+					throw e;
+				} catch(Exception e) {
+					throw new IOException(e);
+				}
+				if( exitStatus != 0 ) {
+					errLog.println("CGI Process terminated with a non-zero error code: " + exitStatus);
+					throw new IOException("CGI Process terminated with a non-zero error code: " + exitStatus);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Waits for a process to end.
+	 * Polls, since {@link Process#waitFor()} waits on the process's monitor, which pins a virtual thread to its carrier.
+	 * Only used once the process has closed its output, by which time it has almost always ended.
+	 * 
+	 * @param process - The process to wait for.
+	 * @throws InterruptedException - If interrupted while waiting.
+	 */
+	private static void awaitExit(Process process) throws InterruptedException {
+		for( long sleep = 1; process.isAlive(); sleep = Math.min(sleep * 2, 50) )
+			Thread.sleep(sleep);
 	}
 	
 	
+	/**
+	 * Opens the input and output streams for this connection.
+	 * Called by {@link #run()}, or by a connection engine before its first {@link #handleRequest()}.
+	 * 
+	 * @throws IOException - If the socket's streams can't be opened.
+	 */
+	public void open() throws IOException {
+		settings.metrics.connectionOpened();
+		counted = true;
+		record.client = socket.getInetAddress().getHostAddress();
+		record.request = request;
+		FlightEvents.Event accepted = FlightEvents.begin(FlightEvents.Type.CONNECTION_ACCEPTED);
+		if( accepted != null )
+			accepted.commit(record.client);
+		input = new HttpRequestParser( socket.getInputStream(),
+				settings.maxRequestLineLength, settings.maxHeaderCount, settings.maxHeaderBytes );
+		OutputStream socketOutput = socket.getOutputStream();
+		outputBuffer = new BufferedOutputStream( new OutputStream() { //counts what's sent (see bytesSent)
+			public void write(int b) throws IOException {
+				socketOutput.write(b);
+				bytesSent++;
+			}
+			public void write(byte[] b, int off, int len) throws IOException {
+				socketOutput.write(b, off, len);
+				bytesSent += len;
+			}
+			public void flush() throws IOException {
+				socketOutput.flush();
+			}
+			public void close() throws IOException {
+				socketOutput.close();
+			}
+		});
+		output = new PrintStream(outputBuffer);
+		
+		//so that if no new bytes (requests) are sent after some time, this connection is closed
+		socket.setSoTimeout(settings.keepAliveTimeout);
+	}
+	
 	/** Overridden from the {@link Runnable} interface.
 	    Where the handling of each HTTP connection takes place.
 	    Many invocations of run can be running simultaneously (in different threads.) */
 	public void run() {
 		
-		PrintStream log = new PrintStream(logPipe, true); // wrapping logPipe in a PrintStream
-		PrintStream errLog = new PrintStream(errPipe, true); // wrapping errPipe in a PrintStream
-		boolean keepAlive; //after each request, set to true iff the connection should be maintained.
-		
 		log.println("-- Accepting Connection...");
 		
-		//get the input and output stream for this socket; for communication over the network
-		try(	BufferedInputStream input = new BufferedInputStream( socket.getInputStream() );
-				PrintStream output = new PrintStream( new BufferedOutputStream(socket.getOutputStream()) );
-		) {
+		try {
 			
-			//so that if no new bytes (requests) are sent after some time, this connection is closed
-			socket.setSoTimeout(15000);
+			open(); //get the input and output stream for this socket; for communication over the network
+			while( handleRequest() ) //while keepAlive
+				;
+			log.println("-- Closing Connection...");
 			
-			do { //while keepAlive
-				
-				log.println("-- Getting HTTP Request Header...");
-				//parses the first line of an HTTP request for the method, URI, and protocol
-				final String method, uri, version;
-				{	String request = nextCRLF(input);
-					log.println("   HTTP Request: " + request);
-					if( request == null )
-						break;
-					String[] arr = request.split("\\s+", 3);
-					method = arr[0];
-					uri = arr[1];
-					version = arr[2];
+		} catch(Exception e) {
+			
+			abort(e);
+			
+		} finally {
+			
+			close();
+			
+		}
+	}
+	
+	/**
+	 * Reads one HTTP request from this connection, and responds to it.
+	 * The socket must be in blocking mode.
+	 * 
+	 * @return true iff the connection should be maintained for another request.
+	 * @throws IOException - If a read or write error occurs on the connection.
+	 * @throws InterruptedException - If interrupted while waiting on a CGI process.
+	 */
+	public boolean handleRequest() throws IOException, InterruptedException {
+		
+		log.println("-- Getting HTTP Request Header...");
+		long bytesRead = input.getBytesRead(), bytesSent = this.bytesSent;
+		//parses the HTTP request header: the method, URI, protocol, and header fields
+		String rejected = null; //the status to respond with, if the request couldn't be parsed
+		try {
+			if( !input.next(request) )
+				return false;
+			log.println("   HTTP Request: " + request);
+		} catch(HttpRequestParser.RejectedException e) {
+			log.println("   HTTP Request Rejected: " + e.getMessage());
+			rejected = e.status;
+		}
+		record.reset();
+		record.parsed = System.nanoTime();
+		record.started = input.getRequestStarted();
+		record.time = System.currentTimeMillis() - (record.parsed - record.started) / 1000000;
+		record.reuse = requests++;
+		FlightEvents.Event parsed = FlightEvents.begin(FlightEvents.Type.REQUEST_PARSED);
+		if( parsed != null )
+			parsed.commit( request.method, request.uri, request.version, rejected,
+					input.getBytesRead() - bytesRead, record.reuse, record.getParseNanos() );
+		
+		//waits for a free request slot, or sheds the request if the server is saturated
+		boolean started = false;
+		if( rejected == null ) {
+			started = settings.admission.tryStartRequest();
+			if( !started ) {
+				log.println("   Server Saturated: " + settings.admission);
+				rejected = "503 Service Unavailable";
+			}
+		}
+		record.admitted = System.nanoTime();
+		settings.metrics.requestStarted();
+		try {
+			return respond(rejected);
+		} finally {
+			//each step runs even if an earlier one fails, so the request slot is always given back
+			try {
+				record.finished = System.nanoTime();
+				record.requestBytes = input.getBytesRead() - bytesRead;
+				record.responseBytes = this.bytesSent - bytesSent;
+				if( settings.accessLog != null )
+					settings.accessLog.log(record);
+				settings.metrics.requestFinished(record);
+				if( flushing != null ) {
+					flushing.commit( request.uri, record.status, record.kind != null ? record.kind.name() : null,
+							record.requestBytes, record.responseBytes );
+				}
+			} finally {
+				flushing = null;
+				try {
+					if( runningScript != null )
+						runningScript.close();
+				} finally {
+					runningScript = null;
+					try {
+						if( requestBody != null )
+							requestBody.close();
+					} finally {
+						requestBody = null;
+						if( started )
+							settings.admission.requestFinished();
+					}
 				}
-				//parses the rest of the HTTP request header
-				final Map<String, String> fields = new HashMap<String, String>();
-				for( String line; (line = nextCRLF(input)).length() != 0; ) {
-					String[] pair = line.split(":", 2);
-					fields.put( pair[0].trim().toLowerCase(), pair[1].trim() );
+			}
+		}
+	}
+	
+	/**
+	 * Responds to the request just read into {@link #request}.
+	 * 
+	 * @param rejected - The status to respond with if the request is being rejected, otherwise null.
+	 * @return true iff the connection should be maintained for another request.
+	 * @throws IOException - If a read or write error occurs on the connection.
+	 * @throws InterruptedException - If interrupted while waiting on a CGI process.
+	 */
+	private boolean respond(String rejected) throws IOException, InterruptedException {
+		
+		boolean keepAlive; //after this request, set to true iff the connection should be maintained.
+		
+		final String method = request.method, uri = request.uri, version = request.version;
+		final Map<String, String> fields = request.fields;
+		
+		//the HTTP request message body, if any, is read as it's used (e.g. fed to a CGI script), not all up front
+		boolean awaitingContinue = false; //the client is waiting for "100 Continue" before it sends the body
+		if( rejected == null ) {
+			String transferEncoding = fields.get("transfer-encoding");
+			if( transferEncoding != null ) {
+				if( transferEncoding.trim().equalsIgnoreCase("chunked") )
+					requestBody = new RequestBody( new ChunkedInputStream(input), ResponseBody.UNKNOWN_LENGTH, settings.maxRequestBodyLength );
+				else
+					rejected = "501 Not Implemented";
+			} else if( fields.containsKey("content-length") ) {
+				long length;
+				try {
+					length = Long.parseLong( fields.get("content-length").trim() );
+				} catch(NumberFormatException e) {
+					length = -1;
+				}
+				if( length < 0 )
+					rejected = "400 Bad Request";
+				else if( length > settings.maxRequestBodyLength )
+					rejected = "413 Payload Too Large"; //without reading any of it
+				else
+					requestBody = new RequestBody(input, length, settings.maxRequestBodyLength);
+			}
+			//"Expect: 100-continue" lets the request be refused before its body is uploaded;
+			//	"100 Continue" is only sent once the body is actually going to be used (see sendContinue)
+			String expect = fields.get("expect");
+			if( expect != null && rejected == null ) {
+				if( !expect.trim().equalsIgnoreCase("100-continue") )
+					rejected = "417 Expectation Failed";
+				else if( requestBody != null && version.equalsIgnoreCase("HTTP/1.1") )
+					awaitingContinue = true;
+			}
+		}
+		
+		//based on the protocol and "Connection" field, should we stay alive?
+		//	(Never after a rejected request, since the rest of it was never read.)
+		if( !settings.allowPersistentConnections || rejected != null )
+			keepAlive = false;
+		else if( version.equalsIgnoreCase("HTTP/1.1") )
+			keepAlive = !fields.containsKey("connection") || !fields.get("connection").equalsIgnoreCase("close");
+		else
+			keepAlive = fields.containsKey("connection") && fields.get("connection").equalsIgnoreCase("keep-alive");
+		
+		String status = "200 OK";
+		String type = null; //MIME type of response
+		String date = null; //last modified date
+		ResponseBody message = null; //response's message body
+		List<String> cgiHeader = null; //CGI script was run and these are it's header fields
+		boolean rangeable = false; //message is a static file, which can be sent in parts (see "Range")
+		String contentRange = null; //which part of the file is being sent
+		String etag = null; //entity tag of a static file or directory index
+		String cacheControl = null; //"Cache-Control" header for a static file or directory index
+		String contentEncoding = null; //how message is compressed, if it is
+		boolean vary = false; //the response depends on "Accept-Encoding"
+		String allow = null; //"Allow" header, listing the methods a resource supports, for "405 Method Not Allowed"
+		
+		//load requested resource if possible, and generate HTTP response
+		LOAD: {
+			log.println("-- Validating Request...");
+			if( rejected != null ) {
+				status = rejected;
+				type = "text/plain";
+				message = toUTF8(status);
+				break LOAD;
+			}
+			if( method.equalsIgnoreCase("POST") && requestBody == null ) {
+				errLog.println("The method was POST, but the request did not include a Content-Length field.");
+				status = "411 Length Required";
+				message = toUTF8( status + "The method was POST, but the request did not include a Content-Length field." );
+				break LOAD;
+			}
+			if( !fields.containsKey("host") ) {
+				status = "400 Bad Request";
+				type = "text/plain";
+				message = toUTF8(status);
+				break LOAD;
+			}
+			if( version.equalsIgnoreCase("HTCPCP/1.0") ) {
+				//see HTCPCP, defined in RFC 2324
+				errLog.println("Request for coffie could not be filled. (TODO: Future extension?)");
+				status = "418 I'm a teapot";
+				type = "text/plain";
+				message = toUTF8(status + "\nRequest for coffie could not be filled.");
+				break LOAD;
+			}
+			
+			log.println("-- Finding Resource...");
+			final String rawPath; //the URI string, uri, up to the query string
+			final ResourceResolver.Resource resource; //what rawPath resolved to (usually already cached)
+			final String query; //the query string following '?'
+			{	int i = uri.indexOf('#');
+				String noFragment = (i < 0 ? uri : uri.substring(0, i));
+				int q = noFragment.indexOf('?');
+				rawPath = (q < 0 ? noFragment : noFragment.substring(0, q));
+				try {
+					FlightEvents.Event resolving = FlightEvents.begin(FlightEvents.Type.RESOURCE_RESOLVED);
+					resource = settings.resolver.resolve(rawPath);
+					record.kind = resource.kind;
+					record.resolved = System.nanoTime();
+					if( resolving != null )
+						resolving.commit( resource.relPath, resource.kind.name() );
+					query = ResourceResolver.decodeQuery( q < 0 ? null : noFragment.substring(q + 1) );
+				} catch(URISyntaxException e) {
+					//URI could not be resolved against ROOT_DIR, send 400 Bad Request
+					status = "400 Bad Request";
+					type = "text/plain";
+					message = toUTF8(status);
+					break LOAD;
+				}
+			}
+			final String relPath = resource.relPath; //relative path resolved against ROOT_DIR
+			final Path fullPath = resource.fullPath; //true path to the requested resource on the underlying OS
+			
+			//requested file would be outside of ROOT_DIR, or is ".hidden"
+			if( resource.kind == ResourceResolver.Kind.FORBIDDEN ) {
+				status = "403 Forbidden";
+				type = "text/plain";
+				message = toUTF8(status);
+				break LOAD;
+			}
+			
+			//static files and directory indexes can only be fetched
+			if( (resource.kind == ResourceResolver.Kind.FILE || resource.kind == ResourceResolver.Kind.DIRECTORY)
+					&& !method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("HEAD") ) {
+				status = "405 Method Not Allowed";
+				allow = "GET, HEAD";
+				type = "text/plain";
+				message = toUTF8(status);
+				break LOAD;
+			}
+			
+			//the request has passed every check, and is for a script, so now its body is wanted
+			if( awaitingContinue && (resource.kind == ResourceResolver.Kind.CGI || resource.kind == ResourceResolver.Kind.JAVA_CGI) ) {
+				sendContinue();
+				awaitingContinue = false;
+			}
+			
+			//a script has to be told its input's length (CONTENT_LENGTH), so a body sent in chunks is read in full first
+			//	(into memory, or a temporary file if it's large)
+			if( requestBody != null && requestBody.length() == ResponseBody.UNKNOWN_LENGTH
+					&& (resource.kind == ResourceResolver.Kind.CGI || resource.kind == ResourceResolver.Kind.JAVA_CGI) ) {
+				try {
+					requestBody = requestBody.buffer(settings.requestBodyMemoryLength);
+				} catch(HttpRequestParser.RejectedException e) {
+					log.println("   HTTP Request Rejected: " + e.getMessage());
+					status = e.status;
+					type = "text/plain";
+					message = toUTF8(status);
+					keepAlive = false; //the rest of the body was never read
+					break LOAD;
 				}
-				//reads the HTTP request message body, if any
-				byte[] requestMessage;
-				if( fields.containsKey("content-length") ) {
-					final int N = Integer.parseInt( fields.get("content-length") );
-					if( version.equalsIgnoreCase("HTTP/1.1") ) {
-						output.print(JavaWebServer.PROTOCOL + " 100 Continue\r\n");
-						output.print("Date: " + getHttpDtae() + "\r\n");
-						output.print("Server: " + JavaWebServer.NAME + "\r\n");
-						output.print("\r\n");
-						output.flush();
+			}
+			
+			//define local method: populateEnv
+			class Local {
+				void populateEnv(Map<String, String> env) {
+					for( String key : fields.keySet() ) {
+						String envKey = key.toUpperCase().replaceAll("-", "_");
+						env.put(envKey, fields.get(key));
 					}
-					ByteArrayOutputStream bufferOut = new ByteArrayOutputStream(N);
-					for( int n = 0; n < N; n++ ) {
-						int b = input.read();
-						if( b < 0 )
-							break;
-						bufferOut.write(b);
+					env.put("SERVER_NAME", JavaWebServer.NAME);
+					env.put("SERVER_PROTOCOL", JavaWebServer.PROTOCOL);
+					env.put("SERVER_PORT", Integer.toString(settings.port));
+					env.put("REQUEST_METHOD", method);
+					env.put("REMOTE_HOST", socket.getInetAddress().getHostName());
+					env.put("REMOTE_ADDR", socket.getInetAddress().getHostAddress());
+					env.put("SCRIPT_NAME", relPath);
+					if( query != null )
+						env.put("QUERY_STRING", query);
+					if( requestBody != null ) {
+						env.put("CONTENT_LENGTH", Long.toString( requestBody.length() ));
+						env.remove("TRANSFER_ENCODING"); //the script gets the body without its chunk framing
 					}
-					requestMessage = bufferOut.toByteArray();
-				} else
-					requestMessage = new byte[0];
-				
-				//based on the protocol and "Connection" field, should we stay alive?
-				if( !settings.allowPersistentConnections )
-					keepAlive = false;
-				else if( version.equalsIgnoreCase("HTTP/1.1") )
-					keepAlive = !fields.containsKey("connection") || !fields.get("connection").equalsIgnoreCase("close");
-				else
-					keepAlive = fields.containsKey("connection") && fields.get("connection").equalsIgnoreCase("keep-alive");
+				}
+			}
+			Local local = new Local(); //instance to invoke Local methods on
+			
+			//check if requested resource is a Java CGI "script"
+			if( resource.kind == ResourceResolver.Kind.JAVA_CGI ) {
 				
-				String status = "200 OK";
-				String type = null; //MIME type of response
-				String date = null; //last modified date
-				List<Integer> message = null; //response's message body
-				List<String> cgiHeader = null; //CGI script was run and these are it's header fields
+				log.println("-- Executing Native Server Process...");
+				Map<String, String> env = new HashMap<String, String>();
+				if( settings.inheritServerEnv )
+					env.putAll( System.getenv() ); //Inherit the system's ENV
+				local.populateEnv(env); //populate env with the needed CGI variables
 				
-				//load requested resource if possible, and generate HTTP response
-				LOAD: {
-					log.println("-- Validating Request...");
-					if( method.equalsIgnoreCase("POST") && !fields.containsKey("content-length") ) {
-						errLog.println("The method was POST, but the request did not include a Content-Length field.");
-						status = "411 Length Required";
-						message = toUTF8( status + "The method was POST, but the request did not include a Content-Length field." );
-						break LOAD;
-					}
-					if( !fields.containsKey("host") ) {
-						status = "400 Bad Request";
-						type = "text/plain";
-						message = toUTF8(status);
-						break LOAD;
+				//the endpoint writes its response straight to the connection (see EndpointResponse)
+				ServerEndpoint.Request endpointRequest = new ServerEndpoint.Request( method, relPath, query, version, fields,
+						requestBody != null ? requestBody : new ByteArrayInputStream(new byte[0]),
+						requestBody != null ? requestBody.length() : 0, env, errLog );
+				EndpointResponse response = new EndpointResponse(version, fields.get("accept-encoding"), keepAlive);
+				EndpointExecutor executor = settings.javaCGIExecutors.get(relPath);
+				try {
+					if( executor == null ) {
+						invoke(resource.javaCGI, relPath, endpointRequest, response);
+					} else {
+						//on the endpoint's own threads (its bulkhead), so a stalled endpoint can't hold this one past its deadline
+						CompletableFuture<Void> call;
+						try {
+							call = executor.submit( () -> {
+								invoke(resource.javaCGI, relPath, endpointRequest, response);
+								return null;
+							});
+						} catch(RejectedExecutionException e) {
+							log.println("   Java CGI Saturated: " + executor);
+							status = "503 Service Unavailable";
+							type = "text/plain";
+							message = toUTF8(status);
+							break LOAD;
+						}
+						try {
+							if( executor.deadline > 0 )
+								call.get(executor.deadline, TimeUnit.MILLISECONDS);
+							else
+								call.get();
+						} catch(TimeoutException e) {
+							executor.timedOut(call);
+							errLog.println("Java CGI ran past its deadline of " + executor.deadline + " ms");
+							if( !response.abandon() )
+								throw new IOException("Java CGI ran past its deadline of " + executor.deadline + " ms");
+							status = "504 Gateway Timeout";
+							type = "text/plain";
+							message = toUTF8(status);
+							keepAlive = false; //the endpoint may still be reading the request's body
+							break LOAD;
+						} catch(InterruptedException e) {
+							call.cancel(true);
+							throw e;
+						} catch(ExecutionException e) {
+							Throwable cause = e.getCause(); //(an interrupted endpoint doesn't mean this thread was interrupted)
+							throw cause instanceof Exception && !(cause instanceof InterruptedException) ? (Exception) cause : e;
+						} finally {
+							log.println("   Java CGI Stats: " + executor);
+						}
 					}
-					if( version.equalsIgnoreCase("HTCPCP/1.0") ) {
-						//see HTCPCP, defined in RFC 2324
-						errLog.println("Request for coffie could not be filled. (TODO: Future extension?)");
-						status = "418 I'm a teapot";
+					response.finish();
+				} catch(InterruptedException e) {
+					throw e;
+				} catch(Exception e) {
+					if( response.isCommitted() ) //too late to send an error; abort the connection instead
+						throw (e instanceof IOException ? (IOException) e : new IOException(e));
+					e.printStackTrace(errLog);
+					status = "500 Internal Server Error";
+					type = "text/plain";
+					message = toUTF8( status + "\n" + e );
+					break LOAD;
+				}
+				return endRequest(response.keepAlive);
+				
+			}
+			
+			//check if the request resource actually exists (i.e. existent file, directory, etc...)
+			if( resource.kind == ResourceResolver.Kind.NOT_FOUND ) {
+				status = "404 Not Found";
+				type = "text/plain";
+				message = toUTF8(status);
+				break LOAD;
+			}
+			
+			//check the type of resource: file, directory, (or other?)
+			//	(a directory with an index file was already resolved to the index file)
+			if( resource.kind == ResourceResolver.Kind.CGI || resource.kind == ResourceResolver.Kind.FILE ) {
+				
+				log.println("-- Interpreting File Type...");
+				String fileName = resource.fileName;
+				
+				//check if requested resource is in the list of CGI files
+				if( resource.kind == ResourceResolver.Kind.CGI ) {
+					
+					log.println("-- Executing CGI: " + fullPath);
+					//set up a CGI process for native execution
+					ProcessBuilder processBuilder = new ProcessBuilder();
+					processBuilder.directory( fullPath.getParent().toFile() ); //sets the process's working directory
+					//sets up the process's ENV
+					Map<String, String> env = processBuilder.environment();
+					if( !settings.inheritServerEnv )
+						env.clear(); //keeps us from inheriting system's ENV
+					local.populateEnv(env); //populate env with the needed CGI variables
+					
+					//Open the CGI file up and look for a shebang.
+					//	If it exists, run the file using the following command.
+					//	Otherwise try to run the CGI file as a native executable.
+					CgiWorkerPool workers = null; //persistent workers for the script's interpreter, if there are any
+					try( InputStream fileIn = new FileInputStream(fullPath.toFile()) ) {
+						if( fileIn.read() == '#' && fileIn.read() == '!' ) {
+							log.println("   (Script)");
+							try( BufferedReader reader = new BufferedReader(new InputStreamReader(fileIn)) ) {
+								String interpreter = reader.readLine();
+								processBuilder.command(interpreter, fileName);
+								if( interpreter != null )
+									workers = settings.cgiWorkers.get( interpreter.trim() );
+							}
+						} else {
+							log.println("   (Native Executable)");
+							processBuilder.command(fileName);
+						}
+					} catch(IOException e) {
+						e.printStackTrace(errLog);
+						status = "500 Internal Server Error";
 						type = "text/plain";
-						message = toUTF8(status + "\nRequest for coffie could not be filled.");
+						message = toUTF8( status + "\n" + e.getMessage() );
 						break LOAD;
 					}
 					
-					log.println("-- Finding Resource...");
-					Path fullPath; //true path to the requested resource on the underlying OS
-					URI uriObject; //URI object wrapping the URI string, uri, parsed earlier
-					final String relPath, query; //relative path resolved against ROOT_DIR, and the query string following '?'
+					//try to start process (or hand the script to an already running worker)
+					FlightEvents.Event spawning = FlightEvents.begin(FlightEvents.Type.CGI_SPAWN);
+					Process process;
 					try {
-						uriObject = new URI(uri);
-						relPath = uriObject.getPath();
-						query = uriObject.getQuery();
-						fullPath = JavaWebServer.ROOT_DIR.resolve("./" + relPath).normalize();
-					} catch(URISyntaxException e) {
-						//URI could not be resolved against ROOT_DIR, send 400 Bad Request
-						status = "400 Bad Request";
+						if( workers != null ) {
+							log.println("   (Persistent Worker: " + workers.interpreter + ")");
+							process = workers.start( fullPath, processBuilder.directory(), env );
+						} else {
+							process = processBuilder.start();
+						}
+					} catch(SecurityException e) {
+						e.printStackTrace(errLog);
+						status = "403 Forbidden";
 						type = "text/plain";
-						message = toUTF8(status);
+						message = toUTF8( status + "\n" + e.getMessage() );
+						break LOAD;
+					} catch(IOException e) {
+						e.printStackTrace(errLog);
+						status = "500 Internal Server Error";
+						type = "text/plain";
+						message = toUTF8( status + "\n" + e.getMessage() );
 						break LOAD;
 					}
-					//check to make sure requested file would be inside of ROOT_DIR
-					//	or a child of a child of ... ROOT_DIR.
-					//	Also blocks access to ".hidden" files.
-					SECURITY: {
-						if( !fullPath.toFile().isHidden() )
-							for( Path dir = fullPath; dir != null; dir = dir.getParent() )
-								if( dir.equals(JavaWebServer.ROOT_DIR) )
-									break SECURITY;
-						status = "403 Forbidden";
+					if( process == null ) {
+						log.println("   No CGI Worker Free: " + workers);
+						status = "503 Service Unavailable";
 						type = "text/plain";
 						message = toUTF8(status);
 						break LOAD;
 					}
+					//killed if it runs too long, goes quiet, or writes too much (see CgiMonitor)
+					CgiMonitor.Watch watch = settings.cgiMonitor.watch( relPath, process );
+					settings.metrics.countCgiSpawn(workers != null);
+					if( spawning != null )
+						spawning.commit( relPath, String.join(" ", processBuilder.command()), workers != null );
+					FlightEvents.Event running = FlightEvents.begin(FlightEvents.Type.CGI_EXIT);
+					runningScript = () -> { //once the response has been sent (or failed to be)
+						boolean alive = process.isAlive();
+						if( alive )
+							CgiMonitor.destroyTree(process); //e.g. the client went away mid-response
+						else
+							process.destroy();
+						watch.close();
+						if( watch.getViolation() != null )
+							settings.metrics.countCgiKill( watch.getViolation() );
+						else if( alive )
+							settings.metrics.countCgiKill(null); //abandoned
+						if( running != null ) //(a worker's request that was killed has no exit status)
+							running.commit( relPath, alive || watch.getViolation() != null ? -1 : process.exitValue(),
+									watch.getViolation() != null ? watch.getViolation().name() : alive ? "ABANDONED" : null );
+						log.println("   CGI Stats: " + settings.cgiMonitor.getStats(relPath));
+					};
 					
-					//define local method: populateEnv
-					class Local {
-						void populateEnv(Map<String, String> env) {
-							for( String key : fields.keySet() ) {
-								String envKey = key.toUpperCase().replaceAll("-", "_");
-								env.put(envKey, fields.get(key));
-							}
-							env.put("SERVER_NAME", JavaWebServer.NAME);
-							env.put("SERVER_PROTOCOL", JavaWebServer.PROTOCOL);
-							env.put("SERVER_PORT", Integer.toString(settings.port));
-							env.put("REQUEST_METHOD", method);
-							env.put("REMOTE_HOST", socket.getInetAddress().getHostName());
-							env.put("REMOTE_ADDR", socket.getInetAddress().getHostAddress());
-							env.put("SCRIPT_NAME", relPath);
-							if( query != null )
-								env.put("QUERY_STRING", query);
-						}
-					}
-					Local local = new Local(); //instance to invoke Local methods on
-					
-					//check if requested resource is a Java CGI "script"
-					if( settings.javaCGI.containsKey(relPath.toString()) ) {
-						
-						log.println("-- Executing Native Server Process...");
-						Map<String, String> env = new HashMap<String, String>();
-						if( settings.inheritServerEnv )
-							env.putAll( System.getenv() ); //Inherit the system's ENV
-						local.populateEnv(env); //populate env with the needed CGI variables
-						
-						//run the Java CGI process
-						ServerProcess.Results results = settings.javaCGI.get(relPath.toString()).start(
-								new ByteArrayInputStream(requestMessage), env );
-						
-						//dump Java CGI process's standard error stream 
-						for( int b; (b = results.err.read()) >= 0; )
-							errLog.write(b);
+					//interface with the CGI process's standard input and output
+					try {
 						
-						//check exit code of Java CGI process
-						if( results.exitStatus != 0 ) {
-							errLog.println("CGI Process terminated with a non-zero error code: " + results.exitStatus);
-							status = "500 Internal Server Error";
-							type = "text/plain";
-							message = toUTF8( status +"\n(CGI Process terminated with a non-zero error code: "
-									+ results.exitStatus + ")" );
-							break LOAD;
+						//feed the request's message body to CGI process's standard input as it arrives,
+						//	on its own thread so that the process's output can be read (and sent) at the same time
+						Thread inPump;
+						if( requestBody != null ) {
+							final InputStream body = watch.input(requestBody);
+							inPump = settings.threads.newThread( () -> {
+								try( OutputStream processIn = process.getOutputStream() ) {
+									pump(body, processIn);
+								} catch(IOException e) {
+									//e.g. the script ended without reading all of its input; the rest is discarded later
+									log.println("   (CGI input not sent: " + e.getMessage() + ")");
+								}
+							});
+							inPump.start();
+						} else {
+							process.getOutputStream().close();
+							inPump = null;
 						}
 						
-						//parse Java CGI process's standard output, and finalize the HTTP response
+						//dump CGI process's standard error, on its own thread so that neither pipe can fill up and stall the process
+						BufferedInputStream processErr = new BufferedInputStream( process.getErrorStream() );
+						Thread errPump = settings.threads.newThread( () -> {
+							try {
+								pump(processErr, errLog);
+							} catch(IOException e) {
+								e.printStackTrace(errLog);
+							}
+						});
+						errPump.start();
+						
+						//parse CGI process's standard output, and start the HTTP response as soon as the header has been
+						//	(a script that never finishes its header is killed by the watch, which ends the output)
+						BufferedInputStream processOut = new BufferedInputStream( watch.output(process.getInputStream()) );
 						ArrayList<String> head = new ArrayList<String>();
-						ArrayList<Integer> data = new ArrayList<Integer>();
-						for( String line = nextCRLF(results.out); line != null && line.length() != 0; line = nextCRLF(results.out) )
+						String line;
+						while( (line = nextCRLF(processOut)) != null && line.length() != 0 )
 							head.add(line);
-						for( int b; (b = results.out.read()) >= 0; )
-							data.add(b);
 						cgiHeader = head;
-						message = data;
-						break LOAD; //stop trying to load a resource, HTTP response is ready
 						
-					}
-					
-					//check if the request resource actually exists (i.e. existent file, directory, etc...)
-					if( !fullPath.toFile().exists() ) {
-						status = "404 Not Found";
+						if( line == null || !process.isAlive() ) {
+							//already finished, so a failure can still be reported as one
+							message = ResponseBody.readFully(processOut);
+							errPump.join();
+							if( inPump != null )
+								inPump.join();
+							awaitExit(process); //waits for process to finish
+							
+							if( watch.getViolation() != null )
+								throw new IOException("CGI script killed: " + watch.getViolation());
+							
+							//Did the CGI process end, and end with exit code 0?
+							if( process.exitValue() != 0 ) {
+								errLog.println("CGI Process terminated with a non-zero error code: " + process.exitValue());
+								status = "500 Internal Server Error";
+								type = "text/plain";
+								message = toUTF8( status +"\n(CGI Process terminated with a non-zero error code: "
+										+ process.exitValue() + ")" );
+								break LOAD;
+							}
+						} else {
+							//the rest of the output is sent as it's produced (see streamOutput)
+							message = streamOutput( processOut, () -> {
+								errPump.join();
+								if( inPump != null )
+									inPump.join();
+								awaitExit(process);
+								if( watch.getViolation() != null ) {
+									errLog.println("CGI script killed: " + watch.getViolation());
+									throw new IOException("CGI script killed: " + watch.getViolation());
+								}
+								return process.exitValue();
+							});
+						}
+						
+					} catch(IOException e) {
+						//too late for the script's own response; 504 or 502 if it was killed, otherwise 500
+						CgiMonitor.Violation violation = watch.getViolation();
+						if( violation != null ) {
+							errLog.println("CGI script killed: " + violation);
+							status = violation.status;
+						} else {
+							e.printStackTrace(errLog);
+							status = "500 Internal Server Error";
+						}
+						cgiHeader = null;
 						type = "text/plain";
-						message = toUTF8(status);
+						message = toUTF8( status +"\n" + e.getMessage() );
+						keepAlive = false; //the request's body may still be being fed to the script
 						break LOAD;
 					}
 					
-					//if the requested resource is a directory, search for an index file
-					if( fullPath.toFile().isDirectory() )
-						for( String indexFile : settings.indexFiles ) {
-							Path p = fullPath.resolve(indexFile);
-							if( p.toFile().isFile() ) {
-								fullPath = p;
-								break;
-							}
+				} else { //not CGI
+				
+					cacheControl = resource.cacheControl;
+					//compressible files are sent compressed, if the client accepts it
+					//	(but not for ranges, which refer to the uncompressed file here)
+					if( settings.compressor != null && settings.compressor.isCompressible(resource.type) ) {
+						vary = true;
+						if( !fields.containsKey("range") )
+							contentEncoding = settings.compressor.choose( fields.get("accept-encoding"), resource.type, resource.size );
+					}
+					
+					//the representation that will be sent (a file too large to compress on the fly may have to go as is)
+					String variantETag = resource.etag;
+					if( contentEncoding != null ) {
+						variantETag = settings.compressor.getVariantETag( fullPath, resource.size, resource.lastModified,
+								resource.etag, contentEncoding, settings.weakETags );
+						if( variantETag == null ) {
+							contentEncoding = null;
+							variantETag = resource.etag;
 						}
+					}
 					
-					//check the type of resource (now): file, directory, (or other?)
-					if( fullPath.toFile().isFile() ) {
-						
-						log.println("-- Interpreting File Type...");
-						String ext; //the file extension
-						String fileName = fullPath.getFileName().toString();
-						{	int i = fileName.lastIndexOf('.');
-							ext = (i <= 0 ? "" : fileName.substring(i + 1));
+					//the client's copy is still current, so answer without reading the file
+					if( ConditionalRequest.isNotModified(method, fields, variantETag, resource.lastModified) ) {
+						log.println("-- Not Modified: " + fullPath);
+						status = "304 Not Modified";
+						date = resource.date;
+						etag = variantETag;
+						contentEncoding = null;
+						break LOAD;
+					}
+					
+					log.println("-- Reading File: " + fullPath);
+					long lastModified; //the file's last modified time, and length, as of reading it
+					long length;
+					FlightEvents.Event opening = FlightEvents.begin(FlightEvents.Type.FILE_OPENED);
+					try {
+						//small files that haven't changed are served straight from memory
+						StaticContentCache.Entry cached = settings.contentCache != null ? settings.contentCache.get(fullPath) : null;
+						if( settings.contentCache != null )
+							settings.metrics.countCacheLookup(cached != null);
+						if( cached != null ) {
+							log.println("   (Cached)");
+							type = cached.type;
+						} else {
+							type = resource.type;
+							log.println("   MIME Type: " + type);
+							//small files are read into the cache, and sent from there
+							if( settings.contentCache != null )
+								cached = settings.contentCache.load(fullPath, type, settings.weakETags);
 						}
 						
-						//check if requested resource is in the list of CGI files
-						if( settings.cgiFiles.contains(relPath.toString()) ) {
-							
-							log.println("-- Executing CGI: " + fullPath);
-							//set up a CGI process for native execution
-							ProcessBuilder processBuilder = new ProcessBuilder();
-							processBuilder.directory( fullPath.getParent().toFile() ); //sets the process's working directory
-							//sets up the process's ENV
-							Map<String, String> env = processBuilder.environment();
-							if( !settings.inheritServerEnv )
-								env.clear(); //keeps us from inheriting system's ENV
-							local.populateEnv(env); //populate env with the needed CGI variables
-							
-							//Open the CGI file up and look for a shebang.
-							//	If it exists, run the file using the following command.
-							//	Otherwise try to run the CGI file as a native executable.
-							try( InputStream fileIn = new FileInputStream(fullPath.toFile()) ) {
-								if( fileIn.read() == '#' && fileIn.read() == '!' ) {
-									log.println("   (Script)");
-									try( BufferedReader reader = new BufferedReader(new InputStreamReader(fileIn)) ) {
-										processBuilder.command( reader.readLine(), fileName );
-									}
-								} else {
-									log.println("   (Native Executable)");
-									processBuilder.command(fileName);
-								}
-							} catch(IOException e) {
-								e.printStackTrace(errLog);
-								status = "500 Internal Server Error";
-								type = "text/plain";
-								message = toUTF8( status + "\n" + e.getMessage() );
-								break LOAD;
-							}
-							
-							//try to start process
-							Process process = null;
-							try {
-								process = processBuilder.start();
-							} catch(SecurityException e) {
-								e.printStackTrace(errLog);
-								status = "403 Forbidden";
-								type = "text/plain";
-								message = toUTF8( status + "\n" + e.getMessage() );
-								break LOAD;
-							} catch(IOException e) {
-								e.printStackTrace(errLog);
-								status = "500 Internal Server Error";
-								type = "text/plain";
-								message = toUTF8( status + "\n" + e.getMessage() );
-								break LOAD;
-							}
-							
-							//interface with the CGI process's standard input and output
-							try(	BufferedOutputStream processIn = new BufferedOutputStream( process.getOutputStream() );
-									BufferedInputStream processOut = new BufferedInputStream( process.getInputStream() );
-									BufferedInputStream processErr = new BufferedInputStream( process.getErrorStream() );
-							) {
-								
-								//send request's message body to CGI process's standard input
-								processIn.write(requestMessage);
-								processIn.close();
-								
-								//parse CGI process's standard output, and finalize the HTTP response
-								//	TODO: potential infinite halt when reading from processOut!
-								ArrayList<String> head = new ArrayList<String>();
-								ArrayList<Integer> data = new ArrayList<Integer>();
-								for( String line = nextCRLF(processOut); line != null && line.length() != 0; line = nextCRLF(processOut) )
-									head.add(line);
-								for( int b; (b = processOut.read()) >= 0; )
-									data.add(b);
-								cgiHeader = head;
-								message = data;
-								
-								//dump CGI process's standard error
-								//	TODO: potential infinite halt when reading from processErr!
-								for( int b; (b = processErr.read()) >= 0; )
-									errLog.write(b);
-								
-								process.waitFor(); //waits for process to finish
-								
-								//Did the CGI process end, and end with exit code 0?
-								if( process.exitValue() != 0 ) {
-									errLog.println("CGI Process terminated with a non-zero error code: " + process.exitValue());
-									status = "500 Internal Server Error";
-									type = "text/plain";
-									message = toUTF8( status +"\n(CGI Process terminated with a non-zero error code: "
-											+ process.exitValue() + ")" );
-									break LOAD;
-								}
-								
-							} catch(IOException e) {
-								e.printStackTrace(errLog);
-								status = "500 Internal Server Error";
-								type = "text/plain";
-								message = toUTF8( status +"\n" + e.getMessage() );
-								break LOAD;
-							} finally {
-								process.destroy();
+						if( cached != null ) {
+							date = cached.date;
+							etag = cached.etag;
+							message = cached.getBody();
+							lastModified = cached.lastModified;
+							length = cached.bytes.length;
+						} else {
+							//get files "last modified" date and entity tag (already made, unless the file has changed since it was resolved)
+							BasicFileAttributes attrs = Files.readAttributes(fullPath, BasicFileAttributes.class);
+							lastModified = attrs.lastModifiedTime().toMillis();
+							length = attrs.size();
+							if( lastModified == resource.lastModified && length == resource.size ) {
+								date = resource.date;
+								etag = resource.etag;
+							} else {
+								date = toHttpDate(lastModified);
+								etag = ConditionalRequest.etag(attrs, settings.weakETags);
 							}
 							
-						} else { //not CGI
+							//finalize the HTTP response; the file itself is only read while it's being sent
+							message = ResponseBody.of(fullPath, 0, length);
+						}
+						rangeable = true;
+						if( opening != null )
+							opening.commit( fullPath.toString(), length, cached != null );
 						
-							log.println("-- Reading File: " + fullPath);
-							//get files MIME type
-							type = Files.probeContentType(fullPath);
-							if( type == null )
-								type = settings.mimeTypes.get(ext);
-							log.println("   MIME Type: " + type);
-							
-							//get files "last modified" date
-							date = toHttpDate( fullPath.toFile().lastModified() );
-							
-							//read the requested file, then finalize the HTTP response
-							try( BufferedInputStream fileIn = new BufferedInputStream(new FileInputStream(fullPath.toFile())) ) {
-								ArrayList<Integer> data = new ArrayList<Integer>();
-								for( int b; (b = fileIn.read()) >= 0; )
-									data.add(b);
-								message = data;
-							} catch(IOException e) {
-								e.printStackTrace(errLog);
-								status = "500 Internal Server Error";
-								type = "text/plain";
-								message = toUTF8( status + "\n" + e.getMessage() );
+						if( contentEncoding != null ) {
+							//(decided above, unless the file has changed since it was resolved)
+							String compressedETag = lastModified == resource.lastModified && length == resource.size ? variantETag
+									: settings.compressor.getVariantETag(fullPath, length, lastModified, etag, contentEncoding, settings.weakETags);
+							ResponseBody compressed = compressedETag == null ? null
+									: settings.compressor.getFile(fullPath, lastModified, length, etag, message, contentEncoding);
+							if( compressed != null ) {
+								log.println("   Content Encoding: " + contentEncoding);
+								message = compressed;
+								etag = compressedETag;
+							} else {
+								contentEncoding = null; //too large to compress on the fly
 							}
 						}
-						
-					} else if( fullPath.toFile().isDirectory() ) {
-						//the requested resource was a directory and there was no index file
-						//	so generate an index file listing the directory's contents.
-						
-						log.println("-- Generating Index: " + fullPath);
-						type = "text/html";
-						StringBuilder builder = new StringBuilder(
-								"<!doctype html>\r\n\r\n" +
-								"<html>\r\n\r\n" +
-								"<head>\r\n" +
-								"\t<meta charset='UTF-8' />\r\n" +
-								"\t<meta name='generator' content='" + JavaWebServer.NAME + "' />\r\n" +
-								"\t<title>Index of " + relPath + "</title>\r\n" +
-								"</head>\r\n\r\n\r\n" +
-								"<body>\r\n" +
-								"\t<h1>Index of " + relPath + "</h1>\r\n" +
-								"\t<hr />\r\n" +
-								"\t<ul>\r\n"
-						);
-						builder.append("\t\t<li><a href='" + relPath + "'>.</a></li>\r\n");
-						// if( !Files.isSameFile(fullPath, ROOT_DIR) ) //don't display an entry for ".." if this is ROOT_DIR
-							builder.append("\t\t<li><a href='" + relPath + "/..'>..</a></li>\r\n");
-						for( String child : fullPath.toFile().list() )
-							builder.append( String.format( "\t\t<li><a href='%s/%s'>%s</a></li>\r\n", relPath, child, child ) );
-						builder.append("\t</ul>\r\n</body>\r\n\r\n</html>");
-						
-						message = toUTF8( builder.toString() );
-						
-					} else {
-						errLog.println("Request was for not for a file nor a directory?");
-						status = "403 Forbidden";
+					} catch(NoSuchFileException e) {
+						//deleted since it was resolved
+						settings.resolver.invalidate(rawPath);
+						status = "404 Not Found";
 						type = "text/plain";
-						message = toUTF8( status + "\nRequest was for not for a file nor a directory?" );
+						message = toUTF8(status);
+						contentEncoding = null;
+					} catch(IOException e) {
+						e.printStackTrace(errLog);
+						status = "500 Internal Server Error";
+						type = "text/plain";
+						message = toUTF8( status + "\n" + e.getMessage() );
+						contentEncoding = null;
 					}
 				}
 				
-				log.println("-- Sending HTTP Response Header...");
-				String response = JavaWebServer.PROTOCOL + " " + status;
-				log.println("   HTTP Response: " + response);
+			} else if( resource.kind == ResourceResolver.Kind.DIRECTORY ) {
+				//the requested resource was a directory and there was no index file
+				//	so generate an index file listing the directory's contents.
 				
-				output.print(response + "\r\n");
-				output.print("Date: " + getHttpDtae() + "\r\n");
-				output.print("Server: " + JavaWebServer.NAME + "\r\n");
-				output.print("Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n");
-				// output.print("Cache-Control: no-cache\r\n");
-				output.print("Content-Length: " + (message != null ? message.size() : 0) + "\r\n");
-				if( type != null )
-					output.print("Content-Type: " + type + "\r\n");
-				if( date != null )
-					output.print("Last-Modified: " + date + "\r\n");
-				if( cgiHeader != null ) {
-					for( String line : cgiHeader )
-						output.print(line + "\r\n");
+				cacheControl = resource.cacheControl;
+				date = resource.date;
+				etag = resource.etag;
+				//(a weak tag, so the client's copy is current whether it was compressed or not)
+				if( ConditionalRequest.isNotModified(method, fields, etag, resource.lastModified)
+						|| settings.compressor != null && ConditionalRequest.isNotModified(method, fields,
+								ContentCompressor.variantETag(etag, ContentCompressor.GZIP), resource.lastModified)
+						|| settings.compressor != null && ConditionalRequest.isNotModified(method, fields,
+								ContentCompressor.variantETag(etag, ContentCompressor.DEFLATE), resource.lastModified) ) {
+					log.println("-- Not Modified: " + fullPath);
+					status = "304 Not Modified";
+					break LOAD;
 				}
-				output.print("\r\n");
-				output.flush();
 				
-				if( message != null ) {
-					log.println("-- Sending Message...");
-					for( int b : message )
-						output.write(b);
-					output.flush();
-				}
+				log.println("-- Generating Index: " + fullPath);
+				type = "text/html";
+				StringBuilder builder = new StringBuilder(
+						"<!doctype html>\r\n\r\n" +
+						"<html>\r\n\r\n" +
+						"<head>\r\n" +
+						"\t<meta charset='UTF-8' />\r\n" +
+						"\t<meta name='generator' content='" + JavaWebServer.NAME + "' />\r\n" +
+						"\t<title>Index of " + relPath + "</title>\r\n" +
+						"</head>\r\n\r\n\r\n" +
+						"<body>\r\n" +
+						"\t<h1>Index of " + relPath + "</h1>\r\n" +
+						"\t<hr />\r\n" +
+						"\t<ul>\r\n"
+				);
+				builder.append("\t\t<li><a href='" + relPath + "'>.</a></li>\r\n");
+				// if( !Files.isSameFile(fullPath, ROOT_DIR) ) //don't display an entry for ".." if this is ROOT_DIR
+					builder.append("\t\t<li><a href='" + relPath + "/..'>..</a></li>\r\n");
+				for( String child : fullPath.toFile().list() )
+					builder.append( String.format( "\t\t<li><a href='%s/%s'>%s</a></li>\r\n", relPath, child, child ) );
+				builder.append("\t</ul>\r\n</body>\r\n\r\n</html>");
 				
-				log.println("--------------------------------------------------------------------------------");
+				message = toUTF8( builder.toString() );
 				
-			} while(keepAlive);
+			} else {
+				errLog.println("Request was for not for a file nor a directory?");
+				status = "403 Forbidden";
+				type = "text/plain";
+				message = toUTF8( status + "\nRequest was for not for a file nor a directory?" );
+			}
+		}
+		
+		//compress generated output (CGI, Java CGI, and directory indexes) for clients that accept it
+		if( settings.compressor != null && message != null && !rangeable && status.equals("200 OK") ) {
+			String generatedType = (cgiHeader != null ? findField(cgiHeader, "Content-Type") : type);
+			if( settings.compressor.isCompressible(generatedType)
+					&& (cgiHeader == null || findField(cgiHeader, "Content-Encoding") == null) ) {
+				vary = true;
+				contentEncoding = settings.compressor.choose( fields.get("accept-encoding"), generatedType, message.length() );
+				if( contentEncoding != null ) {
+					log.println("-- Compressing Message: " + contentEncoding);
+					message = settings.compressor.getStream(message, contentEncoding);
+					etag = ContentCompressor.variantETag(etag, contentEncoding);
+				}
+			}
+		}
+		
+		//only send the requested part(s) of a static file
+		if( rangeable && fields.containsKey("range") && method.equalsIgnoreCase("GET") && ConditionalRequest.ifRangeMatches(fields.get("if-range"), etag, date) ) {
+			long total = message.length();
+			List<ByteRange> ranges = ByteRange.parse( fields.get("range"), total );
+			if( ranges == null ) {
+				log.println("   Range Ignored: " + fields.get("range"));
+			} else if( ranges.isEmpty() ) {
+				status = "416 Range Not Satisfiable";
+				contentRange = "bytes */" + total;
+				type = "text/plain";
+				message = toUTF8(status);
+			} else if( ranges.size() == 1 ) {
+				ByteRange range = ranges.get(0);
+				status = "206 Partial Content";
+				contentRange = range.toContentRange(total);
+				message = message.slice( range.first, range.length() );
+			} else {
+				//each part gets its own header; the file regions are still only read while they're sent
+				String boundary = "JWS" + Long.toHexString( ThreadLocalRandom.current().nextLong() );
+				List<ResponseBody> parts = new ArrayList<>();
+				for( ByteRange range : ranges ) {
+					parts.add( toUTF8( "\r\n--" + boundary + "\r\n"
+							+ (type != null ? "Content-Type: " + type + "\r\n" : "")
+							+ "Content-Range: " + range.toContentRange(total) + "\r\n\r\n" ) );
+					parts.add( message.slice(range.first, range.length()) );
+				}
+				parts.add( toUTF8("\r\n--" + boundary + "--\r\n") );
+				status = "206 Partial Content";
+				type = "multipart/byteranges; boundary=" + boundary;
+				message = ResponseBody.concat(parts);
+			}
+		}
+		
+		//a client still waiting for "100 Continue" may or may not send the body anyway, so the connection can't be reused
+		if( awaitingContinue && requestBody.length() != 0 )
+			keepAlive = false;
+		
+		//a streamed message's length isn't known until it's been sent, so HTTP/1.1 clients get it in chunks,
+		//	and HTTP/1.0 clients (who don't know chunked encoding) get it until the connection closes
+		boolean streamed = (message != null && message.length() == ResponseBody.UNKNOWN_LENGTH);
+		boolean chunked = streamed && version.equalsIgnoreCase("HTTP/1.1");
+		if( streamed && !chunked )
+			keepAlive = false;
+		
+		List<String> header = new ArrayList<>();
+		if( allow != null )
+			header.add("Allow: " + allow);
+		// header.add("Cache-Control: no-cache");
+		if( chunked )
+			header.add("Transfer-Encoding: chunked");
+		else if( !streamed && !status.startsWith("304") ) //a 304 describes the client's cached copy, so its length and type are left out
+			header.add("Content-Length: " + (message != null ? message.length() : 0));
+		if( type != null )
+			header.add("Content-Type: " + type);
+		if( date != null )
+			header.add("Last-Modified: " + date);
+		if( etag != null )
+			header.add("ETag: " + etag);
+		if( cacheControl != null )
+			header.add("Cache-Control: " + cacheControl);
+		if( contentEncoding != null )
+			header.add("Content-Encoding: " + contentEncoding);
+		if( vary )
+			header.add("Vary: Accept-Encoding");
+		if( rangeable )
+			header.add("Accept-Ranges: bytes");
+		if( contentRange != null )
+			header.add("Content-Range: " + contentRange);
+		if( cgiHeader != null )
+			header.addAll(cgiHeader);
+		writeHeader(status, keepAlive, header);
+		
+		if( streamed ) {
+			log.println("-- Streaming Message..." + (chunked ? " (Chunked)" : ""));
+			if( chunked ) {
+				ChunkedOutputStream chunks = new ChunkedOutputStream(outputBuffer);
+				message.writeTo(chunks);
+				chunks.finish();
+			} else {
+				message.writeTo(outputBuffer);
+				outputBuffer.flush();
+			}
+		} else if( message != null ) {
+			log.println("-- Sending Message...");
+			long buffered = this.bytesSent;
+			message.writeTo( output, settings.zeroCopyStaticFiles ? socket.getChannel() : null );
+			output.flush();
+			this.bytesSent += message.length() - (this.bytesSent - buffered); //whatever didn't go through outputBuffer went straight from a file
+		}
+		
+		return endRequest(keepAlive);
+	}
+	
+	/**
+	 * Runs a Java CGI, as a {@link FlightEvents.Type#JAVA_CGI_INVOKE} event.
+	 * 
+	 * @param endpoint - The Java CGI.
+	 * @param path - Its path.
+	 * @param request - The request.
+	 * @param response - Where it sends the response.
+	 * @throws Exception - Whatever the endpoint throws.
+	 */
+	private static void invoke(ServerEndpoint endpoint, String path, ServerEndpoint.Request request, ServerEndpoint.Response response)
+			throws Exception {
+		FlightEvents.Event event = FlightEvents.begin(FlightEvents.Type.JAVA_CGI_INVOKE);
+		String thrown = null;
+		try {
+			endpoint.handle(request, response);
+		} catch(Exception | Error e) {
+			thrown = e.getClass().getName();
+			throw e;
+		} finally {
+			if( event != null )
+				event.commit( path, endpoint.toString(), response.getStatus(), thrown );
+		}
+	}
+	
+	/**
+	 * Writes a response's status line, the header fields every response gets, then the given ones.
+	 * 
+	 * @param status - e.g. "200 OK".
+	 * @param keepAlive - Whether the connection will be maintained after this response.
+	 * @param header - The rest of the header fields, e.g. "Content-Type: text/html".
+	 * @throws IOException - If a write error occurs.
+	 */
+	private void writeHeader(String status, boolean keepAlive, List<String> header) throws IOException {
+		log.println("-- Sending HTTP Response Header...");
+		String response = JavaWebServer.PROTOCOL + " " + status;
+		log.println("   HTTP Response: " + response);
+		record.status = status;
+		record.responded = System.nanoTime();
+		flushing = FlightEvents.begin(FlightEvents.Type.RESPONSE_FLUSHED);
+		long bytesSent = this.bytesSent;
+		
+		output.print(response + "\r\n");
+		output.print("Date: " + getHttpDtae() + "\r\n");
+		output.print("Server: " + JavaWebServer.NAME + "\r\n");
+		output.print("Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n");
+		if( status.startsWith("503") )
+			output.print("Retry-After: " + settings.admission.retryAfter + "\r\n");
+		for( String line : header )
+			output.print(line + "\r\n");
+		output.print("\r\n");
+		output.flush();
+		record.headerBytes = this.bytesSent - bytesSent;
+	}
+	
+	/**
+	 * Finishes with the request, once its response has been sent.
+	 * 
+	 * @param keepAlive - Whether the connection should be maintained, as far as the response is concerned.
+	 * @return true iff the connection should be maintained for another request.
+	 * @throws IOException - If a read error occurs on the connection.
+	 */
+	private boolean endRequest(boolean keepAlive) throws IOException {
+		//whatever of the request's body wasn't used (e.g. by a script that ignored it) has to be read before the next request can be
+		if( keepAlive && requestBody != null && !requestBody.discard(MAX_DISCARDED_BODY) ) {
+			log.println("-- Request Body Too Long to Discard; Closing Connection...");
+			keepAlive = false;
+		}
+		
+		log.println("--------------------------------------------------------------------------------");
+		
+		return keepAlive;
+	}
+	
+	/**
+	 * The response of a {@link ServerEndpoint}, written straight to this connection.
+	 * Up to {@link #BUFFER_SIZE} bytes of the body are held back until the endpoint returns, so a short response can be sent
+	 * with a "Content-Length" (and compressed all at once); a longer (or flushed) one is sent as it's written,
+	 * in chunks for HTTP/1.1 clients, or until the connection closes for HTTP/1.0 clients.
+	 */
+	private final class EndpointResponse extends ServerEndpoint.Response
+	{
+		static final int BUFFER_SIZE = 8192;
+		
+		private final String version, acceptEncoding;
+		
+		/** Whether the connection can be maintained after this response. */
+		boolean keepAlive;
+		
+		/** The body, until the response is committed. */
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private int buffered = 0;
+		
+		/** Set (under this response's lock) once the header is about to be sent, or once the connection has given up on the
+			endpoint (see {@link #abandon()}); either way, nothing else can be. The lock is never held while writing to the socket. */
+		private volatile boolean committed = false, abandoned = false;
+		
+		/** Where the body goes once the response is committed, and the layers it goes through. */
+		private OutputStream sink;
+		private ChunkedOutputStream chunks;
+		private OutputStream compressing;
+		
+		/** Bytes of the body left to be written, if it was sent with a "Content-Length"; otherwise -1. */
+		private long remaining = -1;
+		
+		private final OutputStream body = new OutputStream() {
+			public void write(int b) throws IOException {
+				write( new byte[] { (byte) b }, 0, 1 );
+			}
+			public void write(byte[] b, int off, int len) throws IOException {
+				if( !committed ) {
+					synchronized(EndpointResponse.this) {
+						checkAbandoned();
+						if( buffered + len <= buffer.length ) {
+							System.arraycopy(b, off, buffer, buffered, len);
+							buffered += len;
+							return;
+						}
+					}
+					commit(false);
+				}
+				checkAbandoned();
+				if( remaining >= 0 && (remaining -= len) < 0 )
+					throw new IOException("endpoint wrote more than its Content-Length");
+				sink.write(b, off, len);
+			}
+			public void flush() throws IOException {
+				if( !committed )
+					commit(false);
+				sink.flush();
+			}
+		};
+		
+		EndpointResponse(String version, String acceptEncoding, boolean keepAlive) {
+			this.version = version;
+			this.acceptEncoding = acceptEncoding;
+			this.keepAlive = keepAlive;
+		}
+		
+		public boolean isCommitted() {
+			return committed;
+		}
+		
+		public OutputStream getOutputStream() {
+			return body;
+		}
+		
+		protected synchronized void resetBuffer() {
+			buffered = 0;
+		}
+		
+		/**
+		 * Gives up on the endpoint (e.g. its deadline passed): nothing more it writes is sent.
+		 * 
+		 * @return true if the response hadn't been committed, so another can be sent in its place.
+		 */
+		synchronized boolean abandon() {
+			abandoned = true;
+			return !committed;
+		}
+		
+		private void checkAbandoned() throws IOException {
+			if( abandoned )
+				throw new IOException("response abandoned (the endpoint ran past its deadline)");
+		}
+		
+		/**
+		 * Sends the status and header fields, then whatever of the body has been buffered.
+		 * 
+		 * @param complete - Whether the endpoint has returned, so the buffer holds the whole body.
+		 */
+		private void commit(boolean complete) throws IOException {
+			long length = ResponseBody.UNKNOWN_LENGTH;
+			String declared = getHeader("Content-Length");
+			if( declared != null ) {
+				try {
+					length = Long.parseLong(declared);
+				} catch(NumberFormatException e) {
+					throw new IOException("endpoint sent a malformed Content-Length: " + declared);
+				}
+				if( complete && length != buffered )
+					throw new IOException("endpoint wrote " + buffered + " bytes, but its Content-Length was " + length);
+			} else if( complete ) {
+				length = buffered;
+			}
 			
-			log.println("-- Closing Connection...");
+			//compressible output is compressed for clients that accept it, all at once if it's all here, otherwise as it's sent
+			List<String> header = new ArrayList<>();
+			String type = getHeader("Content-Type");
+			ResponseBody content = ResponseBody.of(buffer, 0, buffered);
+			String encoding = null;
+			if( settings.compressor != null && getStatus().startsWith("200") && getHeader("Content-Encoding") == null
+					&& settings.compressor.isCompressible(type) ) {
+				header.add("Vary: Accept-Encoding");
+				encoding = settings.compressor.choose(acceptEncoding, type, length);
+				if( encoding != null ) {
+					log.println("-- Compressing Message: " + encoding);
+					header.add("Content-Encoding: " + encoding);
+					if( complete ) {
+						content = settings.compressor.getStream(content, encoding);
+						length = content.length();
+					} else {
+						length = ResponseBody.UNKNOWN_LENGTH;
+					}
+				}
+			}
+			setHeader("Content-Length", null); //replaced below
 			
-		} catch(SocketTimeoutException e) {
+			boolean chunked = (length == ResponseBody.UNKNOWN_LENGTH && version.equalsIgnoreCase("HTTP/1.1"));
+			if( chunked )
+				header.add("Transfer-Encoding: chunked");
+			else if( length != ResponseBody.UNKNOWN_LENGTH )
+				header.add("Content-Length: " + length);
+			else
+				keepAlive = false; //an HTTP/1.0 client is sent the body until the connection closes
+			header.addAll( getHeaderLines() );
 			
+			synchronized(this) {
+				checkAbandoned();
+				committed = true;
+			}
+			writeHeader(getStatus(), keepAlive, header);
+			sink = outputBuffer;
+			if( chunked )
+				sink = chunks = new ChunkedOutputStream(sink);
+			if( encoding != null && !complete )
+				sink = compressing = settings.compressor.getOutputStream(sink, encoding);
+			else if( length != ResponseBody.UNKNOWN_LENGTH )
+				remaining = length - content.length();
+			content.writeTo(sink);
+			buffer = null;
+		}
+		
+		/** Called once the endpoint has returned: sends the rest of the response. */
+		void finish() throws IOException {
+			if( !committed ) {
+				commit(true);
+			} else {
+				if( compressing != null )
+					compressing.close();
+				if( chunks != null )
+					chunks.finish();
+				if( remaining > 0 )
+					throw new IOException("endpoint wrote " + remaining + " bytes less than its Content-Length");
+			}
+			outputBuffer.flush();
+		}
+	}
+	
+	/**
+	 * Counts this connection against {@link AdmissionControl#maxConnections}.
+	 * Called by connection engines once the connection is accepted; the count is released by {@link #close()}.
+	 * 
+	 * @return true if this connection may be handled, false if it should be {@link #shed()}.
+	 */
+	public boolean admit() {
+		return admitted = settings.admission.tryOpenConnection();
+	}
+	
+	/**
+	 * Responds "503 Service Unavailable" without reading the request, then closes this connection.
+	 * For when the server already has too many connections to handle this one.
+	 * The response is small enough to fit in the socket's send buffer, so this won't block.
+	 */
+	public void shed() {
+		log.println("-- Server Saturated: " + settings.admission);
+		try {
+			open();
+			String status = "503 Service Unavailable";
+			output.print(JavaWebServer.PROTOCOL + " " + status + "\r\n");
+			output.print("Date: " + getHttpDtae() + "\r\n");
+			output.print("Server: " + JavaWebServer.NAME + "\r\n");
+			output.print("Connection: close\r\n");
+			output.print("Retry-After: " + settings.admission.retryAfter + "\r\n");
+			output.print("Content-Length: " + status.length() + "\r\n");
+			output.print("Content-Type: text/plain\r\n");
+			output.print("\r\n");
+			output.print(status);
+			output.flush();
+		} catch(IOException e) {
+			abort(e);
+		} finally {
+			close();
+		}
+	}
+	
+	/**
+	 * For connection engines that wait for requests themselves (without a thread.)
+	 * Reads whatever bytes are available from this connection's non-blocking channel.
+	 * 
+	 * @return The number of bytes read, or -1 if the connection has ended.
+	 * @throws IOException - If a read error occurs.
+	 */
+	public int readAvailable() throws IOException {
+		return input.fill( socket.getChannel() );
+	}
+	
+	/** @return true if a whole request header has been read (or too much to be a valid one),
+	    so {@link #handleRequest()} won't need to wait for it. */
+	public boolean hasBufferedRequest() {
+		return input.hasRequest();
+	}
+	
+	/** Logs why this connection has to be closed. */
+	public void abort(Exception e) {
+		if( e instanceof SocketTimeoutException ) {
 			log.println("-- Connection Closed due to Inactivity.");
-			
-		} catch(Exception e) {
-			
+		} else {
 			log.println("-- Connection Aborted!");
 			e.printStackTrace(errLog);
-			
-		} finally {
-			
-			try {
-				log.close();
-				errLog.close();
-				socket.close();
-			} catch(IOException e) {
-				e.printStackTrace();
-			}
-			
+		}
+	}
+	
+	/** Closes this connection, and its logs. */
+	public void close() {
+		if( admitted ) {
+			admitted = false;
+			settings.admission.connectionClosed();
+		}
+		if( counted ) {
+			counted = false;
+			settings.metrics.connectionClosed();
+		}
+		try {
+			log.close();
+			errLog.close();
+			if( input != null )
+				input.close();
+			if( output != null )
+				output.close();
+			socket.close();
+		} catch(IOException e) {
+			e.printStackTrace();
 		}
 	}
 }
@@ -0,0 +1,74 @@
+package com.mathhead200.web_server;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+
+/**
+ * Formats dates for HTTP headers (RFC 1123 format, e.g. "Sun, 06 Nov 1994 08:49:37 GMT".)
+ * The current date is only formatted once per second, and shared by every thread,
+ * so the "Date" header costs a volatile read instead of a new formatter per response.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class HttpDate
+{
+	/** The RFC 1123 date format. Thread-safe, unlike SimpleDateFormat. */
+	private static final DateTimeFormatter FORMAT =
+			DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	/** A formatted second. Immutable, so it can be swapped in without locking. */
+	private static final class Second
+	{
+		final long epochSecond;
+		final String text;
+
+		Second(long epochSecond) {
+			this.epochSecond = epochSecond;
+			this.text = FORMAT.format( Instant.ofEpochSecond(epochSecond) );
+		}
+	}
+
+	/** The most recently formatted current time. */
+	private static volatile Second current = new Second( System.currentTimeMillis() / 1000 );
+
+
+	private HttpDate() {
+	}
+
+
+	/** @return The current time in RFC 1123 format. */
+	public static String now() {
+		long epochSecond = System.currentTimeMillis() / 1000;
+		Second second = current;
+		if( second.epochSecond != epochSecond )
+			current = second = new Second(epochSecond); //racing threads would format the same string; harmless
+		return second.text;
+	}
+
+	/**
+	 * @param timestamp - Milliseconds since the epoch.
+	 * @return The given time in RFC 1123 format. (Milliseconds are dropped.)
+	 */
+	public static String format(long timestamp) {
+		Second second = current;
+		if( second.epochSecond == Math.floorDiv(timestamp, 1000) )
+			return second.text;
+		return FORMAT.format( Instant.ofEpochMilli(timestamp) );
+	}
+
+	/**
+	 * @param date - A date in RFC 1123 format, e.g. from an "If-Modified-Since" header.
+	 * @return The date in milliseconds since the epoch, or -1 if it isn't a valid RFC 1123 date.
+	 */
+	public static long parse(String date) {
+		try {
+			return Instant.from( FORMAT.parse(date.trim()) ).toEpochMilli();
+		} catch(DateTimeException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package com.mathhead200.web_server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * The header of an HTTP request, as read by {@link HttpRequestParser}.
+ * One instance is reused for every request on a connection.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class HttpRequest
+{
+	/** The request method, e.g. "GET" or "POST". */
+	public String method;
+
+	/** The request URI, exactly as sent (but decoded from UTF-8.) */
+	public String uri;
+
+	/** The protocol, e.g. "HTTP/1.1". */
+	public String version;
+
+	/** The header fields, by lower case field name. */
+	public final Map<String, String> fields = new HashMap<String, String>();
+
+
+	/** Clears this request so it can be reused for the next one. */
+	public void reset() {
+		method = null;
+		uri = null;
+		version = null;
+		fields.clear();
+	}
+
+	/** @return The request line, e.g. "GET / HTTP/1.1". */
+	public String toString() {
+		return method + " " + uri + " " + version;
+	}
+}
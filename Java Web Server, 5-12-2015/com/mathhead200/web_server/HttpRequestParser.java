@@ -0,0 +1,405 @@
+package com.mathhead200.web_server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+
+/**
+ * Reads HTTP request headers off of a connection.
+ * Bytes are read into a reusable buffer and scanned for line endings there,
+ * and the request line and header fields are split up by hand (no regular expressions.)
+ * Common methods, versions, and field names are matched against constants instead of allocating new strings.
+ * <br>
+ * The parser is also the {@link InputStream} the request's message body should be read from,
+ * since some of it may already be in the parser's buffer.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class HttpRequestParser extends InputStream
+{
+	/** Thrown when a request can't (or won't) be parsed. The connection can't be reused afterwards. */
+	public static final class RejectedException extends IOException
+	{
+		private static final long serialVersionUID = -2417843017218829613L;
+
+		/** The HTTP status to respond with, e.g. "400 Bad Request". */
+		public final String status;
+
+		RejectedException(String status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+
+	private static final String BAD_REQUEST = "400 Bad Request";
+	private static final String URI_TOO_LONG = "414 URI Too Long";
+	private static final String HEADER_TOO_LARGE = "431 Request Header Fields Too Large";
+
+	private static final String[] KNOWN_METHODS = {
+		"GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE", "CONNECT", "PATCH"
+	};
+
+	private static final String[] KNOWN_VERSIONS = {
+		"HTTP/1.1", "HTTP/1.0", "HTCPCP/1.0"
+	};
+
+	/** Field names (in lower case) that are shared instead of being allocated for each request. */
+	private static final String[] KNOWN_FIELDS = {
+		"host", "connection", "keep-alive", "content-length", "content-type", "transfer-encoding", "expect",
+		"accept", "accept-charset", "accept-encoding", "accept-language", "user-agent", "referer", "origin",
+		"cookie", "authorization", "cache-control", "pragma", "te", "upgrade", "upgrade-insecure-requests",
+		"if-modified-since", "if-unmodified-since", "if-none-match", "if-match", "if-range", "range", "dnt",
+		"x-forwarded-for", "x-requested-with"
+	};
+
+	/** {@link #KNOWN_FIELDS} by length, to narrow down the comparisons. */
+	private static final String[][] KNOWN_FIELDS_BY_LENGTH;
+	static {
+		int max = 0;
+		for( String name : KNOWN_FIELDS )
+			max = Math.max( max, name.length() );
+		KNOWN_FIELDS_BY_LENGTH = new String[max + 1][];
+		for( int n = 0; n <= max; n++ ) {
+			int count = 0;
+			for( String name : KNOWN_FIELDS )
+				if( name.length() == n )
+					count++;
+			KNOWN_FIELDS_BY_LENGTH[n] = new String[count];
+			count = 0;
+			for( String name : KNOWN_FIELDS )
+				if( name.length() == n )
+					KNOWN_FIELDS_BY_LENGTH[n][count++] = name;
+		}
+	}
+
+
+	/** The connection's input stream. */
+	private final InputStream input;
+
+	/** Longest request line (in bytes) allowed; answered with 414 otherwise. */
+	public final int maxLineLength;
+
+	/** Most header fields allowed in one request; answered with 431 otherwise. */
+	public final int maxHeaderCount;
+
+	/** Most bytes allowed for all of the header fields together; answered with 431 otherwise. */
+	public final int maxHeaderBytes;
+
+	/** Bytes read from {@link #input}; those from <code>pos</code> to <code>lim</code> haven't been consumed yet. */
+	private byte[] buf = new byte[4096];
+	private int pos = 0, lim = 0;
+
+	/** Bytes consumed so far (header lines, and message bodies read through this stream.) */
+	private long consumed = 0;
+
+	/** When the current request's first bytes were read (as from {@link System#nanoTime()}), or 0 if they haven't been yet. */
+	private long requestStarted = 0;
+
+
+	/**
+	 * @param input - The connection's input stream. Doesn't need to be buffered.
+	 * @param maxLineLength - Longest request line allowed, in bytes.
+	 * @param maxHeaderCount - Most header fields allowed.
+	 * @param maxHeaderBytes - Most bytes allowed for all of the header fields together.
+	 */
+	public HttpRequestParser(InputStream input, int maxLineLength, int maxHeaderCount, int maxHeaderBytes) {
+		this.input = input;
+		this.maxLineLength = maxLineLength;
+		this.maxHeaderCount = maxHeaderCount;
+		this.maxHeaderBytes = maxHeaderBytes;
+	}
+
+
+	/**
+	 * Reads the next request's header (but not its message body.)
+	 *
+	 * @param request - Where to store the request. It's {@link HttpRequest#reset()} first.
+	 * @return false if the connection ended before another request began.
+	 * @throws RejectedException - If the request is malformed or exceeds a limit.
+	 * @throws IOException - If a read error occurs, or the connection ends part way through a request.
+	 */
+	public boolean next(HttpRequest request) throws IOException {
+		request.reset();
+		requestStarted = (pos < lim ? System.nanoTime() : 0); //(otherwise, once its bytes arrive)
+
+		//request line (blank lines before it are ignored)
+		int end;
+		do {
+			end = nextLine(maxLineLength, URI_TOO_LONG);
+			if( end < 0 ) {
+				if( pos == lim )
+					return false;
+				throw new EOFException("connection ended during the request line");
+			}
+		} while( end == pos && skipLine(end) );
+		parseRequestLine(request, pos, end);
+		skipLine(end);
+
+		//header fields, up to the first blank line
+		int count = 0;
+		int budget = maxHeaderBytes;
+		for( ;; ) {
+			end = nextLine(budget, HEADER_TOO_LARGE);
+			if( end < 0 )
+				throw new EOFException("connection ended during the request header");
+			if( end == pos ) {
+				skipLine(end);
+				return true;
+			}
+			if( ++count > maxHeaderCount )
+				throw new RejectedException(HEADER_TOO_LARGE, "more than " + maxHeaderCount + " header fields");
+			budget -= lineLength(end);
+			parseField(request, pos, end);
+			skipLine(end);
+		}
+	}
+
+	/**
+	 * Finds the end of the next line, reading more bytes as needed.
+	 *
+	 * @return The index in {@link #buf} of the line's end (not including "\r\n" or "\n"),
+	 * 	or -1 if the connection ended first.
+	 */
+	private int nextLine(int limit, String status) throws IOException {
+		int scan = pos;
+		for( ;; ) {
+			for( ; scan < lim; scan++ )
+				if( buf[scan] == '\n' ) {
+					int end = (scan > pos && buf[scan - 1] == '\r' ? scan - 1 : scan);
+					if( end - pos > limit )
+						break;
+					return end;
+				}
+			if( scan - pos > limit )
+				throw new RejectedException(status, "line longer than " + limit + " bytes");
+			int scanned = scan - pos;
+			if( fill() < 0 )
+				return -1;
+			scan = pos + scanned;
+		}
+	}
+
+	/** @return The number of bytes in the line ending at <code>end</code>, including the line ending. */
+	private int lineLength(int end) {
+		return (end < lim && buf[end] == '\r' ? end + 2 : end + 1) - pos;
+	}
+
+	/** Consumes the line ending at <code>end</code>, along with its line ending. Always returns true. */
+	private boolean skipLine(int end) {
+		int length = lineLength(end);
+		pos += length;
+		consumed += length;
+		return true;
+	}
+
+	/**
+	 * Reads more bytes into {@link #buf}, first moving unconsumed bytes to the front (or growing it.)
+	 *
+	 * @return The number of bytes read, or -1 at end-of-stream.
+	 */
+	private int fill() throws IOException {
+		makeRoom();
+		int n = input.read(buf, lim, buf.length - lim);
+		if( n > 0 ) {
+			lim += n;
+			if( requestStarted == 0 )
+				requestStarted = System.nanoTime();
+		}
+		return n;
+	}
+	
+	/**
+	 * Reads whatever bytes are available from a non-blocking channel, without waiting.
+	 * Lets a request header be collected before any thread has to handle it (see {@link #hasRequest()}.)
+	 *
+	 * @param channel - The connection's channel, in non-blocking mode.
+	 * @return The number of bytes read (possibly 0), or -1 at end-of-stream.
+	 * @throws IOException - If a read error occurs.
+	 */
+	public int fill(ReadableByteChannel channel) throws IOException {
+		makeRoom();
+		int n = channel.read( ByteBuffer.wrap(buf, lim, buf.length - lim) );
+		if( n > 0 )
+			lim += n;
+		return n;
+	}
+
+	/** @return When the current request's first bytes were read (as from {@link System#nanoTime()}),
+	    or when {@link #next(HttpRequest)} was called, if they already had been. */
+	public long getRequestStarted() {
+		return requestStarted;
+	}
+
+	/** @return The number of bytes consumed from the connection so far: request headers, and whatever of their bodies was read. */
+	public long getBytesRead() {
+		return consumed;
+	}
+
+	/** Moves unconsumed bytes to the front of {@link #buf}, or grows it if it's full. */
+	private void makeRoom() {
+		if( pos > 0 ) {
+			System.arraycopy(buf, pos, buf, 0, lim - pos);
+			lim -= pos;
+			pos = 0;
+		}
+		if( lim == buf.length ) {
+			byte[] bigger = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, bigger, 0, lim);
+			buf = bigger;
+		}
+	}
+	
+	/**
+	 * Checks if {@link #next(HttpRequest)} can return without reading anything more:
+	 * either a whole request header (up to its blank line) is already buffered,
+	 * or more has been buffered than the limits allow (so it will be rejected.)
+	 *
+	 * @return true if the next request header can be parsed without waiting.
+	 */
+	public boolean hasRequest() {
+		if( lim - pos > maxLineLength + maxHeaderBytes + 4 )
+			return true;
+		boolean started = false; //past any blank lines before the request line
+		int lineStart = pos;
+		for( int i = pos; i < lim; i++ ) {
+			if( buf[i] != '\n' )
+				continue;
+			boolean blank = (i == lineStart || (i == lineStart + 1 && buf[lineStart] == '\r'));
+			if( blank && started )
+				return true;
+			started |= !blank;
+			lineStart = i + 1;
+		}
+		return false;
+	}
+
+	/** Splits "METHOD URI VERSION". */
+	private void parseRequestLine(HttpRequest request, int start, int end) throws RejectedException {
+		int i = start;
+		int methodEnd = skipToken(i, end);
+		int uriStart = skipSpace(methodEnd, end);
+		int uriEnd = skipToken(uriStart, end);
+		int versionStart = skipSpace(uriEnd, end);
+		int versionEnd = end;
+		while( versionEnd > versionStart && isSpace(buf[versionEnd - 1]) )
+			versionEnd--;
+		if( methodEnd == i || uriEnd == uriStart || versionEnd == versionStart )
+			throw new RejectedException(BAD_REQUEST, "malformed request line");
+
+		request.method = toString(KNOWN_METHODS, i, methodEnd);
+		request.uri = new String(buf, uriStart, uriEnd - uriStart, StandardCharsets.UTF_8);
+		request.version = toString(KNOWN_VERSIONS, versionStart, versionEnd);
+	}
+
+	/** Splits "Name: value", and adds it to the request. */
+	private void parseField(HttpRequest request, int start, int end) throws RejectedException {
+		if( isSpace(buf[start]) )
+			throw new RejectedException(BAD_REQUEST, "obsolete line folding in header");
+		int colon = start;
+		while( colon < end && buf[colon] != ':' )
+			colon++;
+		if( colon == end )
+			throw new RejectedException(BAD_REQUEST, "header field without a ':'");
+		int nameEnd = colon;
+		while( nameEnd > start && isSpace(buf[nameEnd - 1]) )
+			nameEnd--;
+		int valueStart = skipSpace(colon + 1, end);
+		int valueEnd = end;
+		while( valueEnd > valueStart && isSpace(buf[valueEnd - 1]) )
+			valueEnd--;
+
+		request.fields.put( fieldName(start, nameEnd),
+				new String(buf, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1) );
+	}
+
+	/** @return The lower case field name, shared if it's one of {@link #KNOWN_FIELDS}. */
+	private String fieldName(int start, int end) {
+		int length = end - start;
+		if( length < KNOWN_FIELDS_BY_LENGTH.length )
+			NAMES: for( String name : KNOWN_FIELDS_BY_LENGTH[length] ) {
+				for( int i = 0; i < length; i++ ) {
+					int c = buf[start + i];
+					if( c >= 'A' && c <= 'Z' )
+						c += 'a' - 'A';
+					if( c != name.charAt(i) )
+						continue NAMES;
+				}
+				return name;
+			}
+		return new String(buf, start, length, StandardCharsets.ISO_8859_1).toLowerCase(Locale.US);
+	}
+
+	/** @return The given bytes as a string, shared if it's one of the <code>known</code> strings. */
+	private String toString(String[] known, int start, int end) {
+		int length = end - start;
+		KNOWN: for( String str : known ) {
+			if( str.length() != length )
+				continue;
+			for( int i = 0; i < length; i++ )
+				if( buf[start + i] != str.charAt(i) )
+					continue KNOWN;
+			return str;
+		}
+		return new String(buf, start, length, StandardCharsets.ISO_8859_1);
+	}
+
+	private int skipToken(int i, int end) {
+		while( i < end && !isSpace(buf[i]) )
+			i++;
+		return i;
+	}
+
+	private int skipSpace(int i, int end) {
+		while( i < end && isSpace(buf[i]) )
+			i++;
+		return i;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+
+	/* Reading the message body: buffered bytes first, then straight from the connection. */
+
+	public int read() throws IOException {
+		if( pos < lim ) {
+			consumed++;
+			return buf[pos++] & 0xFF;
+		}
+		int b = input.read();
+		if( b >= 0 )
+			consumed++;
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if( len == 0 )
+			return 0;
+		if( pos < lim ) {
+			int n = Math.min(len, lim - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			consumed += n;
+			return n;
+		}
+		int n = input.read(b, off, len);
+		if( n > 0 )
+			consumed += n;
+		return n;
+	}
+
+	public int available() throws IOException {
+		return (lim - pos) + input.available();
+	}
+
+	public void close() throws IOException {
+		input.close();
+	}
+}
@@ -15,6 +15,23 @@ public final class HttpSettings
  		If true, only HTTP/1.1 or "Connection: Keep-Alive" requests will persist. */
 	public final boolean allowPersistentConnections;
 	
+	/** How long (in milliseconds) a persistent connection may sit idle, waiting for its next request, before it's closed. */
+	public final int keepAliveTimeout;
+	
+	/** Longest request line (in bytes) that will be accepted. Longer ones get "414 URI Too Long". */
+	public final int maxRequestLineLength;
+	
+	/** Most header fields, and most bytes of header fields, a request may have.
+		Larger requests get "431 Request Header Fields Too Large". */
+	public final int maxHeaderCount, maxHeaderBytes;
+	
+	/** Longest request message body (in bytes) that will be accepted. Longer ones get "413 Payload Too Large". */
+	public final long maxRequestBodyLength;
+	
+	/** Most bytes of a request body kept in memory when it has to be read in full before it's used
+		(i.e. a chunked body sent to a script, which has to be told its length); the rest goes to a temporary file. */
+	public final int requestBodyMemoryLength;
+	
 	/** Should CGI (or ServerProcess) scripts inherent the server's environmental variables. */
 	public final boolean inheritServerEnv;
 	
@@ -24,30 +41,116 @@ public final class HttpSettings
 	/** A list files to be interpreted and run as CGI scripts. */
 	public final List<String> cgiFiles;
 	
-	/** A collection of paths that lead to Java CGI "scripts" (ServerProcess).
+	/** Pools of persistent workers that run CGI scripts, by interpreter (as named by a script's "#!" line.)
+		Scripts whose interpreter has no pool get a new process for each request. */
+	public final Map<String, CgiWorkerPool> cgiWorkers;
+	
+	/** Limits how long CGI scripts may run and how much they may write, and counts their latencies. */
+	public final CgiMonitor cgiMonitor;
+	
+	/** A collection of paths that lead to Java CGI "scripts" (ServerEndpoint, or ServerProcess through its adapter).
     	Note that actual files at these paths will not resolve! */
-	public final Map<String, ServerProcess> javaCGI;
+	public final Map<String, ServerEndpoint> javaCGI;
+	
+	/** The threads (and limits) each Java CGI "script" runs with, by path.
+		A "script" with none runs on the thread handling its request, with no deadline. */
+	public final Map<String, EndpointExecutor> javaCGIExecutors;
 	
-	/** An association of default MIME types by file extension.
-    	Only used if Java can't acquire the MIME type (via the OS) for a requested file. */
+	/** An association of default MIME types by file extension, from the '.mime-types' file.
+    	How it's used depends on {@link #mimeResolver}'s precedence. */
 	public final Map<String, String> mimeTypes;
+	
+	/** Decides the MIME type of each requested file. */
+	public final MimeResolver mimeResolver;
+	
+	/** Whether static files should be sent straight from the file system to the socket
+		(e.g. via sendfile) instead of being copied through the Java heap. */
+	public final boolean zeroCopyStaticFiles;
+	
+	/** Whether static files get weak entity tags (W/"...") instead of strong ones. */
+	public final boolean weakETags;
+	
+	/** Decides the "Cache-Control" header for static files and directory indexes. */
+	public final CacheControlRules cacheControl;
+	
+	/** Holds small static files in memory. Null if caching is turned off. */
+	public final StaticContentCache contentCache;
+	
+	/** Compresses responses for clients that accept it. Null if compression is turned off. */
+	public final ContentCompressor compressor;
+	
+	/** Creates the threads that connections are handled on, and the helper threads they start. */
+	public final ConnectionThreads threads;
+	
+	/** Limits how many connections and requests are handled at once. */
+	public final AdmissionControl admission;
+	
+	/** Resolves (and caches) what each request path refers to. */
+	public final ResourceResolver resolver;
+	
+	/** Where a line is written for every request. Null if there isn't an access log. */
+	public final AccessLog accessLog;
+	
+	/** Counts requests, connections, and bytes, and times each phase of a request (see {@link ServerStatus}.) */
+	public final ServerMetrics metrics;
 
 	
 	public HttpSettings(
 			int port,
 			boolean allowPersistentConnections,
+			int keepAliveTimeout,
+			int maxRequestLineLength,
+			int maxHeaderCount,
+			int maxHeaderBytes,
+			long maxRequestBodyLength,
+			int requestBodyMemoryLength,
 			boolean inheritServerEnv,
 			List<String> indexFiles,
 			List<String> cgiFiles,
-			Map<String, ServerProcess> javaCGI,
-			Map<String, String> mimeTypes
+			Map<String, CgiWorkerPool> cgiWorkers,
+			CgiMonitor cgiMonitor,
+			Map<String, ServerEndpoint> javaCGI,
+			Map<String, EndpointExecutor> javaCGIExecutors,
+			Map<String, String> mimeTypes,
+			MimeResolver mimeResolver,
+			boolean zeroCopyStaticFiles,
+			boolean weakETags,
+			CacheControlRules cacheControl,
+			StaticContentCache contentCache,
+			ContentCompressor compressor,
+			ConnectionThreads threads,
+			AdmissionControl admission,
+			int resolveCacheMaxEntries,
+			long resolveCacheTtlMillis,
+			AccessLog accessLog,
+			ServerMetrics metrics
 	) {
 		this.port = port;
 		this.allowPersistentConnections = allowPersistentConnections;
+		this.keepAliveTimeout = keepAliveTimeout;
+		this.maxRequestLineLength = maxRequestLineLength;
+		this.maxHeaderCount = maxHeaderCount;
+		this.maxHeaderBytes = maxHeaderBytes;
+		this.maxRequestBodyLength = maxRequestBodyLength;
+		this.requestBodyMemoryLength = requestBodyMemoryLength;
 		this.inheritServerEnv = inheritServerEnv;
 		this.indexFiles = Collections.unmodifiableList(indexFiles);
 		this.cgiFiles = Collections.unmodifiableList(cgiFiles);
+		this.cgiWorkers = Collections.unmodifiableMap(cgiWorkers);
+		this.cgiMonitor = cgiMonitor;
 		this.javaCGI = Collections.unmodifiableMap(javaCGI);
+		this.javaCGIExecutors = Collections.unmodifiableMap(javaCGIExecutors);
 		this.mimeTypes = Collections.unmodifiableMap(mimeTypes);
+		this.mimeResolver = mimeResolver;
+		this.zeroCopyStaticFiles = zeroCopyStaticFiles;
+		this.weakETags = weakETags;
+		this.cacheControl = cacheControl;
+		this.contentCache = contentCache;
+		this.compressor = compressor;
+		this.threads = threads;
+		this.admission = admission;
+		this.accessLog = accessLog;
+		this.metrics = metrics;
+		this.resolver = new ResourceResolver(this, resolveCacheMaxEntries, resolveCacheTtlMillis); //must be last, it reads the other settings
 	}
 }
@@ -1,40 +1,37 @@
 package com.mathhead200.web_server;
 
-import java.awt.FlowLayout;
-import java.awt.Font;
-import java.awt.event.ActionListener;
+import java.awt.GraphicsEnvironment;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import javax.swing.JButton;
-import javax.swing.JFrame;
-import javax.swing.JPanel;
-import javax.swing.JScrollPane;
-import javax.swing.JTabbedPane;
-import javax.swing.JTextArea;
 
 
 /**
@@ -96,115 +93,114 @@ public class JavaWebServer
 		
 		try {
 			
-			// set up GUI for server logging and status monitoring
-			final JFrame frame = new JFrame(NAME);
-			final JTabbedPane tabbedPane = new JTabbedPane();
-			frame.add(tabbedPane);
-			
-			/**
-			 * Created each time a new log is need. Will open a new logging tab
-			 * and display what is written to its {@link InputStream} once {@link #run()}.
-			 */
-			class Logger {
-				private JTabbedPane innerPane = new JTabbedPane();
-				private JPanel[] panels;
-				private Reader[] readers;
-				private StringBuilder[] builders;
-				private JTextArea[] textAreas;
-			
-				Logger(String title, boolean closable, InputStream... inputs) {
-					panels = new JPanel[inputs.length];
-					readers = new Reader[inputs.length];
-					builders = new StringBuilder[inputs.length];
-					textAreas = new JTextArea[inputs.length];
-					
-					Font font = new Font(Font.MONOSPACED, Font.PLAIN, 12);
-					for( int i = 0; i < inputs.length; i++ ) {
-						if( inputs[i] == null )
-							continue;
-						readers[i] = new BufferedReader( new InputStreamReader(inputs[i]) );
-						builders[i] = new StringBuilder();
-						textAreas[i] = new JTextArea( builders[i].toString(), 25, 80 );
-						textAreas[i].setFont(font);
-						panels[i] = new JPanel(new FlowLayout());
-						panels[i].add( new JScrollPane(textAreas[i]) );
-						innerPane.add( "[" + i + "]", panels[i] );
-					}
-					
-					if( closable ) {
-						ActionListener listener = (e) -> {
-							int i = tabbedPane.indexOfComponent(innerPane);
-							if( i >= 0 )
-								tabbedPane.removeTabAt(i);
-						};
-						for( JPanel panel : panels ) {
-							JButton button = new JButton("Close Log: " + title);
-							button.addActionListener(listener);
-							panel.add(button);
-						}
-					}
-					innerPane.setSelectedIndex(0);
-					tabbedPane.addTab(title, innerPane);
-					tabbedPane.setSelectedIndex( tabbedPane.indexOfComponent(innerPane) );
-				}
-			
-				public Runnable getRunnable(int i) {
-					if( i < 0 || i >= readers.length || readers[i] == null )
-						return null;
-					return () -> {
-						try {
-							while( !Thread.interrupted() ) {
-								int c = readers[i].read();
-								if( c < 0 )
-									break;
-								builders[i].append((char) c);
-								textAreas[i].setText( builders[i].toString() );
-							}
-						} catch(IOException e) {
-							e.printStackTrace();
-						} finally {
-							try {
-								readers[i].close();
-							} catch(IOException e) {
-								e.printStackTrace();
-							}
-						}
-					};
-				}
-				
-				public void setInnerTitle(int i, String title) {
-					innerPane.setTitleAt(i, title);
-				}
-			}
-			
-			PipedOutputStream serverLogPipe = new PipedOutputStream();
-			PrintWriter log = new PrintWriter(serverLogPipe, true); // server log: the object (Writer) the server will actually use to write to its log
-			
-			Logger serverLogger = new Logger( "Server", false, new PipedInputStream(serverLogPipe) );
-			serverLogger.setInnerTitle(0, "Log");
-			Thread serverLoggerThread = new Thread( serverLogger.getRunnable(0) );
-			
-			frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-			frame.setSize(610, 585);
-			frame.setLocationRelativeTo(null);
-			frame.setVisible(true);
-			
-			serverLoggerThread.start(); // start the logger thread so it will listen to the Writer "log"
-			
-			
 			// set up default server properties
 			Properties properties = new Properties();
+			properties.setProperty("headless", "false"); // true: no window (also when started with --headless, or without a display); the log is written to log_file
+			properties.setProperty("log_file", ""); // the headless log; empty means standard output
+			properties.setProperty("log_buffer_lines", "65536"); // lines the log holds while its writer (or the console) catches up
+			properties.setProperty("log_full_policy", "drop"); // drop or block: what a connection does with a line when that buffer is full
+			properties.setProperty("console_scrollback_lines", "5000"); // lines the console's server log keeps
+			properties.setProperty("console_connection_lines", "500"); // lines the console keeps for each connection
+			properties.setProperty("console_max_connections", "1000"); // connections the console's table keeps (ended ones are forgotten first)
+			properties.setProperty("console_frame_rate", "20"); // times a second the console is updated
 			properties.setProperty("http_port", "8080");
 			properties.setProperty("allow_persistent_connections", "true");
+			properties.setProperty("keep_alive_timeout_ms", "15000");
+			properties.setProperty("connection_engine", "threads"); // threads: a thread per connection; nio: selector event loops + a worker pool
+			properties.setProperty("connection_threads", "platform"); // platform or virtual (needs Java 21+), for the threads engine
+			properties.setProperty("nio_event_loops", "0"); // 0 means one per processor
+			properties.setProperty("nio_worker_threads", "64");
+			properties.setProperty("accept_backlog", "128");
+			properties.setProperty("max_connections", "1024"); // 0 means no limit
+			properties.setProperty("max_requests", "256"); // 0 means no limit
+			properties.setProperty("max_queued_requests", "256");
+			properties.setProperty("request_queue_timeout_ms", "1000");
+			properties.setProperty("retry_after_seconds", "5");
+			properties.setProperty("max_request_line_bytes", "8192");
+			properties.setProperty("max_header_count", "100");
+			properties.setProperty("max_header_bytes", "65536");
+			properties.setProperty("max_request_body_bytes", "104857600");
+			properties.setProperty("request_body_memory_bytes", "65536"); // chunked bodies longer than this are buffered in a temporary file
 			properties.setProperty("inherit_server_env", "false");
+			properties.setProperty("cgi_worker_wait_ms", "5000"); // how long a request waits for a free persistent CGI worker (then 503)
+			properties.setProperty("cgi_worker_health_check_ms", "10000");
+			properties.setProperty("cgi_timeout_ms", "120000"); // a CGI script running longer is killed (504); 0 means no limit
+			properties.setProperty("cgi_idle_timeout_ms", "30000"); // ...or going this long without output or input
+			properties.setProperty("cgi_max_output_bytes", "268435456"); // ...or writing more than this (502)
+			properties.setProperty("java_cgi_threads", "16"); // per Java CGI, unless '.java-cgi-limits' says otherwise
+			properties.setProperty("java_cgi_queue", "32"); // calls to a Java CGI whose threads are all busy, and whose queue is full, get 503
+			properties.setProperty("java_cgi_deadline_ms", "30000"); // a Java CGI call taking longer is interrupted (504); 0 means no limit
+			properties.setProperty("zero_copy_static_files", "true");
+			properties.setProperty("weak_etags", "false");
+			properties.setProperty("default_cache_control", ""); // used when no '.cache-control' rule matches; empty means no header
+			properties.setProperty("static_cache_max_bytes", "16777216"); // 0 turns the cache off
+			properties.setProperty("static_cache_max_entry_bytes", "1048576");
+			properties.setProperty("compression", "true");
+			properties.setProperty("compression_types", "text/html, text/css, text/plain, text/csv, text/xml, "
+					+ "application/javascript, application/ecmascript, application/json, application/xml, "
+					+ "application/xhtml+xml, application/rss+xml, image/svg+xml");
+			properties.setProperty("compression_min_bytes", "1024");
+			properties.setProperty("compression_max_file_bytes", "4194304"); // larger files are only sent compressed from a .gz sibling
+			properties.setProperty("compression_cache_max_bytes", "8388608");
+			properties.setProperty("compression_level", "6");
+			properties.setProperty("resolve_cache_max_entries", "4096"); // 0 turns the cache off
+			properties.setProperty("resolve_cache_ttl_ms", "2000");
+			properties.setProperty("access_log_file", "access.log"); // empty turns the access log off
+			properties.setProperty("access_log_format", "combined"); // common, combined, or json
+			properties.setProperty("access_log_buffer_lines", "65536"); // lines waiting to be written; past this, they're dropped (requests never wait on the file)
+			properties.setProperty("access_log_max_bytes", "104857600"); // the file is rotated once it's this long; 0 means never
+			properties.setProperty("access_log_rotate_ms", "86400000"); // ...and this often (from midnight UTC); 0 means never
+			properties.setProperty("server_status_path", "/server-status"); // reports the server's metrics (add ?format=prometheus for Prometheus); empty turns it off
+			properties.setProperty("server_status_allow", "127.0.0.1, 0:0:0:0:0:0:0:1"); // addresses that may see it; empty means any
+			properties.setProperty("stats_log_interval_ms", "0"); // logs the connection threads', caches', CGI's, and logs' stats this often; 0 means never (they're always at server_status_path)
+			properties.setProperty("jfr_events", "false"); // true: record Flight Recorder events for each request's phases (Java 11+; see FlightEvents), e.g. with -XX:StartFlightRecording
+			properties.setProperty("system_mime_types", "/etc/mime.types");
+			properties.setProperty("mime_type_precedence", "system, mime-types"); // any of: mime-types, system, probe
 	
-			// load server properties file
-			log.print("-- Loading '.properties'...  ");
-			log.flush();
+			// load server properties file (before the log is set up, since it decides where the log goes)
+			boolean propertiesFound;
 			try( Reader reader = new FileReader("./.properties") ) {
 				properties.load(reader);
-				log.println("Done.");
+				propertiesFound = true;
 			} catch(FileNotFoundException e) {
+				propertiesFound = false;
+			}
+			final boolean headless = Arrays.asList(args).contains("--headless")
+					|| Boolean.parseBoolean( properties.getProperty("headless").trim() )
+					|| GraphicsEnvironment.isHeadless();
+			
+			// set up the log: connections put their log lines in a ring buffer, which one thread writes out (see AsyncLog),
+			// either to the GUI for server logging and status monitoring, or when headless, to a file (or standard output)
+			final LogConsole console = headless ? null : new LogConsole( NAME,
+					Integer.parseInt( properties.getProperty("console_scrollback_lines") ),
+					Integer.parseInt( properties.getProperty("console_connection_lines") ),
+					Integer.parseInt( properties.getProperty("console_max_connections") ),
+					Integer.parseInt( properties.getProperty("console_frame_rate") ) );
+			int logBufferLines = Integer.parseInt( properties.getProperty("log_buffer_lines") );
+			AsyncLog.Policy logFullPolicy = AsyncLog.Policy.valueOf( properties.getProperty("log_full_policy").trim().toUpperCase() );
+			final AsyncLog asyncLog;
+			if( headless ) {
+				String logFile = properties.getProperty("log_file").trim();
+				asyncLog = new AsyncLog( logBufferLines, logFullPolicy,
+						new BufferedWriter( logFile.isEmpty() ? new OutputStreamWriter(System.out) : new FileWriter(logFile, true) ) );
+			} else {
+				asyncLog = new AsyncLog(logBufferLines, logFullPolicy, console);
+			}
+			Runtime.getRuntime().addShutdownHook( new Thread( () -> { // write out what's left
+				try {
+					asyncLog.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}) );
+			PrintWriter log = new PrintWriter( asyncLog.stream(AsyncLog.SERVER, false), true ); // server log: the object (Writer) the server will actually use to write to its log
+			
+			
+			// report on (or create) the server properties file
+			log.print("-- Loading '.properties'...  ");
+			if( propertiesFound ) {
+				log.println("Done.");
+			} else {
 				log.println("Failed.");
 				log.print("   Creating '.properties'...  ");
 				log.flush();
@@ -255,10 +251,48 @@ public class JavaWebServer
 					throw new IOException("could not create new file '.cgi-files'");
 			}
 			
+			// load persistent CGI worker pools: .cgi-workers
+			log.print("-- Loading '.cgi-workers'...  ");
+			log.flush();
+			Map<String, CgiWorkerPool> cgiWorkers = new HashMap<>();
+			try( BufferedReader reader = new BufferedReader(new FileReader("./.cgi-workers")) ) {
+				log.println("Done.");
+				long acquireTimeout = Long.parseLong( properties.getProperty("cgi_worker_wait_ms") );
+				long healthCheckInterval = Long.parseLong( properties.getProperty("cgi_worker_health_check_ms") );
+				for( String line; (line = reader.readLine()) != null; ) {
+					line = line.trim();
+					if( line.isEmpty() || line.startsWith("#") )
+						continue;
+					String[] arr = line.split("\\s+");
+					if( arr.length < 5 ) {
+						log.println("   Warning: not enough fields: " + line);
+						continue;
+					}
+					try {
+						CgiWorkerPool pool = new CgiWorkerPool( arr[0], Arrays.asList(arr).subList(4, arr.length), null,
+								Integer.parseInt(arr[1]), Integer.parseInt(arr[2]), Integer.parseInt(arr[3]),
+								acquireTimeout, healthCheckInterval );
+						cgiWorkers.put(arr[0], pool);
+						log.println("   Successfully Started CGI Workers for '" + arr[0] + "': " + pool.command);
+					} catch(IllegalArgumentException e) {
+						log.println("   Warning: " + e);
+					}
+				}
+			} catch(FileNotFoundException e) {
+				log.println("Failed.");
+				log.print("   Creating '.cgi-workers'...  ");
+				log.flush();
+				try( PrintWriter writer = new PrintWriter(new FileWriter("./.cgi-workers")) ) {
+					writer.println("# <interpreter, as in the #! line>  <min workers>  <max workers>  <requests before recycling (0: never)>  <worker command...>");
+					writer.println("# e.g.  perl  1  8  1000  perl cgi-worker.pl");
+					log.println("Done.");
+				}
+			}
+			
 			// load Java CGI list: '.java-cgi'
 			log.print("-- Loading '.java-cgi'...  ");
 			log.flush();
-			Map<String, ServerProcess> javaCGI = new HashMap<>();
+			Map<String, ServerEndpoint> javaCGI = new HashMap<>();
 			try( BufferedReader reader = new BufferedReader(new FileReader("./.java-cgi")) ) {
 				log.println();
 				// read in search paths
@@ -271,7 +305,7 @@ public class JavaWebServer
 				for( int i = 0; i < searchPath.length; i++ )
 					searchPath[i] = files.get(i).toURI().toURL();
 				
-				// read ServerProcess class to path(s) mappings
+				// read ServerEndpoint (or ServerProcess) class to path(s) mappings
 				try( URLClassLoader loader = new URLClassLoader(searchPath) ) { // try-with-resource so the URLClassLoader is closed
 					for( String line; (line = reader.readLine()) != null; ) {
 						String[] arr = line.split("\\s+");
@@ -281,7 +315,10 @@ public class JavaWebServer
 							Class<?> c = loader.loadClass(arr[0]);
 							for( int i = 1; i < arr.length; i++ )
 								try {
-									javaCGI.put( arr[i], (ServerProcess) c.newInstance() );
+									Object instance = c.newInstance();
+									javaCGI.put( arr[i], instance instanceof ServerProcess
+											? ((ServerProcess) instance).asEndpoint() //older Java CGIs, through an adapter
+											: (ServerEndpoint) instance );
 									log.println("   Successfully Loaded Java CGI '" + c.getName() + "' at '" + arr[i] + "'");
 								} catch(IllegalAccessException | InstantiationException | ClassCastException e) {
 									log.println("   Warning: " + e);
@@ -306,13 +343,7 @@ public class JavaWebServer
 			log.flush();
 			Map<String, String> mimeTypes = new HashMap<>();
 			try( BufferedReader reader = new BufferedReader(new FileReader("./.mime-types")) ) {
-				for( String line; (line = reader.readLine()) != null; ) {
-					String[] arr = line.split("\\s+");
-					if( arr.length == 0 )
-						continue;
-					for( int i = 1; i < arr.length; i++ )
-						mimeTypes.put( arr[i], arr[0] );
-				}
+				MimeResolver.readTable(reader, mimeTypes);
 				log.println("Done.");
 			} catch(FileNotFoundException e) {
 				log.println("Failed.");
@@ -323,38 +354,271 @@ public class JavaWebServer
 						writer.println(line);
 					log.println("Done.");
 				}
-				for( String line : DEFAULT_MIME_TYPES ) {
+				for( String line : DEFAULT_MIME_TYPES )
+					MimeResolver.parseLine(line, mimeTypes);
+			}
+			
+			// load the OS's mime types (e.g. /etc/mime.types), if they'll be used
+			List<MimeResolver.Source> mimePrecedence = MimeResolver.parsePrecedence( properties.getProperty("mime_type_precedence") );
+			Map<String, String> systemMimeTypes = new HashMap<>();
+			if( mimePrecedence.contains(MimeResolver.Source.SYSTEM) ) {
+				String systemFile = properties.getProperty("system_mime_types");
+				log.print("-- Loading '" + systemFile + "'...  ");
+				log.flush();
+				try( BufferedReader reader = new BufferedReader(new FileReader(systemFile)) ) {
+					MimeResolver.readTable(reader, systemMimeTypes);
+					log.println("Done.");
+				} catch(FileNotFoundException e) {
+					log.println("Failed. (Skipping)");
+				}
+			}
+			MimeResolver mimeResolver = new MimeResolver(mimePrecedence, mimeTypes, systemMimeTypes);
+			
+			// load Cache-Control rules: .cache-control
+			log.print("-- Loading '.cache-control'...  ");
+			log.flush();
+			List<String> cacheControlRules = new ArrayList<>();
+			try( BufferedReader reader = new BufferedReader(new FileReader("./.cache-control")) ) {
+				for( String line; (line = reader.readLine()) != null; )
+					cacheControlRules.add(line);
+				log.println("Done.");
+			} catch(FileNotFoundException e) {
+				log.println("Failed.");
+				log.print("   Creating '.cache-control'...  ");
+				log.flush();
+				try( PrintWriter writer = new PrintWriter(new FileWriter("./.cache-control")) ) {
+					writer.println("# <path prefix or *.extension>  <Cache-Control header value>");
+					writer.println("# e.g.  /images/  max-age=604800, public");
+					writer.println("#       *.css     max-age=86400");
+					log.println("Done.");
+				}
+			}
+			CacheControlRules cacheControl = new CacheControlRules( cacheControlRules, properties.getProperty("default_cache_control") );
+			
+			// setup static file cache
+			long cacheMaxBytes = Long.parseLong( properties.getProperty("static_cache_max_bytes") );
+			StaticContentCache contentCache = cacheMaxBytes <= 0 ? null : new StaticContentCache(
+					cacheMaxBytes, Long.parseLong( properties.getProperty("static_cache_max_entry_bytes") ) );
+			
+			// setup response compression
+			ContentCompressor compressor = !Boolean.parseBoolean( properties.getProperty("compression") ) ? null : new ContentCompressor(
+					Arrays.asList( properties.getProperty("compression_types").split(",") ),
+					Long.parseLong( properties.getProperty("compression_min_bytes") ),
+					Long.parseLong( properties.getProperty("compression_max_file_bytes") ),
+					Long.parseLong( properties.getProperty("compression_cache_max_bytes") ),
+					Integer.parseInt( properties.getProperty("compression_level") ) );
+			
+			// setup connection threads (virtual threads, if asked for and available)
+			boolean virtualThreads = properties.getProperty("connection_threads").trim().equalsIgnoreCase("virtual");
+			ConnectionThreads connectionThreads = new ConnectionThreads(virtualThreads);
+			if( virtualThreads && !connectionThreads.virtual )
+				log.println("   Warning: virtual threads aren't supported by this JVM (Java 21+ needed); using platform threads.");
+			
+			// load each Java CGI's threads, queue, and deadline: .java-cgi-limits (the defaults are in .properties)
+			log.print("-- Loading '.java-cgi-limits'...  ");
+			log.flush();
+			Map<String, int[]> javaCGILimits = new HashMap<>(); // path -> { threads, queue, deadline }
+			try( BufferedReader reader = new BufferedReader(new FileReader("./.java-cgi-limits")) ) {
+				log.println("Done.");
+				for( String line; (line = reader.readLine()) != null; ) {
+					line = line.trim();
+					if( line.isEmpty() || line.startsWith("#") )
+						continue;
 					String[] arr = line.split("\\s+");
-					if( arr.length == 0 )
+					if( arr.length < 4 ) {
+						log.println("   Warning: not enough fields: " + line);
 						continue;
-					for( int i = 1; i < arr.length; i++ )
-						mimeTypes.put( arr[i], arr[0] );
+					}
+					try {
+						javaCGILimits.put( arr[0], new int[] { Integer.parseInt(arr[1]), Integer.parseInt(arr[2]), Integer.parseInt(arr[3]) } );
+					} catch(NumberFormatException e) {
+						log.println("   Warning: " + e);
+					}
+				}
+			} catch(FileNotFoundException e) {
+				log.println("Failed.");
+				log.print("   Creating '.java-cgi-limits'...  ");
+				log.flush();
+				try( PrintWriter writer = new PrintWriter(new FileWriter("./.java-cgi-limits")) ) {
+					writer.println("# <path>  <max threads>  <max queued calls>  <deadline in ms (0: none)>");
+					writer.println("# e.g.  /SubmitJob.cgi  4  8  10000");
+					log.println("Done.");
 				}
 			}
+			ThreadFactory endpointThreads = (task) -> {
+				Thread thread = connectionThreads.newThread(task);
+				thread.setDaemon(true);
+				return thread;
+			};
+			Map<String, EndpointExecutor> javaCGIExecutors = new HashMap<>();
+			for( String path : javaCGI.keySet() ) {
+				int[] limits = javaCGILimits.get(path);
+				if( limits == null )
+					limits = new int[] {
+							Integer.parseInt( properties.getProperty("java_cgi_threads") ),
+							Integer.parseInt( properties.getProperty("java_cgi_queue") ),
+							Integer.parseInt( properties.getProperty("java_cgi_deadline_ms") ) };
+				try {
+					javaCGIExecutors.put( path, new EndpointExecutor(path, limits[0], limits[1], limits[2], endpointThreads) );
+				} catch(IllegalArgumentException e) {
+					log.println("   Warning: " + path + ": " + e);
+				}
+			}
+			
+			// setup admission control (limits on concurrent connections and requests)
+			AdmissionControl admission = new AdmissionControl(
+					Integer.parseInt( properties.getProperty("accept_backlog") ),
+					Integer.parseInt( properties.getProperty("max_connections") ),
+					Integer.parseInt( properties.getProperty("max_requests") ),
+					Integer.parseInt( properties.getProperty("max_queued_requests") ),
+					Long.parseLong( properties.getProperty("request_queue_timeout_ms") ),
+					Integer.parseInt( properties.getProperty("retry_after_seconds") ) );
+			
+			// setup access log (a line per request, written to the file by a thread of its own)
+			String accessLogFile = properties.getProperty("access_log_file").trim();
+			final AccessLog accessLog = accessLogFile.isEmpty() ? null : new AccessLog(
+					Paths.get(accessLogFile),
+					AccessLog.Format.valueOf( properties.getProperty("access_log_format").trim().toUpperCase() ),
+					Integer.parseInt( properties.getProperty("access_log_buffer_lines") ),
+					Long.parseLong( properties.getProperty("access_log_max_bytes") ),
+					Long.parseLong( properties.getProperty("access_log_rotate_ms") ) );
+			if( accessLog != null ) {
+				Runtime.getRuntime().addShutdownHook( new Thread( () -> { // write out what's left
+					try {
+						accessLog.close();
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}) );
+			}
+			
+			// setup metrics, and the status page that reports them (a Java CGI run on the connection's own thread)
+			ServerMetrics metrics = new ServerMetrics();
+			String statusPath = properties.getProperty("server_status_path").trim();
+			if( !statusPath.isEmpty() ) {
+				List<String> allowed = new ArrayList<>();
+				for( String addr : properties.getProperty("server_status_allow").split(",") )
+					if( !addr.trim().isEmpty() )
+						allowed.add( addr.trim() );
+				javaCGI.put( statusPath, new ServerStatus(metrics, allowed) );
+				log.println("-- Server Status at '" + statusPath + "'" + (allowed.isEmpty() ? "" : " (for " + allowed + ")"));
+			}
+			
+			// define the Flight Recorder events (recorded only while a recording wants them)
+			if( Boolean.parseBoolean( properties.getProperty("jfr_events") ) ) {
+				if( FlightEvents.enable() )
+					log.println("-- Flight Recorder Events Enabled ('" + FlightEvents.PREFIX + "*')");
+				else
+					log.println("-- Warning: Flight Recorder Events Unavailable (needs Java 11 or later)");
+			}
 			
 			// setup HttpSettings object
 			HttpSettings httpSettings = new HttpSettings(
 					Integer.parseInt( properties.getProperty("http_port") ),
 					Boolean.parseBoolean( properties.getProperty("allow_persistent_connections") ),
+					Integer.parseInt( properties.getProperty("keep_alive_timeout_ms") ),
+					Integer.parseInt( properties.getProperty("max_request_line_bytes") ),
+					Integer.parseInt( properties.getProperty("max_header_count") ),
+					Integer.parseInt( properties.getProperty("max_header_bytes") ),
+					Long.parseLong( properties.getProperty("max_request_body_bytes") ),
+					Integer.parseInt( properties.getProperty("request_body_memory_bytes") ),
 					Boolean.parseBoolean( properties.getProperty("inherit_server_env") ),
 					indexFiles,
 					cgiFiles,
+					cgiWorkers,
+					new CgiMonitor(
+							Long.parseLong( properties.getProperty("cgi_timeout_ms") ),
+							Long.parseLong( properties.getProperty("cgi_idle_timeout_ms") ),
+							Long.parseLong( properties.getProperty("cgi_max_output_bytes") ) ),
 					javaCGI,
-					mimeTypes
+					javaCGIExecutors,
+					mimeTypes,
+					mimeResolver,
+					Boolean.parseBoolean( properties.getProperty("zero_copy_static_files") ),
+					Boolean.parseBoolean( properties.getProperty("weak_etags") ),
+					cacheControl,
+					contentCache,
+					compressor,
+					connectionThreads,
+					admission,
+					Integer.parseInt( properties.getProperty("resolve_cache_max_entries") ),
+					Long.parseLong( properties.getProperty("resolve_cache_ttl_ms") ),
+					accessLog,
+					metrics
 			);
 			
+			boolean nio = properties.getProperty("connection_engine").trim().equalsIgnoreCase("nio");
+			
+			// log the stats now and then, rather than with every connection (the accept thread has better things to do)
+			long statsInterval = Long.parseLong( properties.getProperty("stats_log_interval_ms") );
+			if( statsInterval > 0 ) {
+				ScheduledExecutorService statsLog = Executors.newSingleThreadScheduledExecutor( (task) -> {
+					Thread thread = new Thread(task, "stats-log");
+					thread.setDaemon(true);
+					return thread;
+				});
+				statsLog.scheduleWithFixedDelay( () -> {
+					log.println("-- Stats");
+					if( !nio )
+						log.println( "   Threads: " + connectionThreads );
+					log.println( "   Admission: " + admission );
+					if( httpSettings.contentCache != null )
+						log.println( "   Static File Cache: " + httpSettings.contentCache );
+					if( httpSettings.compressor != null )
+						log.println( "   Compression: " + httpSettings.compressor );
+					for( CgiWorkerPool pool : httpSettings.cgiWorkers.values() )
+						log.println( "   CGI Workers: " + pool );
+					log.println( "   CGI Scripts: " + httpSettings.cgiMonitor );
+					log.println( "   Log: " + asyncLog );
+					if( accessLog != null )
+						log.println( "   Access Log: " + accessLog );
+					log.println( "   Metrics: " + metrics );
+				}, statsInterval, statsInterval, TimeUnit.MILLISECONDS );
+			}
+			
 			
 			// start listening for HTTP connections
-			ExecutorService threadPool = Executors.newCachedThreadPool(); // create thread pool to handle each connection asynchronously
+			if( nio ) {
+				int eventLoops = Integer.parseInt( properties.getProperty("nio_event_loops") );
+				if( eventLoops <= 0 )
+					eventLoops = Runtime.getRuntime().availableProcessors();
+				int workerThreads = Integer.parseInt( properties.getProperty("nio_worker_threads") );
+				
+				// the log needs no thread per connection, so connections here can use it too
+				// (they aren't told when they've ended, though; the console forgets the oldest ones)
+				try( NioConnectionEngine engine = new NioConnectionEngine(httpSettings, eventLoops, workerThreads, (connectionHandler) -> {
+					String addr = connectionHandler.getSocket().getInetAddress().getHostAddress();
+					connectionHandler.redirectLogs( asyncLog.stream(addr, false), asyncLog.stream(addr, true) );
+					log.println( "   Connection Accepted: " + addr );
+				}) ) {
+					log.println("-- Accepting connections... (" + eventLoops + " event loops, " + workerThreads + " worker threads)");
+					engine.run();
+				} catch(Exception e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+				return;
+			}
 			
-			try( ServerSocket server = new ServerSocket(httpSettings.port) ) {
+			ExecutorService threadPool = connectionThreads.newExecutor(); // create thread pool to handle each connection asynchronously
+			
+			//opened through a channel so each accepted Socket has a SocketChannel (see HttpSettings.zeroCopyStaticFiles)
+			try( ServerSocket server = ServerSocketChannel.open().socket() ) {
+				server.bind( new InetSocketAddress(httpSettings.port), admission.acceptBacklog );
 				
 				Map<String, Integer> prevAddrCounts = new HashMap<>();
 				
-				while( frame.isDisplayable() ) {
+				while( headless || console.isOpen() ) {
 					log.println("-- Accepting connections...");
 					Socket connection = server.accept();
 					HttpConnectionHandler connectionHandler = new HttpConnectionHandler(connection, httpSettings);
+					if( !connectionHandler.admit() ) {
+						//too many connections; answer with a quick 503 (no log tab or thread for it)
+						connectionHandler.redirectLogs(null, null);
+						connectionHandler.shed();
+						log.println( "   Connection Shed: " + connection.getInetAddress().getHostAddress() );
+						continue;
+					}
 					
 					String addr = connection.getInetAddress().getHostAddress();
 					String title = addr;
@@ -365,15 +629,16 @@ public class JavaWebServer
 					} else
 						prevAddrCounts.put(addr, 1);
 					
-					Logger connectionLogger = new Logger( title, true,
-							new PipedInputStream(connectionHandler.getLogPipe()),
-							new PipedInputStream(connectionHandler.getErrPipe()) );
-					connectionLogger.setInnerTitle(0, "Output Log");
-					connectionLogger.setInnerTitle(1, "Error Log");
-					threadPool.execute( connectionLogger.getRunnable(0) );
-					threadPool.execute( connectionLogger.getRunnable(1) );
+					String source = title;
+					connectionHandler.redirectLogs( asyncLog.stream(source, false), asyncLog.stream(source, true) );
 					
-					threadPool.execute(connectionHandler);
+					threadPool.execute( connectionThreads.counted( () -> {
+						try {
+							connectionHandler.run();
+						} finally {
+							asyncLog.end(source);
+						}
+					}) );
 					log.println( "   Connection Accepted: " + connection.getInetAddress().getHostAddress() );
 				}
 				
@@ -382,7 +647,6 @@ public class JavaWebServer
 				System.exit(1);
 			} finally {
 				threadPool.shutdownNow();
-				serverLoggerThread.interrupt();
 			}
 			
 		} catch(IOException e) {
@@ -0,0 +1,122 @@
+package com.mathhead200.web_server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counts how often each latency (in nanoseconds) occurs, in a fixed amount of memory, the way HdrHistogram does:
+ * each power of 2 is split into {@link #SUB_BUCKETS} equal buckets, so any value from 0 to {@link Long#MAX_VALUE}
+ * is counted to within 1/16 (6.25%) of itself, in {@link #BUCKETS} counters.
+ * Recording is lock-free, and never allocates. Safe to share between threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class LatencyHistogram
+{
+	/** Each power of 2 is split into 2^SUB_BUCKET_BITS buckets. */
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Buckets needed to cover every long: the values below {@link #SUB_BUCKETS} one each, then SUB_BUCKETS per power of 2. */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+
+	/** @return Which bucket a (non-negative) value is counted in. */
+	private static int bucket(long value) {
+		if( value < SUB_BUCKETS )
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/** @return The largest value counted in a bucket. */
+	private static long highestValue(int bucket) {
+		if( bucket < SUB_BUCKETS )
+			return bucket;
+		int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+		long lowest = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+
+	/**
+	 * Counts one value.
+	 *
+	 * @param nanos - The latency. Negative values are counted as 0.
+	 */
+	public void record(long nanos) {
+		if( nanos < 0 )
+			nanos = 0;
+		counts.incrementAndGet( bucket(nanos) );
+		sum.add(nanos);
+		for( long m = max.get(); nanos > m && !max.compareAndSet(m, nanos); m = max.get() )
+			;
+	}
+
+	/** @return A copy of the counts so far, whose percentiles agree with each other (even while more values are recorded.) */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long count = 0;
+		for( int i = 0; i < BUCKETS; i++ )
+			count += copy[i] = counts.get(i);
+		return new Snapshot( copy, count, sum.sum(), max.get() );
+	}
+
+	public String toString() {
+		return snapshot().toString();
+	}
+
+
+	/** The counts of a {@link LatencyHistogram} at one moment. Immutable. */
+	public static final class Snapshot
+	{
+		private final long[] counts;
+
+		/** How many values had been recorded. */
+		public final long count;
+
+		/** Their total, and the largest of them (in nanoseconds.) */
+		public final long sum, max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * @param quantile - e.g. 0.99 for the 99th percentile.
+		 * @return The value (in nanoseconds) that this fraction of the values were at or below (give or take 6.25%),
+		 *         or 0 if none were recorded.
+		 */
+		public long getValueAt(double quantile) {
+			if( count == 0 )
+				return 0;
+			long rank = Math.max( (long) Math.ceil(quantile * count), 1 );
+			long seen = 0;
+			for( int i = 0; i < counts.length; i++ ) {
+				if( (seen += counts[i]) >= rank )
+					return Math.min( highestValue(i), max );
+			}
+			return max;
+		}
+
+		/** @return The mean (in nanoseconds), or 0 if no values were recorded. */
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		public String toString() {
+			return String.format( "%d, %.3f ms mean, %.3f ms p50, %.3f ms p99, %.3f ms max",
+					count, getMean() / 1e6, getValueAt(0.5) / 1e6, getValueAt(0.99) / 1e6, max / 1e6 );
+		}
+	}
+}
@@ -0,0 +1,389 @@
+package com.mathhead200.web_server;
+
+import java.awt.BorderLayout;
+import java.awt.Font;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTabbedPane;
+import javax.swing.JTable;
+import javax.swing.JTextArea;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.RowFilter;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableRowSorter;
+import javax.swing.text.BadLocationException;
+
+
+/**
+ * The server's Swing console: an {@link AsyncLog.Sink} that shows the server's log, and a table of connections
+ * (which can be filtered by address) with the recent log of whichever one is selected.
+ * <p>
+ * Events are only collected as they arrive; the window is brought up to date a fixed number of times a second, on the
+ * event dispatch thread, appending each view's new lines at once. Every view keeps a limited number of lines,
+ * and the table a limited number of connections, so the console's memory (and work per frame) stays bounded however many
+ * connections it's seen. If the window falls far enough behind, the log's writer waits for it, and the {@link AsyncLog}'s
+ * policy decides what happens to further lines.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class LogConsole implements AsyncLog.Sink
+{
+	/** Most events held for the next frame, before the log's writer has to wait. */
+	private static final int MAX_PENDING = 65536;
+
+	private static final String[] COLUMNS = { "Connection", "Opened", "Last Line", "Lines", "Errors", "State" };
+
+	/** One row of the connection table. Only used on the event dispatch thread. */
+	private final class Connection
+	{
+		final String source;
+		final long opened;
+		long last;
+		long lines = 0;
+		long errors = 0;
+		boolean ended = false;
+
+		/** The connection's most recent lines (at most {@link #connectionLines}.) */
+		final Deque<String> recent = new ArrayDeque<>();
+
+		Connection(String source, long opened) {
+			this.source = source;
+			this.opened = opened;
+			this.last = opened;
+		}
+
+		void add(AsyncLog.Event event, String line) {
+			last = event.time;
+			lines++;
+			if( event.error )
+				errors++;
+			if( recent.size() == connectionLines )
+				recent.removeFirst();
+			recent.addLast(line);
+		}
+	}
+
+
+	/** The most lines the server's log view keeps. */
+	public final int scrollbackLines;
+
+	/** The most lines kept for (and shown in the view of) each connection. */
+	public final int connectionLines;
+
+	/** The most connections kept in the table. Beyond that, the oldest (ended ones first) are forgotten. */
+	public final int maxConnections;
+
+	private final JFrame frame;
+	private final JTextArea serverArea;
+	private final JTextArea connectionArea;
+	private final JLabel connectionLabel;
+	private final JTable table;
+	private final TableModel model = new TableModel();
+	private final TableRowSorter<TableModel> sorter = new TableRowSorter<>(model);
+	private final Timer timer;
+
+	/** Events waiting for the next frame. Guarded by <code>this</code>. */
+	private List<AsyncLog.Event> pending = new ArrayList<>();
+
+	/** The table's rows, oldest first. Only used on the event dispatch thread. */
+	private final List<Connection> connections = new ArrayList<>();
+	private final Map<String, Connection> bySource = new HashMap<>();
+
+	/** The connection whose log is shown. Only used on the event dispatch thread. */
+	private Connection shown = null;
+
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+	private final Date date = new Date();
+
+
+	/**
+	 * Opens the console's window.
+	 *
+	 * @param title - The window's title.
+	 * @param scrollbackLines - The most lines the server's log view keeps.
+	 * @param connectionLines - The most lines kept for each connection.
+	 * @param maxConnections - The most connections kept in the table.
+	 * @param frameRate - How many times a second the window is updated.
+	 */
+	public LogConsole(String title, int scrollbackLines, int connectionLines, int maxConnections, int frameRate) {
+		this.scrollbackLines = Math.max(scrollbackLines, 1);
+		this.connectionLines = Math.max(connectionLines, 1);
+		this.maxConnections = Math.max(maxConnections, 1);
+
+		Font font = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+		serverArea = new JTextArea(25, 80);
+		serverArea.setFont(font);
+		serverArea.setEditable(false);
+		connectionArea = new JTextArea(15, 80);
+		connectionArea.setFont(font);
+		connectionArea.setEditable(false);
+
+		table = new JTable(model);
+		table.setRowSorter(sorter);
+		table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		table.getSelectionModel().addListSelectionListener( (e) -> {
+			if( !e.getValueIsAdjusting() )
+				show();
+		});
+
+		JTextField filter = new JTextField(20);
+		filter.getDocument().addDocumentListener( new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				filter( filter.getText() );
+			}
+
+			public void removeUpdate(DocumentEvent e) {
+				filter( filter.getText() );
+			}
+
+			public void changedUpdate(DocumentEvent e) {
+				filter( filter.getText() );
+			}
+		});
+
+		JPanel filterPanel = new JPanel( new BorderLayout(5, 0) );
+		filterPanel.add( new JLabel(" Filter: "), BorderLayout.WEST );
+		filterPanel.add( filter, BorderLayout.CENTER );
+		JPanel tablePanel = new JPanel( new BorderLayout() );
+		tablePanel.add( filterPanel, BorderLayout.NORTH );
+		tablePanel.add( new JScrollPane(table), BorderLayout.CENTER );
+		connectionLabel = new JLabel(" Select a connection to see its log.");
+		JPanel logPanel = new JPanel( new BorderLayout() );
+		logPanel.add( connectionLabel, BorderLayout.NORTH );
+		logPanel.add( new JScrollPane(connectionArea), BorderLayout.CENTER );
+
+		JTabbedPane tabbedPane = new JTabbedPane();
+		tabbedPane.addTab( "Server", new JScrollPane(serverArea) );
+		tabbedPane.addTab( "Connections", new JSplitPane(JSplitPane.VERTICAL_SPLIT, tablePanel, logPanel) );
+
+		frame = new JFrame(title);
+		frame.add(tabbedPane);
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.setSize(610, 585);
+		frame.setLocationRelativeTo(null);
+		frame.setVisible(true);
+
+		timer = new Timer( 1000 / Math.max(frameRate, 1), (e) -> update() );
+		timer.start();
+	}
+
+
+	/** @return Whether the console's window is still open. */
+	public boolean isOpen() {
+		return frame.isDisplayable();
+	}
+
+	/** Collects a batch of events for the next frame. Called by the log's writer thread. */
+	public synchronized void write(List<AsyncLog.Event> batch) {
+		while( pending.size() >= MAX_PENDING && frame.isDisplayable() ) {
+			try {
+				wait(100);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		pending.addAll(batch);
+	}
+
+	public void close() {
+		timer.stop();
+	}
+
+
+	/** Brings the window up to date with the events that have come in since the last frame. */
+	private void update() {
+		List<AsyncLog.Event> events;
+		synchronized(this) {
+			if( pending.isEmpty() )
+				return;
+			events = pending;
+			pending = new ArrayList<>();
+			notifyAll();
+		}
+
+		Deque<String> serverLines = new ArrayDeque<>(), shownLines = new ArrayDeque<>();
+		int firstNew = connections.size();
+		for( AsyncLog.Event event : events ) {
+			if( event.source.equals(AsyncLog.SERVER) ) {
+				if( event.message != null )
+					add( serverLines, format(event), scrollbackLines );
+				continue;
+			}
+			Connection connection = bySource.get(event.source);
+			if( connection == null ) {
+				connection = new Connection(event.source, event.time);
+				connections.add(connection);
+				bySource.put(event.source, connection);
+			}
+			if( event.message == null ) {
+				connection.ended = true;
+				continue;
+			}
+			String line = format(event);
+			connection.add(event, line);
+			if( connection == shown )
+				add( shownLines, line, connectionLines );
+		}
+
+		if( connections.size() > maxConnections ) {
+			Connection selected = shown;
+			forgetOldest();
+			model.fireTableDataChanged(); //clears the selection
+			if( selected != null && bySource.get(selected.source) == selected ) { //still there; keep it selected
+				int row = table.convertRowIndexToView( connections.indexOf(selected) );
+				if( row >= 0 )
+					table.setRowSelectionInterval(row, row);
+			}
+			shownLines.clear(); //changing the selection reloaded the connection's view
+		} else {
+			if( firstNew > 0 )
+				model.fireTableRowsUpdated(0, firstNew - 1);
+			if( connections.size() > firstNew )
+				model.fireTableRowsInserted( firstNew, connections.size() - 1 );
+		}
+
+		append(serverArea, serverLines, scrollbackLines);
+		append(connectionArea, shownLines, connectionLines);
+	}
+
+	/** Drops connections from the table until it's back to {@link #maxConnections}: ended ones first, then the oldest. */
+	private void forgetOldest() {
+		int excess = connections.size() - maxConnections;
+		List<Connection> kept = new ArrayList<>( connections.size() );
+		for( Connection connection : connections ) {
+			if( excess > 0 && connection.ended ) {
+				bySource.remove(connection.source);
+				excess--;
+			} else {
+				kept.add(connection);
+			}
+		}
+		connections.clear();
+		connections.addAll( kept.subList(excess, kept.size()) );
+		for( Connection connection : kept.subList(0, excess) )
+			bySource.remove(connection.source);
+	}
+
+	/** Shows the log of the connection selected in the table. */
+	private void show() {
+		int row = table.getSelectedRow();
+		shown = row < 0 ? null : connections.get( table.convertRowIndexToModel(row) );
+		if( shown == null ) {
+			connectionLabel.setText(" Select a connection to see its log.");
+			connectionArea.setText("");
+		} else {
+			connectionLabel.setText(" " + shown.source);
+			StringBuilder text = new StringBuilder();
+			for( String line : shown.recent )
+				text.append(line).append('\n');
+			connectionArea.setText( text.toString() );
+		}
+	}
+
+	/** Only shows connections whose address contains the given text (ignoring case.) */
+	private void filter(String text) {
+		text = text.trim();
+		sorter.setRowFilter( text.isEmpty() ? null : RowFilter.regexFilter("(?i)" + Pattern.quote(text), 0) );
+	}
+
+	private String format(AsyncLog.Event event) {
+		date.setTime(event.time);
+		String time = timeFormat.format(date);
+		return event.error ? time + " ERR " + event.message : time + " " + event.message;
+	}
+
+	/** Adds a line to a frame's new lines for one view, which never need to hold more than the view keeps. */
+	private static void add(Deque<String> lines, String line, int max) {
+		if( lines.size() == max )
+			lines.removeFirst();
+		lines.addLast(line);
+	}
+
+	/** Appends a frame's new lines to a view, then drops its oldest lines beyond <code>max</code>. */
+	private void append(JTextArea area, Deque<String> lines, int max) {
+		if( lines.isEmpty() )
+			return;
+		StringBuilder text = new StringBuilder();
+		for( String line : lines )
+			text.append(line).append('\n');
+		area.append( text.toString() );
+		int excess = area.getLineCount() - 1 - max; //the last "line" is the empty one after the final '\n'
+		if( excess > 0 ) {
+			try {
+				area.getDocument().remove( 0, area.getLineStartOffset(excess) );
+			} catch(BadLocationException e) {
+				logError("Console: couldn't trim a view: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Adds a line to the server's error log, shown with the next frame.
+	 * It's added here, where the log's events end up, rather than through the {@link AsyncLog}:
+	 * the event dispatch thread must never wait for the log's writer, which may be waiting for it.
+	 */
+	private synchronized void logError(String message) {
+		pending.add( new AsyncLog.Event(System.currentTimeMillis(), AsyncLog.SERVER, true, message) );
+	}
+
+
+	/** The connection table's columns, over {@link #connections}. */
+	private final class TableModel extends AbstractTableModel
+	{
+		private static final long serialVersionUID = 3803992883757003322L;
+
+		public int getRowCount() {
+			return connections.size();
+		}
+
+		public int getColumnCount() {
+			return COLUMNS.length;
+		}
+
+		public String getColumnName(int column) {
+			return COLUMNS[column];
+		}
+
+		public Class<?> getColumnClass(int column) {
+			return column == 3 || column == 4 ? Long.class : String.class;
+		}
+
+		public Object getValueAt(int row, int column) {
+			Connection connection = connections.get(row);
+			switch( column ) {
+				case 0:
+					return connection.source;
+				case 1:
+					date.setTime(connection.opened);
+					return timeFormat.format(date);
+				case 2:
+					date.setTime(connection.last);
+					return timeFormat.format(date);
+				case 3:
+					return connection.lines;
+				case 4:
+					return connection.errors;
+				default:
+					return connection.ended ? "ended" : "open";
+			}
+		}
+	}
+}
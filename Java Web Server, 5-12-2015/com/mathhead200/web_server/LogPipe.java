@@ -0,0 +1,135 @@
+package com.mathhead200.web_server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A pipe for a log, from the thread(s) writing it to the thread displaying it.
+ * Like {@link java.io.PipedOutputStream} and {@link java.io.PipedInputStream}, but uses a {@link ReentrantLock}
+ * instead of synchronized methods, so a virtual thread writing to a full pipe parks instead of pinning its carrier thread.
+ * It also doesn't care which threads write to it, or whether they're still alive.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class LogPipe
+{
+	/** Where the log is written. Closing it ends the log (the reader gets end-of-stream once it catches up.) */
+	public final OutputStream output = new OutputStream() {
+		public void write(int b) throws IOException {
+			write( new byte[] { (byte) b }, 0, 1 );
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			lock.lock();
+			try {
+				while( len > 0 ) {
+					if( writerClosed )
+						throw new IOException("pipe closed");
+					if( readerClosed )
+						return; //no one is listening; discard it
+					if( count == buf.length ) {
+						notFull.awaitUninterruptibly();
+						continue;
+					}
+					int tail = (head + count) % buf.length;
+					int n = Math.min( len, Math.min(buf.length - count, buf.length - tail) );
+					System.arraycopy(b, off, buf, tail, n);
+					count += n;
+					off += n;
+					len -= n;
+					notEmpty.signal();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public void close() {
+			lock.lock();
+			try {
+				writerClosed = true;
+				notEmpty.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	};
+
+	/** Where the log is read from. */
+	public final InputStream input = new InputStream() {
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if( len == 0 )
+				return 0;
+			lock.lock();
+			try {
+				while( count == 0 ) {
+					if( writerClosed || readerClosed )
+						return -1;
+					try {
+						notEmpty.await();
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+				}
+				int n = Math.min( len, Math.min(count, buf.length - head) );
+				System.arraycopy(buf, head, b, off, n);
+				head = (head + n) % buf.length;
+				count -= n;
+				notFull.signal();
+				return n;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public int available() {
+			lock.lock();
+			try {
+				return count;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public void close() {
+			lock.lock();
+			try {
+				readerClosed = true;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	};
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	/** Circular buffer of bytes written but not yet read. Guarded by {@link #lock}. */
+	private final byte[] buf;
+	private int head = 0, count = 0;
+	private boolean writerClosed = false, readerClosed = false;
+
+
+	/** Creates a pipe with a 64 KiB buffer. */
+	public LogPipe() {
+		this(65536);
+	}
+
+	/** @param size - How many bytes can be written before the writer has to wait for the reader. */
+	public LogPipe(int size) {
+		buf = new byte[size];
+	}
+}
@@ -0,0 +1,172 @@
+package com.mathhead200.web_server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Decides the MIME type of a file.
+ * The extension tables are built once, at start up, so finding a type is normally one hash look up.
+ * Asking the OS ({@link Files#probeContentType(Path)}) is only done if it's listed in the precedence,
+ * and then only once per path.
+ * Safe to share between connection threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class MimeResolver
+{
+	/** Places a MIME type can come from. */
+	public static enum Source
+	{
+		/** The server's own '.mime-types' file. */
+		MIME_TYPES("mime-types"),
+		/** The OS's MIME type database, e.g. '/etc/mime.types'. */
+		SYSTEM("system"),
+		/** {@link Files#probeContentType(Path)}, which may read the file itself. */
+		PROBE("probe");
+
+		/** How this source is written in the '.properties' file. */
+		public final String key;
+
+		private Source(String key) {
+			this.key = key;
+		}
+
+		/** @return The source with the given {@link #key}. */
+		public static Source forKey(String key) {
+			for( Source source : values() )
+				if( source.key.equalsIgnoreCase(key) )
+					return source;
+			throw new IllegalArgumentException("unknown MIME type source: " + key);
+		}
+	}
+
+
+	/** Sniffed types are remembered for at most this many paths. */
+	private static final int MAX_PROBED = 4096;
+
+	/** The order in which the sources are tried. */
+	public final List<Source> precedence;
+
+	/** The server's own MIME types by (lower case) file extension. */
+	private final Map<String, String> mimeTypes;
+
+	/** The OS's MIME types by (lower case) file extension. */
+	private final Map<String, String> systemTypes;
+
+	/** Results of {@link Files#probeContentType(Path)}. Paths it couldn't identify map to "". */
+	private final ConcurrentHashMap<Path, String> probed = new ConcurrentHashMap<>();
+
+
+	/**
+	 * @param precedence - The order in which to try each source. Sources not listed aren't used.
+	 * @param mimeTypes - MIME types by file extension, from the '.mime-types' file.
+	 * @param systemTypes - MIME types by file extension, from the OS. May be empty.
+	 */
+	public MimeResolver(List<Source> precedence, Map<String, String> mimeTypes, Map<String, String> systemTypes) {
+		this.precedence = Collections.unmodifiableList( new ArrayList<>(precedence) );
+		this.mimeTypes = lowerCaseKeys(mimeTypes);
+		this.systemTypes = lowerCaseKeys(systemTypes);
+	}
+
+	private static Map<String, String> lowerCaseKeys(Map<String, String> table) {
+		Map<String, String> copy = new HashMap<>( table.size() * 2 );
+		for( Map.Entry<String, String> entry : table.entrySet() )
+			copy.put( entry.getKey().toLowerCase(Locale.US), entry.getValue() );
+		return copy;
+	}
+
+
+	/**
+	 * Finds the MIME type of a file.
+	 *
+	 * @param path - The file.
+	 * @param ext - The file's extension, without the '.'. ("" if it doesn't have one.)
+	 * @return The MIME type, or null if no source knows it.
+	 */
+	public String getType(Path path, String ext) {
+		String lowerExt = ext.toLowerCase(Locale.US);
+		for( Source source : precedence ) {
+			String type;
+			switch( source ) {
+				case MIME_TYPES:
+					type = mimeTypes.get(lowerExt);
+					break;
+				case SYSTEM:
+					type = systemTypes.get(lowerExt);
+					break;
+				default:
+					type = probe(path);
+			}
+			if( type != null )
+				return type;
+		}
+		return null;
+	}
+
+	/** Asks the OS for the type of the given file, at most once per path. */
+	private String probe(Path path) {
+		String type = probed.get(path);
+		if( type == null ) {
+			try {
+				type = Files.probeContentType(path);
+			} catch(IOException e) {
+				type = null;
+			}
+			if( type == null )
+				type = "";
+			if( probed.size() >= MAX_PROBED )
+				probed.clear();
+			probed.put(path, type);
+		}
+		return type.isEmpty() ? null : type;
+	}
+
+
+	/**
+	 * Parses a table of MIME types, in the format of '.mime-types' (and '/etc/mime.types'):
+	 * a MIME type followed by its file extensions, all separated by white space.
+	 * Blank lines, and lines starting with '#', are ignored.
+	 *
+	 * @param reader - Where to read the table from.
+	 * @param table - Where to put the MIME types, by file extension.
+	 * @throws IOException - If a read error occurs.
+	 */
+	public static void readTable(BufferedReader reader, Map<String, String> table) throws IOException {
+		for( String line; (line = reader.readLine()) != null; )
+			parseLine(line, table);
+	}
+
+	/** @see #readTable(BufferedReader, Map) */
+	public static void parseLine(String line, Map<String, String> table) {
+		line = line.trim();
+		if( line.length() == 0 || line.charAt(0) == '#' )
+			return;
+		String[] arr = line.split("\\s+");
+		for( int i = 1; i < arr.length; i++ )
+			table.put( arr[i], arr[0] );
+	}
+
+	/**
+	 * Parses a precedence list, e.g. "mime-types, system, probe".
+	 *
+	 * @param list - Comma separated {@link Source#key}s.
+	 * @return The sources, in the order given.
+	 */
+	public static List<Source> parsePrecedence(String list) {
+		List<Source> precedence = new ArrayList<>();
+		for( String key : list.split(",") )
+			if( key.trim().length() != 0 )
+				precedence.add( Source.forKey(key.trim()) );
+		return precedence;
+	}
+}
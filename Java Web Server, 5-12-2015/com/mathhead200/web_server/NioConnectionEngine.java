@@ -0,0 +1,277 @@
+package com.mathhead200.web_server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * Accepts HTTP connections, and waits on them between requests, using {@link Selector}s
+ * instead of a thread per connection.
+ * A small, fixed number of event loop threads accept connections and read request headers without blocking.
+ * Once a whole request header has arrived, the connection is handed to a worker thread,
+ * which handles the request (file I/O, CGI, ServerProcess, ...) with the usual {@link HttpConnectionHandler} code,
+ * then hands the connection back to its event loop to wait for the next request.
+ * So an idle keep-alive connection costs a selection key, not a thread.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class NioConnectionEngine implements Runnable, Closeable
+{
+	/** A connection, and the handler that responds to its requests. Run by a worker to handle its next request(s). */
+	private final class Connection implements Runnable
+	{
+		final SocketChannel channel;
+		final HttpConnectionHandler handler;
+		final EventLoop loop;
+
+		/** When (in {@link System#nanoTime()} terms) bytes were last read from this connection. Only used by {@link #loop}. */
+		long lastActive;
+
+		Connection(SocketChannel channel, HttpConnectionHandler handler, EventLoop loop) {
+			this.channel = channel;
+			this.handler = handler;
+			this.loop = loop;
+		}
+
+		public void run() {
+			boolean keepAlive;
+			try {
+				channel.configureBlocking(true);
+				do {
+					keepAlive = handler.handleRequest();
+				} while( keepAlive && handler.hasBufferedRequest() ); //pipelined requests
+			} catch(Exception e) {
+				handler.abort(e);
+				keepAlive = false;
+			}
+			if( keepAlive && !closed )
+				loop.add(this);
+			else
+				handler.close();
+		}
+	}
+
+	/** One thread, and the selector it waits on. */
+	private final class EventLoop implements Runnable
+	{
+		final Selector selector;
+
+		/** New connections, and connections handed back by workers, waiting to be registered with {@link #selector}. */
+		final ConcurrentLinkedQueue<Connection> added = new ConcurrentLinkedQueue<>();
+
+		/** Connections with a whole request header read, waiting to be handed to a worker. */
+		final List<Connection> ready = new ArrayList<>();
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/** Has this loop wait on the given connection's next request. Can be called from any thread. */
+		void add(Connection connection) {
+			added.add(connection);
+			selector.wakeup();
+		}
+
+		public void run() {
+			long lastSweep = System.nanoTime();
+			try {
+				while( !closed ) {
+					selector.select(1000);
+					long now = System.nanoTime();
+
+					for( Connection connection; (connection = added.poll()) != null; ) {
+						try {
+							connection.channel.configureBlocking(false);
+							connection.channel.register(selector, SelectionKey.OP_READ, connection);
+							connection.lastActive = now;
+						} catch(IOException e) {
+							connection.handler.abort(e);
+							connection.handler.close();
+						}
+					}
+
+					for( Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext(); ) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						if( !key.isValid() )
+							continue;
+						if( key.isAcceptable() ) {
+							accept();
+							continue;
+						}
+						Connection connection = (Connection) key.attachment();
+						int n;
+						try {
+							n = connection.handler.readAvailable();
+						} catch(IOException e) {
+							n = -1;
+						}
+						if( n < 0 ) {
+							key.cancel();
+							connection.handler.close();
+						} else {
+							connection.lastActive = now;
+							if( connection.handler.hasBufferedRequest() ) {
+								key.cancel();
+								ready.add(connection);
+							}
+						}
+					}
+
+					if( !ready.isEmpty() ) {
+						selector.selectNow(); //deregisters the cancelled keys, so their channels can be put in blocking mode
+						for( Connection connection : ready )
+							workers.execute(connection);
+						ready.clear();
+					}
+
+					//close connections that have been idle for too long
+					if( now - lastSweep >= SWEEP_INTERVAL ) {
+						lastSweep = now;
+						for( SelectionKey key : selector.keys() ) {
+							if( !key.isValid() || !(key.attachment() instanceof Connection) )
+								continue;
+							Connection connection = (Connection) key.attachment();
+							if( now - connection.lastActive > keepAliveTimeout ) {
+								key.cancel();
+								connection.handler.abort( new SocketTimeoutException("idle for " + settings.keepAliveTimeout + " ms") );
+								connection.handler.close();
+							}
+						}
+					}
+				}
+			} catch(IOException | ClosedSelectorException e) {
+				if( !closed )
+					e.printStackTrace();
+			} finally {
+				for( SelectionKey key : selector.keys() )
+					if( key.attachment() instanceof Connection )
+						((Connection) key.attachment()).handler.close();
+				try {
+					selector.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+
+	/** How often (in nanoseconds) idle connections are looked for. */
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	/** Where various behavior-modifying settings are stored. */
+	private final HttpSettings settings;
+
+	/** {@link HttpSettings#keepAliveTimeout}, in nanoseconds. */
+	private final long keepAliveTimeout;
+
+	/** The listening socket. Registered with the first event loop. */
+	private final ServerSocketChannel server;
+
+	private final EventLoop[] loops;
+
+	/** The event loop the next accepted connection goes to. Only used by the first event loop. */
+	private int nextLoop = 0;
+
+	/** Handles each request, once its header has been read. */
+	private final ExecutorService workers;
+
+	/** Told about each accepted connection, before its first request. */
+	private final Consumer<HttpConnectionHandler> onAccept;
+
+	private volatile boolean closed = false;
+
+
+	/**
+	 * Binds the server socket. Nothing is accepted until {@link #run()}.
+	 *
+	 * @param settings - The settings to handle connections with. (Including the port to listen on.)
+	 * @param eventLoops - The number of event loop threads.
+	 * @param workerThreads - The number of threads requests are handled on.
+	 * @param onAccept - Told about each accepted connection (e.g. to set up its logs.) May be null.
+	 * @throws IOException - If the server socket can't be opened.
+	 */
+	public NioConnectionEngine(HttpSettings settings, int eventLoops, int workerThreads,
+			Consumer<HttpConnectionHandler> onAccept) throws IOException {
+		if( eventLoops < 1 || workerThreads < 1 )
+			throw new IllegalArgumentException("need at least one event loop and one worker thread");
+		this.settings = settings;
+		this.keepAliveTimeout = TimeUnit.MILLISECONDS.toNanos(settings.keepAliveTimeout);
+		this.onAccept = onAccept;
+		this.loops = new EventLoop[eventLoops];
+		for( int i = 0; i < loops.length; i++ )
+			loops[i] = new EventLoop();
+		this.workers = Executors.newFixedThreadPool(workerThreads);
+
+		server = ServerSocketChannel.open();
+		server.bind( new InetSocketAddress(settings.port), settings.admission.acceptBacklog );
+		server.configureBlocking(false);
+		server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+	}
+
+
+	/** Accepts every pending connection, spreading them between the event loops. Only called by the first event loop. */
+	private void accept() throws IOException {
+		for( SocketChannel channel; (channel = server.accept()) != null; ) {
+			HttpConnectionHandler handler = new HttpConnectionHandler(channel.socket(), settings);
+			if( !handler.admit() ) {
+				handler.redirectLogs(null, null);
+				handler.shed();
+				continue;
+			}
+			try {
+				if( onAccept != null )
+					onAccept.accept(handler);
+				handler.open();
+			} catch(IOException e) {
+				handler.abort(e);
+				handler.close();
+				continue;
+			}
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			loop.add( new Connection(channel, handler, loop) );
+		}
+	}
+
+	/** @return The port actually being listened on. (Differs from {@link HttpSettings#port} if that was 0.) */
+	public int getLocalPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/** Starts the event loops, running the first one (which also accepts connections) on the calling thread.
+	    Returns once {@link #close()} is called. */
+	public void run() {
+		for( int i = 1; i < loops.length; i++ ) {
+			Thread thread = new Thread(loops[i], "NIO Event Loop " + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		loops[0].run();
+	}
+
+	/** Stops accepting connections, and closes every open connection. */
+	public void close() throws IOException {
+		closed = true;
+		server.close();
+		for( EventLoop loop : loops )
+			loop.selector.wakeup();
+		workers.shutdownNow();
+	}
+}
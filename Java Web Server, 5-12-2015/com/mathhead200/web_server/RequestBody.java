@@ -0,0 +1,172 @@
+package com.mathhead200.web_server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * The message body of an HTTP request, read straight off the connection as it's used
+ * (e.g. by a CGI script's standard input, or a {@link ServerProcess}), instead of all being collected in memory first.
+ * Reads stop at the end of the body, so the next request on the connection is never touched;
+ * whatever isn't read can be {@link #discard(long) discarded} afterwards.
+ * A body whose length isn't known in advance ("Transfer-Encoding: chunked") is limited to a maximum length,
+ * and can be {@link #buffer(long) buffered} (in a temporary file, if it's large) when its length has to be known.
+ * Closing a body doesn't close the connection.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class RequestBody extends InputStream
+{
+	private final InputStream input;
+
+	/** The body's length, or {@link ResponseBody#UNKNOWN_LENGTH}. */
+	private final long length;
+
+	/** Most bytes a body of unknown length may have; answered with 413 otherwise. */
+	private final long maxLength;
+
+	/** Closed along with this body (e.g. a temporary file), or null. */
+	private final Closeable resource;
+
+	/** Bytes read so far. */
+	private long count = 0;
+
+	private boolean ended;
+
+
+	/**
+	 * @param input - The connection's input stream, positioned at the start of the body.
+	 * 	For a chunked body, a {@link ChunkedInputStream}.
+	 * @param length - The body's length ("Content-Length"), or {@link ResponseBody#UNKNOWN_LENGTH}.
+	 * @param maxLength - The most bytes a body of unknown length may have.
+	 */
+	public RequestBody(InputStream input, long length, long maxLength) {
+		this(input, length, maxLength, null);
+	}
+
+	private RequestBody(InputStream input, long length, long maxLength, Closeable resource) {
+		this.input = input;
+		this.length = length;
+		this.maxLength = maxLength;
+		this.resource = resource;
+		this.ended = (length == 0);
+	}
+
+
+	/** @return The body's length, or {@link ResponseBody#UNKNOWN_LENGTH} if it isn't known until it's all been read. */
+	public long length() {
+		return length;
+	}
+
+	/** @return The number of bytes read (or discarded) so far. */
+	public long getCount() {
+		return count;
+	}
+
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+	}
+
+	/**
+	 * @throws EOFException - If the connection ends before the whole body has been read.
+	 * @throws HttpRequestParser.RejectedException - If a body of unknown length is longer than allowed ("413 Payload Too Large"),
+	 * 	or isn't framed correctly.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if( len == 0 )
+			return 0;
+		if( ended )
+			return -1;
+		if( length != ResponseBody.UNKNOWN_LENGTH )
+			len = (int) Math.min(len, length - count);
+		int n = input.read(b, off, len);
+		if( n < 0 ) {
+			if( length != ResponseBody.UNKNOWN_LENGTH )
+				throw new EOFException("request body ended " + (length - count) + " bytes early");
+			ended = true;
+			return -1;
+		}
+		count += n;
+		if( length == ResponseBody.UNKNOWN_LENGTH && count > maxLength )
+			throw new HttpRequestParser.RejectedException("413 Payload Too Large", "request body longer than " + maxLength + " bytes");
+		if( count == length )
+			ended = true;
+		return n;
+	}
+
+	public int available() throws IOException {
+		if( ended )
+			return 0;
+		int n = input.available();
+		return length == ResponseBody.UNKNOWN_LENGTH ? n : (int) Math.min(n, length - count);
+	}
+
+	/**
+	 * Reads (and throws away) whatever is left of this body, so the next request on the connection can be read.
+	 *
+	 * @param max - The most bytes to discard. A longer body is left unfinished, since closing the connection is cheaper.
+	 * @return true if the whole body has now been read.
+	 * @throws IOException - If a read error occurs.
+	 */
+	public boolean discard(long max) throws IOException {
+		byte[] chunk = new byte[8192];
+		for( long discarded = 0; !ended; ) {
+			if( discarded >= max )
+				return false;
+			int n = read( chunk, 0, (int) Math.min(chunk.length, max - discarded) );
+			if( n < 0 )
+				break;
+			discarded += n;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the rest of this body, so its length is known (e.g. for a CGI script's CONTENT_LENGTH.)
+	 * Up to <code>memoryLength</code> bytes are kept in memory; a longer body is spilled to a temporary file,
+	 * which is deleted when the returned body is closed.
+	 *
+	 * @param memoryLength - The most bytes to keep in memory.
+	 * @return A body, of known length, containing the rest of this one.
+	 * @throws IOException - If a read or write error occurs, or this body is longer than allowed.
+	 */
+	public RequestBody buffer(long memoryLength) throws IOException {
+		long start = count;
+		ByteArrayOutputStream memory = new ByteArrayOutputStream( (int) Math.min(memoryLength, 8192) );
+		byte[] chunk = new byte[8192];
+		for( int n; !ended && memory.size() < memoryLength && (n = read(chunk)) >= 0; )
+			memory.write(chunk, 0, n);
+		if( ended )
+			return new RequestBody( new ByteArrayInputStream(memory.toByteArray()), memory.size(), maxLength );
+		
+		Path file = Files.createTempFile("request-body-", ".tmp");
+		try {
+			try( OutputStream output = Files.newOutputStream(file) ) {
+				memory.writeTo(output);
+				memory = null;
+				for( int n; (n = read(chunk)) >= 0; )
+					output.write(chunk, 0, n);
+			}
+			InputStream spilled = Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE);
+			return new RequestBody(spilled, count - start, maxLength, spilled);
+		} catch(IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+
+	/** Closes the temporary file (if any) this body was buffered in. The connection is left open. */
+	public void close() throws IOException {
+		if( resource != null )
+			resource.close();
+	}
+}
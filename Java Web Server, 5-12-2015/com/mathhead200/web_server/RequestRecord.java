@@ -0,0 +1,108 @@
+package com.mathhead200.web_server;
+
+
+/**
+ * What happened to one request: who sent it, how it was answered, how many bytes went each way,
+ * and how long each phase of handling it took. Filled in by {@link HttpConnectionHandler}, e.g. for the {@link AccessLog}.
+ * One instance is reused for every request on a connection.
+ * <p>
+ * The phases are: <b>parse</b>, from the request's first bytes arriving to its header being parsed;
+ * <b>wait</b>, for a request slot (see {@link AdmissionControl}); <b>resolve</b>, finding what the path refers to;
+ * <b>handle</b>, until the response's header is sent (e.g. running a script, or reading a file);
+ * and <b>send</b>, until the rest of the response has been sent.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class RequestRecord
+{
+	/** The client's address. */
+	public String client;
+
+	/** The request's header. Its method, URI, and version are null if its request line couldn't be parsed. */
+	public HttpRequest request;
+
+	/** When the request began, in milliseconds since the epoch. */
+	public long time;
+
+	/** How many requests were handled on the connection before this one. */
+	public int reuse;
+
+	/** What the request's path resolved to, or null if it wasn't resolved (e.g. the request was rejected.) */
+	public ResourceResolver.Kind kind;
+
+	/** The response's status, e.g. "200 OK", or null if no response header was sent. */
+	public String status;
+
+	/** Bytes of the request read from the connection: its header, and whatever of its body was read (or discarded.) */
+	public long requestBytes;
+
+	/** Bytes of the response sent on the connection, header included. */
+	public long responseBytes;
+
+	/** Bytes of the response's header. */
+	public long headerBytes;
+
+	/** When each phase ended (as from {@link System#nanoTime()}), or 0 if it didn't happen. */
+	public long started, parsed, admitted, resolved, responded, finished;
+
+
+	/** Clears this record so it can be reused for the next request. */
+	public void reset() {
+		time = 0;
+		reuse = 0;
+		kind = null;
+		status = null;
+		requestBytes = responseBytes = headerBytes = 0;
+		started = parsed = admitted = resolved = responded = finished = 0;
+	}
+
+	/** @return The response's status code, e.g. 200, or 0 if no response header was sent. */
+	public int getStatusCode() {
+		if( status == null || status.length() < 3 )
+			return 0;
+		try {
+			return Integer.parseInt( status.substring(0, 3) );
+		} catch(NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/** @return Bytes of the response's body (as sent, e.g. compressed, or in chunks.) */
+	public long getBodyBytes() {
+		return Math.max(responseBytes - headerBytes, 0);
+	}
+
+	/** @return Nanoseconds spent reading and parsing the request's header. */
+	public long getParseNanos() {
+		return parsed - started;
+	}
+
+	/** @return Nanoseconds spent waiting for a request slot. */
+	public long getWaitNanos() {
+		return admitted - parsed;
+	}
+
+	/** @return Nanoseconds spent resolving the request's path, or 0 if it wasn't resolved. */
+	public long getResolveNanos() {
+		return resolved == 0 ? 0 : resolved - admitted;
+	}
+
+	/** @return Nanoseconds spent handling the request, up to its response's header being sent. */
+	public long getHandleNanos() {
+		return (responded == 0 ? finished : responded) - (resolved == 0 ? admitted : resolved);
+	}
+
+	/** @return Nanoseconds spent sending the rest of the response, or 0 if no response header was sent. */
+	public long getSendNanos() {
+		return responded == 0 ? 0 : finished - responded;
+	}
+
+	/** @return Nanoseconds from the request's first bytes arriving to its response being sent. */
+	public long getTotalNanos() {
+		return finished - started;
+	}
+
+	public String toString() {
+		return request + " -> " + status;
+	}
+}
@@ -0,0 +1,268 @@
+package com.mathhead200.web_server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Works out what a request path refers to: which file (after index file substitution),
+ * whether it may be accessed, and how it should be handled (CGI, Java CGI, static file, or directory index.)
+ * Results are cached per distinct path for a short time, since the answer rarely changes
+ * but takes several file system calls to find.
+ * Safe to share between connection threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class ResourceResolver
+{
+	/** How a resolved resource should be handled. */
+	public static enum Kind
+	{
+		/** Outside of ROOT_DIR, or hidden. */
+		FORBIDDEN,
+		/** A Java CGI "script" (ServerEndpoint.) */
+		JAVA_CGI,
+		/** Nothing exists at the path. */
+		NOT_FOUND,
+		/** A file listed in the CGI file list. */
+		CGI,
+		/** Any other file. */
+		FILE,
+		/** A directory without an index file. */
+		DIRECTORY,
+		/** Exists, but is neither a file nor a directory. */
+		OTHER
+	}
+
+	/** The result of resolving a request path. */
+	public static final class Resource
+	{
+		/** How this resource should be handled. */
+		public final Kind kind;
+
+		/** The requested path, decoded. Relative to ROOT_DIR. */
+		public final String relPath;
+
+		/** The true path to the resource on the underlying OS. (Index file substitution has already been done.) */
+		public final Path fullPath;
+
+		/** The resource's file name, and the file extension part of it ("" if there isn't one.)
+		    Only set for {@link Kind#CGI} and {@link Kind#FILE}. */
+		public final String fileName, ext;
+
+		/** The MIME type of a {@link Kind#FILE}. May be null. */
+		public final String type;
+		
+		/** When a {@link Kind#FILE} (or {@link Kind#DIRECTORY}) was last modified (in milliseconds) as of resolving it,
+		    and the same time already in RFC 1123 format, for the "Last-Modified" header. */
+		public final long lastModified;
+		public final String date;
+
+		/** The size of a {@link Kind#FILE} as of resolving it. */
+		public final long size;
+
+		/** The entity tag of a {@link Kind#FILE} (or a weak one for a {@link Kind#DIRECTORY}'s index) as of resolving it. */
+		public final String etag;
+
+		/** The "Cache-Control" header for a {@link Kind#FILE} or {@link Kind#DIRECTORY}. May be null. */
+		public final String cacheControl;
+
+		/** The Java CGI process of a {@link Kind#JAVA_CGI}. */
+		public final ServerEndpoint javaCGI;
+
+		/** When (in {@link System#nanoTime()} terms) this resource should be resolved again. */
+		private final long expires;
+
+		private Resource(Kind kind, String relPath, Path fullPath, String fileName, String ext,
+				String type, ServerEndpoint javaCGI, long expires) {
+			this(kind, relPath, fullPath, fileName, ext, type, 0, 0, null, null, javaCGI, expires);
+		}
+
+		private Resource(Kind kind, String relPath, Path fullPath, String fileName, String ext, String type,
+				long lastModified, long size, String etag, String cacheControl, ServerEndpoint javaCGI, long expires) {
+			this.kind = kind;
+			this.relPath = relPath;
+			this.fullPath = fullPath;
+			this.fileName = fileName;
+			this.ext = ext;
+			this.type = type;
+			this.lastModified = lastModified;
+			this.date = (lastModified != 0 ? HttpDate.format(lastModified) : null);
+			this.size = size;
+			this.etag = etag;
+			this.cacheControl = cacheControl;
+			this.javaCGI = javaCGI;
+			this.expires = expires;
+		}
+	}
+
+
+	/** Where various behavior-modifying settings are stored. */
+	private final HttpSettings settings;
+
+	/** The files listed in {@link HttpSettings#cgiFiles}, for constant time look up. */
+	private final Set<String> cgiFiles;
+
+	/** The most paths that will be cached at once. 0 if caching is turned off. */
+	public final int maxEntries;
+
+	/** How long (in nanoseconds) a resolved path is trusted before it is resolved again. */
+	public final long ttl;
+
+	/** Resolved resources by raw (undecoded) request path. */
+	private final ConcurrentHashMap<String, Resource> cache = new ConcurrentHashMap<>();
+
+
+	/**
+	 * @param settings - The settings to resolve paths with.
+	 * @param maxEntries - The most paths to remember at once, or 0 to not cache at all.
+	 * @param ttlMillis - How long a resolved path is trusted before it is resolved again.
+	 */
+	public ResourceResolver(HttpSettings settings, int maxEntries, long ttlMillis) {
+		this.settings = settings;
+		this.cgiFiles = new HashSet<>(settings.cgiFiles);
+		this.maxEntries = maxEntries;
+		this.ttl = ttlMillis * 1000000L;
+	}
+
+
+	/**
+	 * Resolves the path part of a request URI.
+	 *
+	 * @param rawPath - The request URI up to (not including) any '?' or '#'.
+	 * @return The resolved resource.
+	 * @throws URISyntaxException - If the path isn't a valid URI.
+	 */
+	public Resource resolve(String rawPath) throws URISyntaxException {
+		long now = System.nanoTime();
+		Resource resource = cache.get(rawPath);
+		if( resource != null && now - resource.expires < 0 )
+			return resource;
+
+		resource = lookUp(rawPath, now + ttl);
+		if( maxEntries > 0 ) {
+			if( cache.size() >= maxEntries ) {
+				//drop about a quarter of the cache; cheaper than tracking the least recently used path
+				int n = maxEntries / 4 + 1;
+				for( Iterator<String> iter = cache.keySet().iterator(); n > 0 && iter.hasNext(); n-- ) {
+					iter.next();
+					iter.remove();
+				}
+			}
+			cache.put(rawPath, resource);
+		}
+		return resource;
+	}
+
+	/** Forgets what the given raw request path resolved to. */
+	public void invalidate(String rawPath) {
+		cache.remove(rawPath);
+	}
+
+	/** Forgets every resolved path. */
+	public void invalidateAll() {
+		cache.clear();
+	}
+
+	/** @return The number of paths currently cached. */
+	public int size() {
+		return cache.size();
+	}
+
+	/** Does the actual (uncached) work of {@link #resolve(String)}. */
+	private Resource lookUp(String rawPath, long expires) throws URISyntaxException {
+		final String relPath = new URI(rawPath).getPath();
+		Path fullPath = JavaWebServer.ROOT_DIR.resolve("./" + relPath).normalize();
+
+		//check to make sure requested file would be inside of ROOT_DIR
+		//	or a child of a child of ... ROOT_DIR.
+		//	Also blocks access to ".hidden" files.
+		SECURITY: {
+			if( !fullPath.toFile().isHidden() )
+				for( Path dir = fullPath; dir != null; dir = dir.getParent() )
+					if( dir.equals(JavaWebServer.ROOT_DIR) )
+						break SECURITY;
+			return new Resource(Kind.FORBIDDEN, relPath, fullPath, null, null, null, null, expires);
+		}
+
+		//check if requested resource is a Java CGI "script"
+		ServerEndpoint javaCGI = settings.javaCGI.get(relPath);
+		if( javaCGI != null )
+			return new Resource(Kind.JAVA_CGI, relPath, fullPath, null, null, null, javaCGI, expires);
+
+		//check if the request resource actually exists (i.e. existent file, directory, etc...)
+		File file = fullPath.toFile();
+		if( !file.exists() )
+			return new Resource(Kind.NOT_FOUND, relPath, fullPath, null, null, null, null, expires);
+
+		//if the requested resource is a directory, search for an index file
+		if( file.isDirectory() ) {
+			boolean indexed = false;
+			for( String indexFile : settings.indexFiles ) {
+				Path p = fullPath.resolve(indexFile);
+				if( p.toFile().isFile() ) {
+					fullPath = p;
+					indexed = true;
+					break;
+				}
+			}
+			if( !indexed ) {
+				//the generated index only changes when an entry is added, removed, or renamed; which changes the directory's time
+				long lastModified = file.lastModified();
+				String etag = "W/\"" + Long.toHexString(lastModified) + "\"";
+				return new Resource(Kind.DIRECTORY, relPath, fullPath, null, null, null,
+						lastModified, 0, etag, settings.cacheControl.get(relPath, null), null, expires);
+			}
+		} else if( !file.isFile() )
+			return new Resource(Kind.OTHER, relPath, fullPath, null, null, null, null, expires);
+
+		String ext; //the file extension
+		String fileName = fullPath.getFileName().toString();
+		{	int i = fileName.lastIndexOf('.');
+			ext = (i <= 0 ? "" : fileName.substring(i + 1));
+		}
+
+		//check if requested resource is in the list of CGI files
+		if( cgiFiles.contains(relPath) )
+			return new Resource(Kind.CGI, relPath, fullPath, fileName, ext, null, null, expires);
+
+		//get files MIME type, and the validators (last modified time and entity tag) used for conditional requests
+		String type = settings.mimeResolver.getType(fullPath, ext);
+		String cacheControl = settings.cacheControl.get(relPath, ext);
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(fullPath, BasicFileAttributes.class);
+		} catch(NoSuchFileException e) {
+			return new Resource(Kind.NOT_FOUND, relPath, fullPath, null, null, null, null, expires); //deleted since it was checked
+		} catch(IOException e) {
+			//no validators; the handler will run into the same problem when it opens the file
+			return new Resource(Kind.FILE, relPath, fullPath, fileName, ext, type, 0, 0, null, cacheControl, null, expires);
+		}
+		return new Resource( Kind.FILE, relPath, fullPath, fileName, ext, type,
+				attrs.lastModifiedTime().toMillis(), attrs.size(), ConditionalRequest.etag(attrs, settings.weakETags),
+				cacheControl, null, expires );
+	}
+
+	/**
+	 * Decodes the query string of a request URI, the same way {@link URI#getQuery()} does.
+	 *
+	 * @param rawQuery - The part of the request URI after the '?', or null.
+	 * @return The decoded query string, or null if <code>rawQuery</code> was.
+	 * @throws URISyntaxException - If the query string isn't valid.
+	 */
+	public static String decodeQuery(String rawQuery) throws URISyntaxException {
+		if( rawQuery == null || rawQuery.indexOf('%') < 0 )
+			return rawQuery;
+		return new URI("?" + rawQuery).getQuery();
+	}
+}
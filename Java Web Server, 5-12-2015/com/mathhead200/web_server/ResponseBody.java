@@ -0,0 +1,301 @@
+package com.mathhead200.web_server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The message body of an HTTP response.
+ * A body usually knows its own length, which is what the "Content-Length"
+ * header is computed from, and knows how to write itself to a connection in bulk.
+ * A body streamed from a running process doesn't, so it's sent with "Transfer-Encoding: chunked" instead.
+ *
+ * @author Christopher D'Angelo
+ */
+public abstract class ResponseBody
+{
+	/** Size of the buffer used when a body has to be copied through the heap. */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The {@link #length()} of a body whose length isn't known until it has been written. */
+	public static final long UNKNOWN_LENGTH = -1;
+
+	/** A body with no bytes in it. */
+	public static final ResponseBody EMPTY = of(new byte[0]);
+
+
+	/** @return The exact number of bytes {@link #writeTo(OutputStream)} will write, or {@link #UNKNOWN_LENGTH}. */
+	public abstract long length();
+
+	/**
+	 * Writes all {@link #length()} bytes of this body to the given stream.
+	 * Does not flush or close the stream.
+	 *
+	 * @param output - Where to write the body.
+	 * @throws IOException - If a read or write error occurs,
+	 * 	or the source of this body has fewer bytes than promised.
+	 */
+	public abstract void writeTo(OutputStream output) throws IOException;
+	
+	/**
+	 * Writes all {@link #length()} bytes of this body to a connection.
+	 * Bodies that can skip the Java heap entirely (i.e. file regions) write
+	 * straight to <code>channel</code>, after flushing <code>output</code>;
+	 * every other body just uses {@link #writeTo(OutputStream)}.
+	 *
+	 * @param output - Where to write the body. May have buffered bytes (e.g. the response header.)
+	 * @param channel - The channel underlying <code>output</code>, or null if there is none.
+	 * @throws IOException - If a read or write error occurs.
+	 */
+	public void writeTo(OutputStream output, WritableByteChannel channel) throws IOException {
+		writeTo(output);
+	}
+	
+	/**
+	 * A body containing only part of this one (e.g. for a "Range" request.)
+	 * Only supported by bodies whose bytes can be read more than once:
+	 * byte arrays, byte buffers, and file regions.
+	 *
+	 * @param offset - The position, within this body, of the first byte.
+	 * @param count - The number of bytes.
+	 * @return The part of this body. Nothing is copied.
+	 * @throws UnsupportedOperationException - If this body can't be sliced.
+	 */
+	public ResponseBody slice(long offset, long count) {
+		throw new UnsupportedOperationException("can't slice " + getClass().getName());
+	}
+	
+	/** Checks that the region [offset, offset + count) is within a body of the given length. */
+	static void checkSlice(long offset, long count, long length) {
+		if( offset < 0 || count < 0 || offset + count > length )
+			throw new IndexOutOfBoundsException("slice " + offset + "+" + count + " of " + length);
+	}
+
+
+	/** A body backed by (part of) a byte array. The array is not copied. */
+	public static ResponseBody of(byte[] bytes, int offset, int length) {
+		if( offset < 0 || length < 0 || offset + length > bytes.length )
+			throw new IndexOutOfBoundsException();
+		return new ResponseBody() {
+			public long length() {
+				return length;
+			}
+			public void writeTo(OutputStream output) throws IOException {
+				output.write(bytes, offset, length);
+			}
+			public ResponseBody slice(long off, long count) {
+				checkSlice(off, count, length);
+				return of(bytes, offset + (int) off, (int) count);
+			}
+		};
+	}
+
+	/** @see #of(byte[], int, int) */
+	public static ResponseBody of(byte[] bytes) {
+		return of(bytes, 0, bytes.length);
+	}
+
+	/** A body containing the given message, UTF-8 encoded. */
+	public static ResponseBody of(String message) {
+		return of( message.getBytes(StandardCharsets.UTF_8) );
+	}
+
+	/** A body backed by the bytes already written to the given buffer. Nothing is copied. */
+	public static ResponseBody of(ByteArrayOutputStream buffer) {
+		return new ResponseBody() {
+			public long length() {
+				return buffer.size();
+			}
+			public void writeTo(OutputStream output) throws IOException {
+				buffer.writeTo(output);
+			}
+		};
+	}
+
+	/** A body backed by the remaining bytes of the given buffer.
+	    The buffer's position is not changed, so the body can be written more than once. */
+	public static ResponseBody of(ByteBuffer buffer) {
+		final ByteBuffer view = buffer.slice();
+		return new ResponseBody() {
+			public long length() {
+				return view.remaining();
+			}
+			public void writeTo(OutputStream output) throws IOException {
+				if( view.hasArray() ) {
+					output.write( view.array(), view.arrayOffset(), view.remaining() );
+					return;
+				}
+				ByteBuffer src = view.duplicate();
+				byte[] chunk = new byte[ Math.min(BUFFER_SIZE, src.remaining()) ];
+				while( src.hasRemaining() ) {
+					int n = Math.min( chunk.length, src.remaining() );
+					src.get(chunk, 0, n);
+					output.write(chunk, 0, n);
+				}
+			}
+			public ResponseBody slice(long offset, long count) {
+				checkSlice(offset, count, view.remaining());
+				ByteBuffer part = view.duplicate();
+				part.position((int) offset).limit((int) (offset + count));
+				return of(part);
+			}
+		};
+	}
+
+	/**
+	 * A body that reads exactly <code>length</code> bytes from the given stream when written.
+	 * The stream is not closed, and the body can only be written once.
+	 */
+	public static ResponseBody of(InputStream input, long length) {
+		if( length < 0 )
+			throw new IllegalArgumentException("negative length: " + length);
+		return new ResponseBody() {
+			public long length() {
+				return length;
+			}
+			public void writeTo(OutputStream output) throws IOException {
+				byte[] chunk = new byte[ (int) Math.min(BUFFER_SIZE, Math.max(length, 1)) ];
+				for( long remaining = length; remaining > 0; ) {
+					int n = input.read( chunk, 0, (int) Math.min(chunk.length, remaining) );
+					if( n < 0 )
+						throw new EOFException("stream ended " + remaining + " bytes early");
+					output.write(chunk, 0, n);
+					remaining -= n;
+				}
+			}
+		};
+	}
+
+	/**
+	 * A body that reads the given stream until end-of-stream when written, so its length is {@link #UNKNOWN_LENGTH}.
+	 * Whenever the stream has nothing more ready to read (e.g. a script is still working), what's been written so far is flushed,
+	 * so the client isn't kept waiting for bytes the server already has.
+	 * The stream is not closed, and the body can only be written once.
+	 */
+	public static ResponseBody of(InputStream input) {
+		return new ResponseBody() {
+			public long length() {
+				return UNKNOWN_LENGTH;
+			}
+			public void writeTo(OutputStream output) throws IOException {
+				byte[] chunk = new byte[BUFFER_SIZE];
+				for( int n; (n = input.read(chunk)) >= 0; ) {
+					output.write(chunk, 0, n);
+					if( input.available() == 0 )
+						output.flush();
+				}
+			}
+		};
+	}
+
+	/**
+	 * A body containing the region of a file starting at <code>position</code>.
+	 * The file is only opened while the body is being written.
+	 */
+	public static ResponseBody of(Path file, long position, long count) {
+		if( position < 0 || count < 0 )
+			throw new IllegalArgumentException("negative file region: " + position + ", " + count);
+		return new ResponseBody() {
+			public long length() {
+				return count;
+			}
+			public void writeTo(OutputStream output, WritableByteChannel target) throws IOException {
+				if( target == null ) {
+					writeTo(output);
+					return;
+				}
+				output.flush();
+				try( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ) {
+					//transferTo lets the OS copy the file to the socket (e.g. sendfile)
+					long pos = position;
+					for( long remaining = count; remaining > 0; ) {
+						long n = channel.transferTo(pos, remaining, target);
+						if( n <= 0 && pos >= channel.size() )
+							throw new EOFException(file + " ended " + remaining + " bytes early");
+						pos += n;
+						remaining -= n;
+					}
+				}
+			}
+			public void writeTo(OutputStream output) throws IOException {
+				try( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ) {
+					ByteBuffer chunk = ByteBuffer.allocate( (int) Math.min(BUFFER_SIZE, Math.max(count, 1)) );
+					long pos = position;
+					for( long remaining = count; remaining > 0; ) {
+						chunk.clear();
+						if( remaining < chunk.capacity() )
+							chunk.limit((int) remaining);
+						int n = channel.read(chunk, pos);
+						if( n < 0 )
+							throw new EOFException(file + " ended " + remaining + " bytes early");
+						output.write(chunk.array(), 0, n);
+						pos += n;
+						remaining -= n;
+					}
+				}
+			}
+			public ResponseBody slice(long offset, long length) {
+				checkSlice(offset, length, count);
+				return of(file, position + offset, length);
+			}
+		};
+	}
+
+	/**
+	 * A body made of several others, written one after the other (e.g. the parts of a "multipart/byteranges" body.)
+	 * Each part is written the best way it can be, so file regions still skip the Java heap.
+	 * Its length is unknown if any part's is.
+	 */
+	public static ResponseBody concat(List<ResponseBody> parts) {
+		final List<ResponseBody> list = new ArrayList<>(parts);
+		long total = 0;
+		for( ResponseBody part : list ) {
+			if( part.length() == UNKNOWN_LENGTH ) {
+				total = UNKNOWN_LENGTH;
+				break;
+			}
+			total += part.length();
+		}
+		final long length = total;
+		return new ResponseBody() {
+			public long length() {
+				return length;
+			}
+			public void writeTo(OutputStream output) throws IOException {
+				for( ResponseBody part : list )
+					part.writeTo(output);
+			}
+			public void writeTo(OutputStream output, WritableByteChannel channel) throws IOException {
+				for( ResponseBody part : list )
+					part.writeTo(output, channel);
+			}
+		};
+	}
+
+	/**
+	 * Reads everything left in a stream into memory.
+	 * Used when the length of some output must be known before it can be sent.
+	 *
+	 * @param input - A stream to read until end-of-stream. Not closed.
+	 * @return A body containing all the bytes read.
+	 * @throws IOException - If a read error occurs.
+	 */
+	public static ResponseBody readFully(InputStream input) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+		byte[] chunk = new byte[BUFFER_SIZE];
+		for( int n; (n = input.read(chunk)) >= 0; )
+			buffer.write(chunk, 0, n);
+		return of(buffer);
+	}
+}
@@ -0,0 +1,222 @@
+package com.mathhead200.web_server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A Java CGI "script" that handles a request in the server itself (the second version of {@link ServerProcess}.)
+ * Instead of CGI's environment variables and a byte stream with a header to be parsed, it's given the parsed request,
+ * and a response whose status and header fields it sets directly, and whose body it writes straight to the connection.
+ * <p>
+ * Older {@link ServerProcess} subclasses are run through {@link ServerProcess#asEndpoint()}.
+ *
+ * @author Christopher D'Angelo
+ */
+public abstract class ServerEndpoint
+{
+	/** A request for an endpoint. */
+	public static final class Request
+	{
+		/** e.g. "GET" */
+		public final String method;
+
+		/** The requested path (decoded), e.g. "/AddNums.cgi". */
+		public final String path;
+
+		/** The (decoded) query string, or null if there wasn't one. */
+		public final String query;
+
+		/** e.g. "HTTP/1.1" */
+		public final String version;
+
+		/** The request's header fields, by lower case name. */
+		public final Map<String, String> headers;
+
+		/** The request's message body, read as it arrives. Empty if there isn't one. */
+		public final InputStream body;
+
+		/** The body's length, or {@link ResponseBody#UNKNOWN_LENGTH}. 0 if there isn't one. */
+		public final long contentLength;
+
+		/** The standard CGI environment variables (e.g. QUERY_STRING, REMOTE_ADDR) for this request. */
+		public final Map<String, String> env;
+
+		/** The connection's error log. */
+		public final PrintStream errLog;
+
+		Request(String method, String path, String query, String version, Map<String, String> headers,
+				InputStream body, long contentLength, Map<String, String> env, PrintStream errLog) {
+			this.method = method;
+			this.path = path;
+			this.query = query;
+			this.version = version;
+			this.headers = Collections.unmodifiableMap(headers);
+			this.body = body;
+			this.contentLength = contentLength;
+			this.env = Collections.unmodifiableMap(env);
+			this.errLog = errLog;
+		}
+
+		/**
+		 * @param name - A header field's name. Not case sensitive.
+		 * @return The field's value, or null if the request didn't have it.
+		 */
+		public String getHeader(String name) {
+			return headers.get( name.toLowerCase() );
+		}
+	}
+
+	/**
+	 * The response to a request. Its status and header fields can be changed until it's committed:
+	 * when more of its body has been written than fits in its buffer, when it's flushed, or once the endpoint returns.
+	 * A response committed by the endpoint returning gets a "Content-Length"; otherwise its length is decided by the connection
+	 * (e.g. it's sent in chunks.)
+	 */
+	public static abstract class Response
+	{
+		private String status = "200 OK";
+		private final List<String> header = new ArrayList<>();
+
+		/** @return The status, e.g. "200 OK". */
+		public String getStatus() {
+			return status;
+		}
+
+		/**
+		 * @param status - The status, e.g. "404 Not Found".
+		 * @throws IllegalStateException - If the response has already been committed.
+		 */
+		public void setStatus(String status) {
+			checkNotCommitted();
+			this.status = status;
+		}
+
+		/**
+		 * Sets a header field, replacing any it already has by that name.
+		 *
+		 * @param name - The field's name, e.g. "Content-Type".
+		 * @param value - Its value, or null to remove the field.
+		 * @throws IllegalStateException - If the response has already been committed.
+		 */
+		public void setHeader(String name, String value) {
+			checkNotCommitted();
+			for( Iterator<String> iter = header.iterator(); iter.hasNext(); ) {
+				String line = iter.next();
+				if( line.length() > name.length() && line.charAt(name.length()) == ':' && line.regionMatches(true, 0, name, 0, name.length()) )
+					iter.remove();
+			}
+			if( value != null )
+				header.add(name + ": " + value);
+		}
+
+		/**
+		 * Adds a header field, even if it already has one by that name (e.g. "Set-Cookie".)
+		 *
+		 * @param name - The field's name.
+		 * @param value - Its value.
+		 * @throws IllegalStateException - If the response has already been committed.
+		 */
+		public void addHeader(String name, String value) {
+			checkNotCommitted();
+			header.add(name + ": " + value);
+		}
+
+		/**
+		 * @param name - A header field's name. Not case sensitive.
+		 * @return The field's (first) value, or null if it hasn't been set.
+		 */
+		public String getHeader(String name) {
+			for( String line : header ) {
+				if( line.length() > name.length() && line.charAt(name.length()) == ':' && line.regionMatches(true, 0, name, 0, name.length()) )
+					return line.substring(name.length() + 1).trim();
+			}
+			return null;
+		}
+
+		/** @return The header fields set so far, e.g. "Content-Type: text/html". */
+		public List<String> getHeaderLines() {
+			return Collections.unmodifiableList(header);
+		}
+
+		/** Sets the "Content-Type" header field. */
+		public void setContentType(String type) {
+			setHeader("Content-Type", type);
+		}
+
+		/**
+		 * Sets the "Content-Length" header field, so the body can be sent without chunking.
+		 * Exactly this many bytes must then be written.
+		 */
+		public void setContentLength(long length) {
+			setHeader( "Content-Length", Long.toString(length) );
+		}
+
+		/**
+		 * Forgets the status, header fields, and buffered body, as if nothing had been set or written yet.
+		 *
+		 * @throws IllegalStateException - If the response has already been committed.
+		 */
+		public void reset() {
+			checkNotCommitted();
+			status = "200 OK";
+			header.clear();
+			resetBuffer();
+		}
+
+		private void checkNotCommitted() {
+			if( isCommitted() )
+				throw new IllegalStateException("response already committed");
+		}
+
+		/** @return true once the status and header fields have been sent. */
+		public abstract boolean isCommitted();
+
+		/**
+		 * The response's message body. Writes are buffered, and only sent to the connection once the response is committed.
+		 * Closing it doesn't close the connection.
+		 */
+		public abstract OutputStream getOutputStream();
+
+		/** Discards whatever of the body is still buffered. Only called before the response is committed. */
+		protected abstract void resetBuffer();
+	}
+
+
+	/**
+	 * Handles one request. May be called by many connections at once.
+	 * If it throws (or fails to write as many bytes as its "Content-Length" promised) before the response is committed,
+	 * the client gets "500 Internal Server Error"; afterwards, the response is cut short.
+	 *
+	 * @param request - The request.
+	 * @param response - Where to send the response.
+	 * @throws Exception - If the request couldn't be handled.
+	 */
+	public abstract void handle(Request request, Response response) throws Exception;
+
+	/**
+	 * Reads a header written CGI-style (e.g. by a {@link ServerProcess}) into a response.
+	 * A "Status" field becomes the response's status.
+	 *
+	 * @param line - One header line, without its CRLF.
+	 * @param response - The response.
+	 * @throws IOException - If the line isn't a header field.
+	 */
+	static void addCgiHeader(String line, Response response) throws IOException {
+		int i = line.indexOf(':');
+		if( i <= 0 )
+			throw new IOException("malformed CGI header line: " + line);
+		String name = line.substring(0, i).trim(), value = line.substring(i + 1).trim();
+		if( name.equalsIgnoreCase("Status") )
+			response.setStatus(value);
+		else
+			response.addHeader(name, value);
+	}
+}
@@ -0,0 +1,230 @@
+package com.mathhead200.web_server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The server's live counters: requests (by status class, and by how they were handled), bytes in and out,
+ * connections (open, active, and idle), keep-alive reuse, static file cache lookups, CGI processes started and killed,
+ * and a {@link LatencyHistogram} for each phase of a request (see {@link RequestRecord}.)
+ * Counters are {@link LongAdder}s, which spread contended updates over several cells, so connection threads
+ * recording at once don't fight over one cache line. Reported by {@link ServerStatus}.
+ * Safe to share between connection threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class ServerMetrics
+{
+	/** The phases of a request that are timed (see {@link RequestRecord}.) */
+	public enum Phase
+	{
+		PARSE, WAIT, RESOLVE, HANDLE, SEND, TOTAL
+	}
+
+	/** When these metrics began (in milliseconds since the epoch.) */
+	public final long startTime = System.currentTimeMillis();
+
+	/** Requests by status class: [1] to [5] for 1xx to 5xx, [0] for those that got no response. */
+	private final LongAdder[] statusClasses = adders(6);
+
+	/** Requests by {@link ResourceResolver.Kind}, then one more for those that were never resolved (e.g. rejected.) */
+	private final LongAdder[] kinds = adders(ResourceResolver.Kind.values().length + 1);
+
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder reused = new LongAdder();
+
+	private final LongAdder connections = new LongAdder();
+	private final LongAdder openConnections = new LongAdder();
+	private final LongAdder activeConnections = new LongAdder();
+
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+
+	private final LongAdder cgiProcesses = new LongAdder();
+	private final LongAdder cgiWorkerRequests = new LongAdder();
+
+	/** CGI scripts killed, by {@link CgiMonitor.Violation}, then one more for those killed because their response was abandoned. */
+	private final LongAdder[] cgiKills = adders(CgiMonitor.Violation.values().length + 1);
+
+	private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+
+
+	public ServerMetrics() {
+		for( int i = 0; i < phases.length; i++ )
+			phases[i] = new LatencyHistogram();
+	}
+
+	private static LongAdder[] adders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for( int i = 0; i < n; i++ )
+			adders[i] = new LongAdder();
+		return adders;
+	}
+
+
+	/** Counts a connection that has just been opened. */
+	public void connectionOpened() {
+		connections.increment();
+		openConnections.increment();
+	}
+
+	/** Counts a connection that has just been closed. */
+	public void connectionClosed() {
+		openConnections.decrement();
+	}
+
+	/** Counts a connection as active (rather than idle), now that a request has been read from it. */
+	public void requestStarted() {
+		activeConnections.increment();
+	}
+
+	/**
+	 * Counts a request, once its response has been sent (or failed to be), and the connection as idle again.
+	 *
+	 * @param record - What happened to the request.
+	 */
+	public void requestFinished(RequestRecord record) {
+		activeConnections.decrement();
+		int statusClass = record.getStatusCode() / 100;
+		statusClasses[statusClass >= 1 && statusClass <= 5 ? statusClass : 0].increment();
+		kinds[record.kind != null ? record.kind.ordinal() : kinds.length - 1].increment();
+		bytesIn.add(record.requestBytes);
+		bytesOut.add(record.responseBytes);
+		if( record.reuse > 0 )
+			reused.increment();
+
+		phases[Phase.PARSE.ordinal()].record( record.getParseNanos() );
+		phases[Phase.WAIT.ordinal()].record( record.getWaitNanos() );
+		if( record.resolved != 0 )
+			phases[Phase.RESOLVE.ordinal()].record( record.getResolveNanos() );
+		phases[Phase.HANDLE.ordinal()].record( record.getHandleNanos() );
+		if( record.responded != 0 )
+			phases[Phase.SEND.ordinal()].record( record.getSendNanos() );
+		phases[Phase.TOTAL.ordinal()].record( record.getTotalNanos() );
+	}
+
+	/** Counts a lookup in the {@link StaticContentCache}. */
+	public void countCacheLookup(boolean hit) {
+		(hit ? cacheHits : cacheMisses).increment();
+	}
+
+	/**
+	 * Counts a CGI script being started.
+	 *
+	 * @param pooled - Whether it was handed to a persistent worker (see {@link CgiWorkerPool}), rather than getting a new process.
+	 */
+	public void countCgiSpawn(boolean pooled) {
+		(pooled ? cgiWorkerRequests : cgiProcesses).increment();
+	}
+
+	/**
+	 * Counts a CGI script being killed.
+	 *
+	 * @param violation - Why (see {@link CgiMonitor}), or null if it was because its response was abandoned (e.g. the client went away.)
+	 */
+	public void countCgiKill(CgiMonitor.Violation violation) {
+		cgiKills[violation != null ? violation.ordinal() : cgiKills.length - 1].increment();
+	}
+
+
+	/** @return Milliseconds since these metrics began. */
+	public long getUptimeMillis() {
+		return System.currentTimeMillis() - startTime;
+	}
+
+	/** @return The number of requests handled so far. */
+	public long getRequests() {
+		long n = 0;
+		for( LongAdder adder : statusClasses )
+			n += adder.sum();
+		return n;
+	}
+
+	/**
+	 * @param statusClass - 1 to 5 for 1xx to 5xx responses, or 0 for requests that got no response.
+	 * @return The number of requests handled so far with that class of status.
+	 */
+	public long getRequests(int statusClass) {
+		return statusClasses[statusClass].sum();
+	}
+
+	/**
+	 * @param kind - How requests were handled, or null for requests that were never resolved (e.g. rejected.)
+	 * @return The number of requests handled so far that way.
+	 */
+	public long getRequests(ResourceResolver.Kind kind) {
+		return kinds[kind != null ? kind.ordinal() : kinds.length - 1].sum();
+	}
+
+	/** @return The number of requests that were made on a connection that had already had one (i.e. kept alive.) */
+	public long getReusedRequests() {
+		return reused.sum();
+	}
+
+	/** @return Bytes of requests read so far. */
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	/** @return Bytes of responses sent so far. */
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/** @return The number of connections opened so far. */
+	public long getConnections() {
+		return connections.sum();
+	}
+
+	/** @return The number of connections currently open. */
+	public long getOpenConnections() {
+		return Math.max( openConnections.sum(), 0 );
+	}
+
+	/** @return The number of open connections currently handling a request. */
+	public long getActiveConnections() {
+		return Math.max( activeConnections.sum(), 0 );
+	}
+
+	/** @return The number of open connections waiting for their next request. */
+	public long getIdleConnections() {
+		return Math.max( getOpenConnections() - getActiveConnections(), 0 );
+	}
+
+	/** @return The number of static files found in the {@link StaticContentCache} so far. */
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	/** @return The number of static files not found in the {@link StaticContentCache} so far. */
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	/**
+	 * @param pooled - Whether to count scripts handed to persistent workers, rather than new processes.
+	 * @return The number of CGI scripts started so far that way.
+	 */
+	public long getCgiSpawns(boolean pooled) {
+		return (pooled ? cgiWorkerRequests : cgiProcesses).sum();
+	}
+
+	/**
+	 * @param violation - Why, or null for scripts killed because their response was abandoned.
+	 * @return The number of CGI scripts killed so far for that reason.
+	 */
+	public long getCgiKills(CgiMonitor.Violation violation) {
+		return cgiKills[violation != null ? violation.ordinal() : cgiKills.length - 1].sum();
+	}
+
+	/** @return The latencies of one phase of the requests so far. */
+	public LatencyHistogram getLatency(Phase phase) {
+		return phases[phase.ordinal()];
+	}
+
+	public String toString() {
+		return String.format( "%d requests, %d connections open (%d active), %d bytes in, %d bytes out, total: %s",
+				getRequests(), getOpenConnections(), getActiveConnections(), getBytesIn(), getBytesOut(), getLatency(Phase.TOTAL) );
+	}
+}
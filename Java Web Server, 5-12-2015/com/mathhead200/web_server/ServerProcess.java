@@ -2,8 +2,12 @@ package com.mathhead200.web_server;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
 
 
@@ -21,7 +25,8 @@ public abstract class ServerProcess
 		/** The exit status of this "script" */
 		public final int exitStatus;
 
-		/** The output from this "script" */
+		/** The output from this "script". Its {@link InputStream#available()}
+		    is always the exact number of bytes left to read. */
 		public final InputStream out;
 
 		/** The error output from this "script" */
@@ -34,6 +39,18 @@ public abstract class ServerProcess
 		}
 	}
 
+	/** Collects a process's output, and lets it be read back without copying it. */
+	private static final class Buffer extends ByteArrayOutputStream
+	{
+		Buffer(int size) {
+			super(size);
+		}
+		
+		InputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+
 	public abstract int runProcess(InputStream in, PrintStream out, PrintStream err,
 			Map<String, String> env) throws Exception;
 
@@ -48,17 +65,121 @@ public abstract class ServerProcess
 	 * @return A {@link Results} object containing the results.
 	 */
 	public final Results start(InputStream in, Map<String, String> env) {
-		ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
-		ByteArrayOutputStream err = new ByteArrayOutputStream(1024);
-		int exitStatus = 0;
+		FlightEvents.Event event = FlightEvents.begin(FlightEvents.Type.JAVA_CGI_INVOKE);
+		Buffer out = new Buffer(1024);
+		Buffer err = new Buffer(1024);
+		int exitStatus = run( in, new PrintStream(out), new PrintStream(err), env );
+		if( event != null )
+			event.commit( env != null ? env.get("SCRIPT_NAME") : null, getClass().getName(), Integer.toString(exitStatus), null );
+		return new Results( exitStatus, out.toInputStream(), err.toInputStream() );
+	}
+
+	/**
+	 * Runs this "script" as a {@link ServerEndpoint}, on the thread handling the request.
+	 * The CGI header it writes is read into the response as it's written, and the rest of its output goes
+	 * straight to the connection, instead of being collected (and copied) first. <br>
+	 * A non-zero exit status becomes "500 Internal Server Error", unless the response has already been committed
+	 * (in which case it's cut short.) Its error output goes to the connection's error log.
+	 * 
+	 * @return An endpoint that runs this "script".
+	 */
+	public final ServerEndpoint asEndpoint() {
+		return new ServerEndpoint() {
+			public void handle(Request request, Response response) throws Exception {
+				HeaderReader header = new HeaderReader(response);
+				int exitStatus = run( request.body, new PrintStream(header), request.errLog, new HashMap<>(request.env) );
+				header.finish();
+				if( exitStatus != 0 ) {
+					request.errLog.println("CGI Process terminated with a non-zero error code: " + exitStatus);
+					if( response.isCommitted() )
+						throw new IOException("CGI Process terminated with a non-zero error code: " + exitStatus);
+					response.reset();
+					response.setStatus("500 Internal Server Error");
+					response.setContentType("text/plain");
+					response.getOutputStream().write( ("500 Internal Server Error\n(CGI Process terminated with a non-zero error code: "
+							+ exitStatus + ")").getBytes(StandardCharsets.UTF_8) );
+				}
+			}
+			
+			public String toString() {
+				return ServerProcess.this.getClass().getName();
+			}
+		};
+	}
+
+	/**
+	 * Reads the CGI header at the start of a "script's" output (lines ending with CRLF, then a blank line)
+	 * into a response's header fields, then passes the rest on to the response's body.
+	 */
+	private static final class HeaderReader extends OutputStream
+	{
+		private final ServerEndpoint.Response response;
+		private final StringBuilder line = new StringBuilder();
+		private boolean inHeader = true;
+		
+		/** The first write error, which PrintStream would otherwise hide (e.g. the client going away.) */
+		private IOException error = null;
+		
+		HeaderReader(ServerEndpoint.Response response) {
+			this.response = response;
+		}
+		
+		public void write(int b) throws IOException {
+			write( new byte[] { (byte) b }, 0, 1 );
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				parse(b, off, len);
+			} catch(IOException e) {
+				if( error == null )
+					error = e;
+				throw e;
+			}
+		}
+		
+		private void parse(byte[] b, int off, int len) throws IOException {
+			int end = off + len;
+			while( inHeader && off < end ) {
+				char c = (char) (b[off++] & 0xFF);
+				if( c == '\n' && line.length() > 0 && line.charAt(line.length() - 1) == '\r' ) {
+					line.setLength(line.length() - 1);
+					if( line.length() == 0 )
+						inHeader = false;
+					else
+						ServerEndpoint.addCgiHeader( line.toString(), response );
+					line.setLength(0);
+				} else {
+					line.append(c);
+				}
+			}
+			if( off < end )
+				response.getOutputStream().write(b, off, end - off);
+		}
+		
+		/** Only once the header has been read; until then, the response can't be sent. */
+		public void flush() throws IOException {
+			if( !inHeader )
+				response.getOutputStream().flush();
+		}
+		
+		/** A header missing its blank line (i.e. no body) is still used. */
+		void finish() throws IOException {
+			if( error != null )
+				throw error;
+			if( inHeader && line.length() > 0 )
+				ServerEndpoint.addCgiHeader( line.toString(), response );
+			inHeader = false;
+		}
+	}
+
+	/** Invokes {@link #runProcess}, turning an uncaught exception into a (non-zero) exit status. */
+	private int run(InputStream in, PrintStream out, PrintStream err, Map<String, String> env) {
 		try {
-			exitStatus = runProcess( in, new PrintStream(out), new PrintStream(err), env );
+			return runProcess(in, out, err, env);
 		} catch(Exception e) {
-			e.printStackTrace( new PrintStream(err) );
-			exitStatus = Math.abs(e.getClass().getName().hashCode()) % 256; //default error code for unhandled exceptions in Java?
+			e.printStackTrace(err);
+			return Math.abs(e.getClass().getName().hashCode()) % 256; //default error code for unhandled exceptions in Java?
 		}
-		InputStream rOut = new ByteArrayInputStream( out.toByteArray() );
-		InputStream rErr = new ByteArrayInputStream( err.toByteArray() );
-		return new Results(exitStatus, rOut, rErr);
 	}
 }
@@ -0,0 +1,201 @@
+package com.mathhead200.web_server;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+
+/**
+ * A Java CGI that reports the server's {@link ServerMetrics}: as plain text for people,
+ * or in Prometheus' text exposition format when asked for with "?format=prometheus"
+ * (or by a scraper's "Accept" header, e.g. "text/plain; version=0.0.4".)
+ * Installed at a reserved path (see the "server_status_path" property), ahead of any file there.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class ServerStatus extends ServerEndpoint
+{
+	/** The quantiles reported for each phase's latency. */
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/** What's reported. */
+	public final ServerMetrics metrics;
+
+	/** Addresses (as in REMOTE_ADDR) that may see the report. Empty means any. */
+	private final Set<String> allowed;
+
+
+	/**
+	 * @param metrics - What's reported.
+	 * @param allowed - Addresses (e.g. "127.0.0.1") that may see the report; any other gets "403 Forbidden". Empty means any.
+	 */
+	public ServerStatus(ServerMetrics metrics, Collection<String> allowed) {
+		this.metrics = metrics;
+		this.allowed = new HashSet<>(allowed);
+	}
+
+
+	public void handle(Request request, Response response) throws Exception {
+		String body;
+		if( !allowed.isEmpty() && !allowed.contains( request.env.get("REMOTE_ADDR") ) ) {
+			response.setStatus("403 Forbidden");
+			response.setContentType("text/plain");
+			body = "403 Forbidden";
+		} else if( !request.method.equalsIgnoreCase("GET") && !request.method.equalsIgnoreCase("HEAD") ) {
+			response.setStatus("405 Method Not Allowed");
+			response.setHeader("Allow", "GET, HEAD");
+			response.setContentType("text/plain");
+			body = "405 Method Not Allowed";
+		} else if( isPrometheus(request) ) {
+			response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+			body = toPrometheus();
+		} else {
+			response.setContentType("text/plain; charset=utf-8");
+			body = toText();
+		}
+		response.setHeader("Cache-Control", "no-cache");
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		response.setContentLength(bytes.length);
+		try( OutputStream output = response.getOutputStream() ) {
+			output.write(bytes);
+		}
+	}
+
+	/** @return Whether the request asked for Prometheus' format: by its query string, otherwise by its "Accept" header. */
+	private static boolean isPrometheus(Request request) {
+		if( request.query != null ) {
+			for( String param : request.query.split("&") ) {
+				if( param.equalsIgnoreCase("format=prometheus") )
+					return true;
+				if( param.equalsIgnoreCase("format=text") )
+					return false;
+			}
+		}
+		String accept = request.getHeader("Accept");
+		return accept != null && (accept.contains("version=0.0.4") || accept.contains("application/openmetrics-text"));
+	}
+
+
+	/** @return The report, for people. */
+	public String toText() {
+		StringBuilder text = new StringBuilder(2048);
+		long uptime = metrics.getUptimeMillis(), requests = metrics.getRequests();
+		line( text, "%s Status", JavaWebServer.NAME );
+		line( text, "Uptime: %dd %dh %dm %ds", uptime / 86400000, uptime / 3600000 % 24, uptime / 60000 % 60, uptime / 1000 % 60 );
+		line( text, "" );
+		line( text, "Connections: %d open (%d active, %d idle), %d total",
+				metrics.getOpenConnections(), metrics.getActiveConnections(), metrics.getIdleConnections(), metrics.getConnections() );
+		line( text, "Requests: %d (%.1f/s), %d on kept-alive connections",
+				requests, requests * 1000.0 / Math.max(uptime, 1), metrics.getReusedRequests() );
+		line( text, "   By Status: 1xx %d, 2xx %d, 3xx %d, 4xx %d, 5xx %d, none %d",
+				metrics.getRequests(1), metrics.getRequests(2), metrics.getRequests(3),
+				metrics.getRequests(4), metrics.getRequests(5), metrics.getRequests(0) );
+		text.append("   By Handler:");
+		for( ResourceResolver.Kind kind : ResourceResolver.Kind.values() )
+			text.append(' ').append( kindLabel(kind) ).append(' ').append( metrics.getRequests(kind) ).append(',');
+		line( text, " none %d", metrics.getRequests((ResourceResolver.Kind) null) );
+		line( text, "Bytes: %d in, %d out", metrics.getBytesIn(), metrics.getBytesOut() );
+		long hits = metrics.getCacheHits(), lookups = hits + metrics.getCacheMisses();
+		line( text, "Static File Cache: %d hits, %d misses (%.1f%% hit)",
+				hits, lookups - hits, lookups == 0 ? 0.0 : hits * 100.0 / lookups );
+		line( text, "CGI: %d processes started, %d handed to workers; killed: %d timeout, %d idle, %d output, %d abandoned",
+				metrics.getCgiSpawns(false), metrics.getCgiSpawns(true),
+				metrics.getCgiKills(CgiMonitor.Violation.TIMEOUT), metrics.getCgiKills(CgiMonitor.Violation.IDLE),
+				metrics.getCgiKills(CgiMonitor.Violation.OUTPUT), metrics.getCgiKills(null) );
+		line( text, "" );
+		line( text, "Latency (ms)    count       mean        p50        p90        p99      p99.9        max" );
+		for( ServerMetrics.Phase phase : ServerMetrics.Phase.values() ) {
+			LatencyHistogram.Snapshot snapshot = metrics.getLatency(phase).snapshot();
+			line( text, "   %-8s %10d %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f", phase.name().toLowerCase(), snapshot.count,
+					snapshot.getMean() / 1e6, snapshot.getValueAt(0.5) / 1e6, snapshot.getValueAt(0.9) / 1e6,
+					snapshot.getValueAt(0.99) / 1e6, snapshot.getValueAt(0.999) / 1e6, snapshot.max / 1e6 );
+		}
+		return text.toString();
+	}
+
+	/** @return The report, in Prometheus' text exposition format (version 0.0.4.) */
+	public String toPrometheus() {
+		StringBuilder text = new StringBuilder(4096);
+		metric( text, "jws_uptime_seconds", "gauge", "Seconds since the server started." );
+		sample( text, "jws_uptime_seconds", null, metrics.getUptimeMillis() / 1e3 );
+
+		metric( text, "jws_connections_total", "counter", "Connections opened." );
+		sample( text, "jws_connections_total", null, metrics.getConnections() );
+		metric( text, "jws_connections", "gauge", "Open connections, by whether they're handling a request or waiting for one." );
+		sample( text, "jws_connections", "state=\"active\"", metrics.getActiveConnections() );
+		sample( text, "jws_connections", "state=\"idle\"", metrics.getIdleConnections() );
+
+		metric( text, "jws_requests_total", "counter", "Requests handled, by status class." );
+		for( int statusClass = 1; statusClass <= 5; statusClass++ )
+			sample( text, "jws_requests_total", "class=\"" + statusClass + "xx\"", metrics.getRequests(statusClass) );
+		sample( text, "jws_requests_total", "class=\"none\"", metrics.getRequests(0) );
+		metric( text, "jws_handler_requests_total", "counter", "Requests handled, by how the path was handled." );
+		for( ResourceResolver.Kind kind : ResourceResolver.Kind.values() )
+			sample( text, "jws_handler_requests_total", "handler=\"" + kindLabel(kind) + "\"", metrics.getRequests(kind) );
+		sample( text, "jws_handler_requests_total", "handler=\"none\"", metrics.getRequests((ResourceResolver.Kind) null) );
+		metric( text, "jws_reused_requests_total", "counter", "Requests made on a kept-alive connection." );
+		sample( text, "jws_reused_requests_total", null, metrics.getReusedRequests() );
+
+		metric( text, "jws_received_bytes_total", "counter", "Bytes of requests read." );
+		sample( text, "jws_received_bytes_total", null, metrics.getBytesIn() );
+		metric( text, "jws_sent_bytes_total", "counter", "Bytes of responses sent." );
+		sample( text, "jws_sent_bytes_total", null, metrics.getBytesOut() );
+
+		metric( text, "jws_static_cache_lookups_total", "counter", "Static files looked for in the in-memory cache." );
+		sample( text, "jws_static_cache_lookups_total", "result=\"hit\"", metrics.getCacheHits() );
+		sample( text, "jws_static_cache_lookups_total", "result=\"miss\"", metrics.getCacheMisses() );
+
+		metric( text, "jws_cgi_spawns_total", "counter", "CGI scripts started, in a new process or by a persistent worker." );
+		sample( text, "jws_cgi_spawns_total", "mode=\"process\"", metrics.getCgiSpawns(false) );
+		sample( text, "jws_cgi_spawns_total", "mode=\"worker\"", metrics.getCgiSpawns(true) );
+		metric( text, "jws_cgi_kills_total", "counter", "CGI scripts killed, by reason." );
+		for( CgiMonitor.Violation violation : CgiMonitor.Violation.values() )
+			sample( text, "jws_cgi_kills_total", "reason=\"" + violation.name().toLowerCase() + "\"", metrics.getCgiKills(violation) );
+		sample( text, "jws_cgi_kills_total", "reason=\"abandoned\"", metrics.getCgiKills(null) );
+
+		metric( text, "jws_request_phase_seconds", "summary", "Time spent in each phase of a request." );
+		LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[ServerMetrics.Phase.values().length];
+		for( ServerMetrics.Phase phase : ServerMetrics.Phase.values() ) {
+			LatencyHistogram.Snapshot snapshot = snapshots[phase.ordinal()] = metrics.getLatency(phase).snapshot();
+			String label = "phase=\"" + phase.name().toLowerCase() + "\"";
+			for( double quantile : QUANTILES )
+				sample( text, "jws_request_phase_seconds", label + ",quantile=\"" + quantile + "\"", snapshot.getValueAt(quantile) / 1e9 );
+			sample( text, "jws_request_phase_seconds_sum", label, snapshot.sum / 1e9 );
+			sample( text, "jws_request_phase_seconds_count", label, snapshot.count );
+		}
+		metric( text, "jws_request_phase_max_seconds", "gauge", "Longest time spent in each phase of a request." );
+		for( ServerMetrics.Phase phase : ServerMetrics.Phase.values() )
+			sample( text, "jws_request_phase_max_seconds", "phase=\"" + phase.name().toLowerCase() + "\"", snapshots[phase.ordinal()].max / 1e9 );
+		return text.toString();
+	}
+
+	private static String kindLabel(ResourceResolver.Kind kind) {
+		return kind.name().toLowerCase();
+	}
+
+	private static void line(StringBuilder text, String format, Object... args) {
+		text.append( String.format(Locale.US, format, args) ).append('\n');
+	}
+
+	private static void metric(StringBuilder text, String name, String type, String help) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String name, String labels, long value) {
+		text.append(name);
+		if( labels != null )
+			text.append('{').append(labels).append('}');
+		text.append(' ').append(value).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String name, String labels, double value) {
+		text.append(name);
+		if( labels != null )
+			text.append('{').append(labels).append('}');
+		text.append(' ').append(value).append('\n');
+	}
+}
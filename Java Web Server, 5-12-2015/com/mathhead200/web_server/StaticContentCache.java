@@ -0,0 +1,195 @@
+package com.mathhead200.web_server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Keeps the contents of small, frequently requested static files in memory,
+ * along with the header values sent with them.
+ * Least recently used files are evicted once the cache holds more than its byte budget,
+ * and every entry is checked against the file's last modified time (and size) before it's used.
+ * Safe to share between connection threads.
+ *
+ * @author Christopher D'Angelo
+ */
+public final class StaticContentCache
+{
+	/** A cached file, ready to be sent. */
+	public static final class Entry
+	{
+		/** The file's last modified time (in milliseconds) when it was read. */
+		public final long lastModified;
+
+		/** The MIME type, for the "Content-Type" header. May be null. */
+		public final String type;
+
+		/** The last modified time in RFC 1123 format, for the "Last-Modified" header. */
+		public final String date;
+
+		/** The entity tag, for the "ETag" header. */
+		public final String etag;
+
+		/** The file's contents. */
+		public final byte[] bytes;
+
+		private Entry(long lastModified, String type, String date, String etag, byte[] bytes) {
+			this.lastModified = lastModified;
+			this.type = type;
+			this.date = date;
+			this.etag = etag;
+			this.bytes = bytes;
+		}
+
+		/** @return The file's contents as a response body. */
+		public ResponseBody getBody() {
+			return ResponseBody.of(bytes);
+		}
+	}
+
+
+	/** The most bytes (of file contents) this cache will hold at once. */
+	public final long maxBytes;
+
+	/** Files larger than this many bytes are never cached. */
+	public final long maxEntryBytes;
+
+	/** Cached files by their (absolute, normalized) path, in least to most recently used order. */
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+	/** Total size of all of the cached files. Guarded by <code>this</code>. */
+	private long bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+
+	/**
+	 * @param maxBytes - The byte budget for the whole cache.
+	 * @param maxEntryBytes - The largest file that will be cached.
+	 */
+	public StaticContentCache(long maxBytes, long maxEntryBytes) {
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+	}
+
+
+	/**
+	 * Looks up a file, making sure the cached copy is still current.
+	 * Costs a single file system call (to read the file's attributes.)
+	 *
+	 * @param path - The file's absolute, normalized path.
+	 * @return The cached file, or null if it isn't cached, has been modified, or is no longer a file.
+	 */
+	public Entry get(Path path) {
+		Entry entry;
+		synchronized(this) {
+			entry = entries.get(path);
+		}
+		if( entry == null )
+			return null;
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			if( attrs.isRegularFile() && attrs.lastModifiedTime().toMillis() == entry.lastModified
+					&& attrs.size() == entry.bytes.length ) {
+				hits.incrementAndGet();
+				return entry;
+			}
+		} catch(IOException e) {
+			//deleted, or otherwise unreadable, so drop it
+		}
+		remove(path, entry);
+		return null;
+	}
+
+	/**
+	 * Reads a file into the cache, if it's small enough.
+	 *
+	 * @param path - The file's absolute, normalized path.
+	 * @param type - The file's MIME type. May be null.
+	 * @param weakETag - Whether to give the file a weak entity tag instead of a strong one.
+	 * @return The newly cached file, or null if the file is too large to be cached.
+	 * @throws IOException - If the file can't be read.
+	 */
+	public Entry load(Path path, String type, boolean weakETag) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		if( !attrs.isRegularFile() )
+			throw new NoSuchFileException(path.toString(), null, "not a regular file");
+		if( attrs.size() > maxEntryBytes )
+			return null;
+		misses.incrementAndGet();
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		byte[] contents = Files.readAllBytes(path);
+		Entry entry = new Entry( lastModified, type, HttpDate.format(lastModified),
+				ConditionalRequest.etag(attrs, weakETag), contents );
+		if( contents.length > maxEntryBytes )
+			return entry; //grew while being read; still usable for this response
+
+		synchronized(this) {
+			Entry old = entries.put(path, entry);
+			if( old != null )
+				bytes -= old.bytes.length;
+			bytes += contents.length;
+			for( Iterator<Map.Entry<Path, Entry>> iter = entries.entrySet().iterator(); bytes > maxBytes && iter.hasNext(); ) {
+				Entry eldest = iter.next().getValue();
+				if( eldest == entry )
+					continue;
+				iter.remove();
+				bytes -= eldest.bytes.length;
+				evictions.incrementAndGet();
+			}
+		}
+		return entry;
+	}
+
+	/** Removes the given entry, unless it has already been replaced. */
+	private synchronized void remove(Path path, Entry entry) {
+		if( entries.remove(path, entry) )
+			bytes -= entry.bytes.length;
+	}
+
+	/** Empties the cache. The counters are not reset. */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+
+	/** @return The number of requests served from the cache. */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** @return The number of files read into the cache. */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** @return The number of files dropped to stay under {@link #maxBytes}. */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/** @return The total size, in bytes, of the files currently cached. */
+	public synchronized long getSize() {
+		return bytes;
+	}
+
+	/** @return The number of files currently cached. */
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public String toString() {
+		return String.format( "%d files, %d/%d bytes (hits: %d, misses: %d, evictions: %d)",
+				getCount(), getSize(), maxBytes, getHits(), getMisses(), getEvictions() );
+	}
+}